@@ -3,9 +3,7 @@ package org.rdlinux.xlsx;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
 import org.apache.poi.openxml4j.opc.OPCPackage;
-import org.apache.poi.poifs.crypt.Decryptor;
-import org.apache.poi.poifs.crypt.EncryptionInfo;
-import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.openxml4j.opc.PackageAccess;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.util.StaxHelper;
@@ -16,27 +14,30 @@ import org.rdlinux.xlsx.exceptions.CloseException;
 import org.rdlinux.xlsx.exceptions.MissingSheetException;
 import org.rdlinux.xlsx.exceptions.OpenException;
 import org.rdlinux.xlsx.exceptions.ReadException;
+import org.rdlinux.xlsx.impl.DerivedKeyCache;
 import org.rdlinux.xlsx.impl.StreamingSheetReader;
 import org.rdlinux.xlsx.impl.StreamingWorkbook;
 import org.rdlinux.xlsx.impl.StreamingWorkbookReader;
+import org.rdlinux.xlsx.impl.StylesCache;
+import org.rdlinux.xlsx.impl.WorkbookMetadata;
 import org.rdlinux.xlsx.sst.BufferedStringsTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLStreamException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
-import java.util.Iterator;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
-import static org.rdlinux.xlsx.XmlUtils.document;
-import static org.rdlinux.xlsx.XmlUtils.searchForNodeList;
+import static org.rdlinux.xlsx.impl.TempFileUtil.writeDecryptedPackageToFile;
 import static org.rdlinux.xlsx.impl.TempFileUtil.writeInputStreamToFile;
 
 /**
@@ -48,6 +49,7 @@ public class StreamingReader implements Iterable<Row>, AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(StreamingReader.class);
 
     private File tmp;
+    private File decrypted;
     private final StreamingWorkbookReader workbook;
 
     public StreamingReader(StreamingWorkbookReader workbook) {
@@ -84,6 +86,12 @@ public class StreamingReader implements Iterable<Row>, AutoCloseable {
                 }
                 this.tmp.delete();
             }
+            if (this.decrypted != null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Deleting decrypted temp file [" + this.decrypted.getAbsolutePath() + "]");
+                }
+                this.decrypted.delete();
+            }
         }
     }
 
@@ -96,8 +104,31 @@ public class StreamingReader implements Iterable<Row>, AutoCloseable {
         private int bufferSize = 1024;
         private int sheetIndex = 0;
         private int sstCacheSizeBytes = -1;
+        private long sstOffHeapCapacityBytes = -1;
         private String sheetName;
         private String password;
+        private Set<String> sstSheets = Collections.emptySet();
+        private File sstCacheDirectory;
+        private long sstCacheDirectoryMaxSizeBytes = 1024L * 1024 * 1024;
+        private long sstCacheDirectoryMaxAgeMillis = TimeUnit.DAYS.toMillis(7);
+        private boolean asyncSstLoading;
+        private boolean sstPageCache;
+        private boolean sstPrefetch;
+        private boolean sstCompression;
+        private int sstCompressionCachedBlocks = 64;
+        private int stringInternCacheSize;
+        private boolean singlePass;
+        private boolean pipelinedSpooling;
+        private boolean lightweightZip;
+        private int decryptionThreads = 1;
+        private DerivedKeyCache derivedKeyCache;
+        private boolean lightweightStyles;
+        private StylesCache stylesCache;
+        private int rowIndexInterval;
+        private int[] zoneMapColumns = new int[0];
+        private File sheetIndexDirectory;
+        private long sheetIndexDirectoryMaxSizeBytes = 10L * 1024 * 1024 * 1024;
+        private long sheetIndexDirectoryMaxAgeMillis = TimeUnit.DAYS.toMillis(7);
 
         public int getRowCacheSize() {
             return this.rowCacheSize;
@@ -138,6 +169,171 @@ public class StreamingReader implements Iterable<Row>, AutoCloseable {
             return this.sstCacheSizeBytes;
         }
 
+        /**
+         * @return The maximum amount of native memory the SST may use. If less than 0,
+         * the SST is not stored off-heap.
+         */
+        public long getSstOffHeapCapacityBytes() {
+            return this.sstOffHeapCapacityBytes;
+        }
+
+        /**
+         * @return The names of the sheets the shared strings table is restricted to. If
+         * empty, every entry of the table is loaded.
+         */
+        public Set<String> getSstSheets() {
+            return this.sstSheets;
+        }
+
+        /**
+         * @return The directory SST cache files are kept in across workbooks, or null if
+         * they are deleted when the workbook is closed
+         */
+        public File getSstCacheDirectory() {
+            return this.sstCacheDirectory;
+        }
+
+        /**
+         * @return The maximum total size of the SST cache directory
+         */
+        public long getSstCacheDirectoryMaxSizeBytes() {
+            return this.sstCacheDirectoryMaxSizeBytes;
+        }
+
+        /**
+         * @return The maximum time an unused entry is kept in the SST cache directory
+         */
+        public long getSstCacheDirectoryMaxAgeMillis() {
+            return this.sstCacheDirectoryMaxAgeMillis;
+        }
+
+        /**
+         * @return Whether the shared strings table is parsed on a background thread
+         */
+        public boolean isAsyncSstLoading() {
+            return this.asyncSstLoading;
+        }
+
+        /**
+         * @return Whether the SST cache holds pages of the cache file rather than entries
+         */
+        public boolean isSstPageCache() {
+            return this.sstPageCache;
+        }
+
+        /**
+         * @return Whether the SST page cache reads ahead on sequential access
+         */
+        public boolean isSstPrefetch() {
+            return this.sstPrefetch;
+        }
+
+        /**
+         * @return Whether the in-memory SST is kept compressed
+         */
+        public boolean isSstCompression() {
+            return this.sstCompression;
+        }
+
+        /**
+         * @return The number of decoded blocks kept by the compressed in-memory SST
+         */
+        public int getSstCompressionCachedBlocks() {
+            return this.sstCompressionCachedBlocks;
+        }
+
+        /**
+         * @return The number of inline and formula string values interned per sheet
+         */
+        public int getStringInternCacheSize() {
+            return this.stringInternCacheSize;
+        }
+
+        /**
+         * @return Whether {@link #open(InputStream)} reads the input in a single pass
+         */
+        public boolean isSinglePass() {
+            return this.singlePass;
+        }
+
+        /**
+         * @return Whether {@link #open(InputStream)} reads the temp file while it is still being written
+         */
+        public boolean isPipelinedSpooling() {
+            return this.pipelinedSpooling;
+        }
+
+        /**
+         * @return Whether files are read with {@link java.util.zip.ZipFile} instead of an {@code OPCPackage}
+         */
+        public boolean isLightweightZip() {
+            return this.lightweightZip;
+        }
+
+        /**
+         * @return The number of threads Agile encrypted workbooks are decrypted on
+         */
+        public int getDecryptionThreads() {
+            return this.decryptionThreads;
+        }
+
+        /**
+         * @return The cache of keys derived from workbook passwords, or null if keys are not cached
+         */
+        public DerivedKeyCache getDerivedKeyCache() {
+            return this.derivedKeyCache;
+        }
+
+        /**
+         * @return Whether styles are read without building a full {@code StylesTable}
+         */
+        public boolean isLightweightStyles() {
+            return this.lightweightStyles;
+        }
+
+        /**
+         * @return The cache of lightweight styles shared between workbooks, or null if styles are not cached
+         */
+        public StylesCache getStylesCache() {
+            return this.stylesCache;
+        }
+
+        /**
+         * @return The number of rows between the checkpoints of a sheet's row index, or 0 if sheets are not indexed
+         */
+        public int getRowIndexInterval() {
+            return this.rowIndexInterval;
+        }
+
+        /**
+         * @return The 0-based columns whose ranges are recorded per block of indexed rows, sorted
+         */
+        public int[] getZoneMapColumns() {
+            return this.zoneMapColumns.clone();
+        }
+
+        /**
+         * @return The directory sheet indexes are kept in across workbooks, or null if
+         * they are deleted when the workbook is closed
+         */
+        public File getSheetIndexDirectory() {
+            return this.sheetIndexDirectory;
+        }
+
+        /**
+         * @return The maximum total size of the sheet index directory
+         */
+        public long getSheetIndexDirectoryMaxSizeBytes() {
+            return this.sheetIndexDirectoryMaxSizeBytes;
+        }
+
+        /**
+         * @return The maximum time an unused entry is kept in the sheet index directory
+         */
+        public long getSheetIndexDirectoryMaxAgeMillis() {
+            return this.sheetIndexDirectoryMaxAgeMillis;
+        }
+
         /**
          * The number of rows to keep in memory at any given point.
          * <p>
@@ -203,7 +399,8 @@ public class StreamingReader implements Iterable<Row>, AutoCloseable {
         /**
          * For password protected files specify password to open file.
          * If the password is incorrect a {@code ReadException} is thrown on
-         * {@code read}.
+         * {@code read}. The workbook is decrypted into a temp file, which is
+         * deleted when the workbook is closed.
          * <p>NULL indicates that no password should be used, this is the
          * default value.</p>
          *
@@ -236,6 +433,441 @@ public class StreamingReader implements Iterable<Row>, AutoCloseable {
             return this;
         }
 
+        /**
+         * Read the workbook straight from the stream passed to {@link #open(InputStream)}
+         * instead of copying it to a temp file first. Parts are read in the order they are
+         * stored in the archive: the workbook, styles and SST are parsed as they arrive and
+         * sheets are streamed to the caller. Only sheets stored before a part they depend on,
+         * and sheets that are skipped over to reach a later one, are spilled to temp files.
+         * Reading sheets in the order they are stored therefore avoids temp files entirely.
+         * <p>
+         * Not used for encrypted workbooks. {@link #sstSheets(String...)},
+         * {@link #asyncSstLoading(boolean)} and {@link #sstCacheDirectory(File)} are
+         * ignored in this mode, since they need the SST to be found before the sheets.
+         * <p>
+         * Defaults to false
+         * </p>
+         *
+         * @param singlePass whether to read the input stream in a single pass
+         * @return reference to current {@code Builder}
+         */
+        public Builder singlePass(boolean singlePass) {
+            this.singlePass = singlePass;
+            return this;
+        }
+
+        /**
+         * Read files with {@link java.util.zip.ZipFile} and a minimal resolver for the
+         * workbook's relationships, instead of opening an {@code OPCPackage}. Only the
+         * workbook, its relationships, the styles, the SST and the sheets are ever looked
+         * at; the content types and relationships of all other parts are not parsed, which
+         * makes opening small files considerably faster. Applies to {@link #open(File)} and
+         * to the temp file written by {@link #open(InputStream)}.
+         * <p>
+         * Not used for encrypted workbooks, or together with {@link #sstSheets(String...)},
+         * {@link #asyncSstLoading(boolean)} or {@link #sstCacheDirectory(File)}, which need
+         * the package model.
+         * <p>
+         * Defaults to false
+         * </p>
+         *
+         * @param lightweightZip whether to bypass {@code OPCPackage} for plain files
+         * @return reference to current {@code Builder}
+         */
+        public Builder lightweightZip(boolean lightweightZip) {
+            this.lightweightZip = lightweightZip;
+            return this;
+        }
+
+        /**
+         * Decrypt password protected workbooks that use Agile encryption on this many
+         * threads. The segments of an Agile encrypted package are independent of each
+         * other, so large workbooks decrypt up to this many times faster. Workbooks that
+         * use other kinds of encryption are always decrypted on the calling thread.
+         * <p>
+         * Defaults to 1
+         * </p>
+         *
+         * @param decryptionThreads number of threads to decrypt on
+         * @return reference to current {@code Builder}
+         */
+        public Builder decryptionThreads(int decryptionThreads) {
+            this.decryptionThreads = decryptionThreads;
+            return this;
+        }
+
+        /**
+         * Cache the keys derived from the passwords of encrypted workbooks. Deriving a key
+         * hashes the password up to 100,000 times, which a cache shared by the builders of
+         * an application saves when the same protected workbooks are opened repeatedly.
+         * See {@link DerivedKeyCache}.
+         * <p>
+         * Defaults to null, which derives the key on every open
+         * </p>
+         *
+         * @param derivedKeyCache the cache to use, or null
+         * @return reference to current {@code Builder}
+         */
+        public Builder derivedKeyCache(DerivedKeyCache derivedKeyCache) {
+            this.derivedKeyCache = derivedKeyCache;
+            return this;
+        }
+
+        /**
+         * Read {@code styles.xml} with a streaming parser that keeps only the number
+         * formats of the cell formats, instead of building POI's {@code StylesTable}
+         * through XMLBeans. That is all formatting cell values needs, and it is much
+         * faster to open heavily formatted workbooks this way.
+         * <p>
+         * Cells then return read-only styles that are not {@code XSSFCellStyle}s. Their
+         * data format is answered directly; fonts, fills, borders and every other
+         * property are read from a full {@code StylesTable}, which is built the first
+         * time such a property is asked for.
+         * <p>
+         * Defaults to false
+         * </p>
+         *
+         * @param lightweightStyles whether to read styles without a full {@code StylesTable}
+         * @return reference to current {@code Builder}
+         */
+        public Builder lightweightStyles(boolean lightweightStyles) {
+            this.lightweightStyles = lightweightStyles;
+            return this;
+        }
+
+        /**
+         * Share the number formats read with {@link #lightweightStyles(boolean)} between
+         * workbooks whose styles part has the same CRC32 and size in the ZIP directory,
+         * so that workbooks exported from the same template parse their styles only
+         * once. See {@link StylesCache}. Has no effect unless lightweight styles are on.
+         * <p>
+         * Defaults to null, which parses the styles of every workbook
+         * </p>
+         *
+         * @param stylesCache the cache to use, or null
+         * @return reference to current {@code Builder}
+         */
+        public Builder stylesCache(StylesCache stylesCache) {
+            this.stylesCache = stylesCache;
+            return this;
+        }
+
+        /**
+         * Index sheets for random access to their rows. When a sheet is first read, its
+         * inflated XML is copied to a temp file and the byte offset of every Nth row is
+         * recorded. {@code Sheet#getRow(int)}, {@code Sheet#getFirstRowNum()},
+         * {@code Sheet#getPhysicalNumberOfRows()} and {@code StreamingSheet#iterator(int)}
+         * then parse the sheet from the nearest checkpoint instead of from its top, and
+         * sequential iteration reads the copy.
+         * <p>
+         * A smaller interval makes lookups faster at the cost of a larger index. Without
+         * an index those methods throw {@link UnsupportedOperationException}.
+         * <p>
+         * Defaults to 0, which streams sheets without an index
+         * </p>
+         *
+         * @param rowIndexInterval the number of rows between checkpoints
+         * @return reference to current {@code Builder}
+         */
+        public Builder rowIndexInterval(int rowIndexInterval) {
+            this.rowIndexInterval = rowIndexInterval;
+            return this;
+        }
+
+        /**
+         * Record the minimum and maximum numeric value of the given columns for every block
+         * of rows between two checkpoints of a sheet's row index. Dates are stored as numbers,
+         * so this covers date columns too. The ranges are collected from the rows as the sheet
+         * is parsed while it is indexed, and kept in the sheet index directory along with the index.
+         * <p>
+         * {@code StreamingSheet#iterator(int, double, double)} and its {@code Date} overload
+         * then skip the blocks whose range in the column cannot match without parsing their
+         * cells, which pays off for repeated filtered reads of sheets whose rows are ordered,
+         * or clustered, by the column, such as append-only ledgers. Only used together with
+         * {@link #rowIndexInterval(int)}.
+         * </p>
+         * <p>
+         * Defaults to no columns
+         * </p>
+         *
+         * @param zoneMapColumns the 0-based columns to summarize
+         * @return reference to current {@code Builder}
+         */
+        public Builder zoneMapColumns(int... zoneMapColumns) {
+            this.zoneMapColumns = IntStream.of(zoneMapColumns).distinct().sorted().toArray();
+            return this;
+        }
+
+        /**
+         * Keep sheet indexes, together with the inflated copies of their sheets, in the
+         * given directory so they can be reused by later opens of the same workbook, in
+         * this process or another one. Entries are keyed by the CRC32 and size of the
+         * worksheet part as recorded in the ZIP central directory and by the interval, and
+         * an unchanged sheet is then read from the directory without being inflated or
+         * scanned again.
+         * <p>
+         * Only used together with {@link #rowIndexInterval(int)}, and not in single-pass
+         * mode, where a sheet's CRC32 is not known up front. Password protected workbooks
+         * are never indexed to the directory, so that their decrypted sheets are not left
+         * on disk.
+         * </p>
+         *
+         * @param sheetIndexDirectory directory to keep sheet indexes in
+         * @return reference to current {@code Builder}
+         */
+        public Builder sheetIndexDirectory(File sheetIndexDirectory) {
+            this.sheetIndexDirectory = sheetIndexDirectory;
+            return this;
+        }
+
+        /**
+         * The total size the sheet index directory may grow to before the least recently
+         * used entries are evicted.
+         * <p>
+         * Defaults to 10GB
+         * </p>
+         *
+         * @param sheetIndexDirectoryMaxSizeBytes maximum size in bytes
+         * @return reference to current {@code Builder}
+         */
+        public Builder sheetIndexDirectoryMaxSizeBytes(long sheetIndexDirectoryMaxSizeBytes) {
+            this.sheetIndexDirectoryMaxSizeBytes = sheetIndexDirectoryMaxSizeBytes;
+            return this;
+        }
+
+        /**
+         * How long an entry of the sheet index directory is kept after it was last used.
+         * <p>
+         * Defaults to 7 days
+         * </p>
+         *
+         * @param sheetIndexDirectoryMaxAgeMillis maximum age in milliseconds
+         * @return reference to current {@code Builder}
+         */
+        public Builder sheetIndexDirectoryMaxAgeMillis(long sheetIndexDirectoryMaxAgeMillis) {
+            this.sheetIndexDirectoryMaxAgeMillis = sheetIndexDirectoryMaxAgeMillis;
+            return this;
+        }
+
+        /**
+         * Spool the stream passed to {@link #open(InputStream)} to a temp file on a background
+         * thread, and start reading the workbook from that file while it is still being written.
+         * The archive is read in the order it is stored, as with {@link #singlePass(boolean)},
+         * so the first rows are available as soon as the first sheet has been received rather
+         * than after the whole input has been copied. The input is still drained at its own
+         * pace, independently of how fast the rows are consumed.
+         * <p>
+         * Unlike {@link #singlePass(boolean)}, no part is copied to a separate temp file:
+         * a sheet that precedes the parts it depends on, or that is passed over, is read
+         * back from the spooled file once the input has ended, and every sheet can be
+         * iterated more than once.
+         * <p>
+         * Not used for encrypted workbooks. The same options are ignored as with
+         * {@link #singlePass(boolean)}.
+         * <p>
+         * Defaults to false
+         * </p>
+         *
+         * @param pipelinedSpooling whether to read the temp file while it is being written
+         * @return reference to current {@code Builder}
+         */
+        public Builder pipelinedSpooling(boolean pipelinedSpooling) {
+            this.pipelinedSpooling = pipelinedSpooling;
+            return this;
+        }
+
+        /**
+         * Intern repeated inline string ({@code t="inlineStr"}) and formula string
+         * ({@code t="str"}) values. These cells do not go through the Shared Strings Table,
+         * so by default every occurrence is decoded into a new String. With this option each
+         * sheet keeps a bounded cache of up to this many decoded values keyed by their
+         * content, and repeated values share one instance. The hit rate is available from
+         * {@link org.rdlinux.xlsx.impl.StreamingSheet#getStringInterner()}.
+         * <p>
+         * Defaults to 0 (disabled)
+         * </p>
+         *
+         * @param stringInternCacheSize number of values to cache per sheet
+         * @return reference to current {@code Builder}
+         */
+        public Builder stringInternCacheSize(int stringInternCacheSize) {
+            this.stringInternCacheSize = stringInternCacheSize;
+            return this;
+        }
+
+        /**
+         * Store the Shared Strings Table in direct memory outside of the Java heap. Entries
+         * and their offsets are kept in direct buffers allocated in segments of up to 16MB
+         * as the table is read, so a large SST neither adds to GC pauses nor costs a file
+         * read per lookup. The memory is released when the workbook is closed.
+         * <p>
+         * Opening a workbook fails with a {@link org.rdlinux.xlsx.exceptions.ReadException}
+         * if the SST needs more than this many bytes. Note that direct memory is also capped
+         * by the JVM's {@code -XX:MaxDirectMemorySize}.
+         * <p>
+         * Only used if {@link #sstCacheSizeBytes(int)} is not set. Defaults to -1 (disabled)
+         * </p>
+         *
+         * @param sstOffHeapCapacityBytes maximum native memory for the SST
+         * @return reference to current {@code Builder}
+         */
+        public Builder sstOffHeapCapacityBytes(long sstOffHeapCapacityBytes) {
+            this.sstOffHeapCapacityBytes = sstOffHeapCapacityBytes;
+            return this;
+        }
+
+        /**
+         * Keep the Shared Strings Table compressed in memory instead of spilling it to disk.
+         * Entries are front coded in blocks of insertion order and deflated against a
+         * dictionary shared by the whole table; a block is inflated again when one of its
+         * entries is read, with a cache of decoded blocks on top, see
+         * {@link #sstCompressionCachedBlocks(int)}. SSTs made of long,
+         * repetitive strings typically shrink to a fraction of their size, at the cost of
+         * some CPU per lookup.
+         * <p>
+         * Only used if {@link #sstCacheSizeBytes(int)} is not set. Defaults to false
+         * </p>
+         *
+         * @param sstCompression whether to compress the in-memory SST
+         * @return reference to current {@code Builder}
+         */
+        public Builder sstCompression(boolean sstCompression) {
+            this.sstCompression = sstCompression;
+            return this;
+        }
+
+        /**
+         * The number of decoded blocks of 64 entries the compressed in-memory SST keeps.
+         * Blocks are cached by their position in the table, so sheets that read the SST
+         * in random order need a larger cache to avoid inflating the same blocks again.
+         * <p>
+         * Only used together with {@link #sstCompression(boolean)}. Defaults to 64
+         * </p>
+         *
+         * @param sstCompressionCachedBlocks the number of decoded blocks to keep
+         * @return reference to current {@code Builder}
+         */
+        public Builder sstCompressionCachedBlocks(int sstCompressionCachedBlocks) {
+            this.sstCompressionCachedBlocks = sstCompressionCachedBlocks;
+            return this;
+        }
+
+        /**
+         * Cache fixed 64KB pages of the SST cache file instead of individual strings. Strings
+         * are decoded straight from the cached page, so neighbouring SST entries, which are
+         * usually read together, cost a single read. The pool holds up to
+         * {@link #sstCacheSizeBytes(int)} bytes of pages.
+         * <p>
+         * Only used together with {@link #sstCacheSizeBytes(int)}. Defaults to false
+         * </p>
+         *
+         * @param sstPageCache whether to cache pages rather than entries
+         * @return reference to current {@code Builder}
+         */
+        public Builder sstPageCache(boolean sstPageCache) {
+            this.sstPageCache = sstPageCache;
+            return this;
+        }
+
+        /**
+         * When a page miss continues a sequential scan of the SST cache file, read the
+         * following page in the same call.
+         * <p>
+         * Only used together with {@link #sstPageCache(boolean)}. Defaults to false
+         * </p>
+         *
+         * @param sstPrefetch whether to read ahead
+         * @return reference to current {@code Builder}
+         */
+        public Builder sstPrefetch(boolean sstPrefetch) {
+            this.sstPrefetch = sstPrefetch;
+            return this;
+        }
+
+        /**
+         * Keep SST cache files in the given directory so they can be reused by later opens of
+         * the same workbook. Entries are keyed by the CRC32 and size of the sharedStrings part
+         * as recorded in the ZIP central directory, and an unchanged SST is then memory-mapped
+         * from the directory instead of being parsed again.
+         * <p>
+         * Only used together with {@link #sstCacheSizeBytes(int)}, and not when the SST is
+         * restricted with {@link #sstSheets(String...)}. Password protected workbooks are never
+         * cached, so that their decrypted strings are not left on disk.
+         * </p>
+         *
+         * @param sstCacheDirectory directory to keep SST cache files in
+         * @return reference to current {@code Builder}
+         */
+        public Builder sstCacheDirectory(File sstCacheDirectory) {
+            this.sstCacheDirectory = sstCacheDirectory;
+            return this;
+        }
+
+        /**
+         * The total size the SST cache directory may grow to before the least recently
+         * used entries are evicted.
+         * <p>
+         * Defaults to 1GB
+         * </p>
+         *
+         * @param sstCacheDirectoryMaxSizeBytes maximum size in bytes
+         * @return reference to current {@code Builder}
+         */
+        public Builder sstCacheDirectoryMaxSizeBytes(long sstCacheDirectoryMaxSizeBytes) {
+            this.sstCacheDirectoryMaxSizeBytes = sstCacheDirectoryMaxSizeBytes;
+            return this;
+        }
+
+        /**
+         * How long an entry of the SST cache directory is kept after it was last used.
+         * <p>
+         * Defaults to 7 days
+         * </p>
+         *
+         * @param sstCacheDirectoryMaxAgeMillis maximum age in milliseconds
+         * @return reference to current {@code Builder}
+         */
+        public Builder sstCacheDirectoryMaxAgeMillis(long sstCacheDirectoryMaxAgeMillis) {
+            this.sstCacheDirectoryMaxAgeMillis = sstCacheDirectoryMaxAgeMillis;
+            return this;
+        }
+
+        /**
+         * Restrict the Shared Strings Table to the entries referenced by the given sheets.
+         * Before the SST is loaded, each named sheet is scanned once for the SST indices it
+         * uses and only those entries are kept, either in memory or in the SST cache file
+         * if {@link #sstCacheSizeBytes(int)} is set. Memory and disk use then scale with the
+         * sheets being read rather than with the whole workbook.
+         * <p>
+         * String cells of any other sheet cannot be resolved and will throw a
+         * {@code ReadException} when read.
+         * </p>
+         *
+         * @param sheetNames names of the sheets that will be read
+         * @return reference to current {@code Builder}
+         */
+        public Builder sstSheets(String... sheetNames) {
+            this.sstSheets = new HashSet<>(Arrays.asList(sheetNames));
+            return this;
+        }
+
+        /**
+         * Parse the Shared Strings Table on a background thread instead of before the
+         * workbook is returned. Sheets can be read straight away, and reading a string cell
+         * only waits if its SST entry has not been parsed yet. As sheets usually reference
+         * the first SST entries first, most rows never wait.
+         * <p>
+         * Defaults to false
+         * </p>
+         *
+         * @param asyncSstLoading whether to load the SST in the background
+         * @return reference to current {@code Builder}
+         */
+        public Builder asyncSstLoading(boolean asyncSstLoading) {
+            this.asyncSstLoading = asyncSstLoading;
+            return this;
+        }
+
         /**
          * Reads a given {@code InputStream} and returns a new
          * instance of {@code Workbook}. Due to Apache POI
@@ -268,6 +900,58 @@ public class StreamingReader implements Iterable<Row>, AutoCloseable {
             return new StreamingWorkbook(workbook);
         }
 
+        /**
+         * Reads a workbook that is already in memory and returns a new instance of
+         * {@code Workbook}. The ZIP entries are read directly from the buffer, so no
+         * temporary file is written. The buffer must not be modified until the workbook
+         * is closed.
+         * <p>
+         * Encrypted workbooks, and the options {@link #sstSheets(String...)},
+         * {@link #asyncSstLoading(boolean)} and {@link #sstCacheDirectory(File)}, need the
+         * workbook as a file: the buffer is then copied to a temp file and read like
+         * {@link #open(File)}.
+         *
+         * @param buffer the workbook, from the buffer's position to its limit
+         * @return A {@link Workbook} that can be read from
+         * @throws OpenException if the buffer does not hold a workbook
+         * @throws ReadException if there is an issue reading the workbook
+         */
+        public Workbook open(ByteBuffer buffer) {
+            StreamingWorkbookReader workbook = new StreamingWorkbookReader(this);
+            workbook.init(buffer);
+            return new StreamingWorkbook(workbook);
+        }
+
+        /**
+         * Reads a workbook that is already in memory and returns a new instance of
+         * {@code Workbook}. See {@link #open(ByteBuffer)}.
+         *
+         * @param bytes the workbook
+         * @return A {@link Workbook} that can be read from
+         * @throws OpenException if the array does not hold a workbook
+         * @throws ReadException if there is an issue reading the workbook
+         */
+        public Workbook open(byte[] bytes) {
+            return this.open(ByteBuffer.wrap(bytes));
+        }
+
+        /**
+         * Memory-maps a given file and returns a new instance of {@code Workbook}. The
+         * ZIP entries are read directly from the mapping. Files larger than 2GB, encrypted
+         * workbooks, and the options listed at {@link #open(ByteBuffer)} read the file
+         * like {@link #open(File)} instead.
+         *
+         * @param path file to read in
+         * @return A {@link Workbook} that can be read from
+         * @throws OpenException if there is an issue opening the file
+         * @throws ReadException if there is an issue reading the file
+         */
+        public Workbook open(Path path) {
+            StreamingWorkbookReader workbook = new StreamingWorkbookReader(this);
+            workbook.init(path);
+            return new StreamingWorkbook(workbook);
+        }
+
         /**
          * Reads a given {@code InputStream} and returns a new
          * instance of {@code StreamingReader}. Due to Apache POI
@@ -310,20 +994,18 @@ public class StreamingReader implements Iterable<Row>, AutoCloseable {
          * @deprecated This method will be removed in a future release. Use {@link Builder#open(File)} instead
          */
         public StreamingReader read(File f) {
+            File decrypted = null;
             try {
                 OPCPackage pkg;
                 if (this.password != null) {
-                    // Based on: https://poi.apache.org/encryption.html
-                    POIFSFileSystem poifs = new POIFSFileSystem(f);
-                    EncryptionInfo info = new EncryptionInfo(poifs);
-                    Decryptor d = Decryptor.getInstance(info);
-                    d.verifyPassword(this.password);
-                    pkg = OPCPackage.open(d.getDataStream(poifs));
+                    decrypted = writeDecryptedPackageToFile(f, this.password, this.bufferSize, this.decryptionThreads,
+                            this.derivedKeyCache);
+                    StreamingReader.log.debug("Created decrypted temp file [" + decrypted.getAbsolutePath() + "]");
+                    pkg = OPCPackage.open(decrypted, PackageAccess.READ);
                 } else {
                     pkg = OPCPackage.open(f);
                 }
 
-                boolean use1904Dates = false;
                 XSSFReader reader = new XSSFReader(pkg);
 
                 SharedStringsTable sst;
@@ -337,42 +1019,50 @@ public class StreamingReader implements Iterable<Row>, AutoCloseable {
                 }
 
                 StylesTable styles = reader.getStylesTable();
-                NodeList workbookPr = searchForNodeList(document(reader.getWorkbookData()), "/ss:workbook/ss:workbookPr");
-                if (workbookPr.getLength() == 1) {
-                    final Node date1904 = workbookPr.item(0).getAttributes().getNamedItem("date1904");
-                    if (date1904 != null) {
-                        use1904Dates = ("1".equals(date1904.getTextContent()));
-                    }
-                }
-                InputStream sheet = this.findSheet(reader);
+                WorkbookMetadata metadata = WorkbookMetadata.read(reader.getWorkbookData());
+                boolean use1904Dates = metadata.isDate1904();
+                InputStream sheet = this.findSheet(reader, metadata);
                 if (sheet == null) {
                     throw new MissingSheetException("Unable to find sheet at index [" + this.sheetIndex + "]");
                 }
 
                 XMLEventReader parser = StaxHelper.newXMLInputFactory().createXMLEventReader(sheet);
 
-                return new StreamingReader(new StreamingWorkbookReader(sst, sstCache, pkg, new StreamingSheetReader(sst, styles, parser, use1904Dates, this.rowCacheSize),
+                StreamingReader r = new StreamingReader(new StreamingWorkbookReader(sst, sstCache, pkg, new StreamingSheetReader(sst, styles, parser, use1904Dates, this.rowCacheSize),
                         this));
+                r.decrypted = decrypted;
+                return r;
             } catch (IOException e) {
+                deleteQuietly(decrypted);
                 throw new OpenException("Failed to open file", e);
             } catch (OpenXML4JException | XMLStreamException e) {
+                deleteQuietly(decrypted);
                 throw new ReadException("Unable to read workbook", e);
             } catch (GeneralSecurityException e) {
+                deleteQuietly(decrypted);
                 throw new ReadException("Unable to read workbook - Decryption failed", e);
+            } catch (RuntimeException e) {
+                deleteQuietly(decrypted);
+                throw e;
+            }
+        }
+
+        private static void deleteQuietly(File f) {
+            if (f != null) {
+                f.delete();
             }
         }
 
         /**
          * @deprecated This will be removed when the transition to the 1.x API is complete
          */
-        private InputStream findSheet(XSSFReader reader) throws IOException, InvalidFormatException {
+        private InputStream findSheet(XSSFReader reader, WorkbookMetadata metadata) throws IOException, InvalidFormatException {
             int index = this.sheetIndex;
             if (this.sheetName != null) {
                 index = -1;
-                //This file is separate from the worksheet data, and should be fairly small
-                NodeList nl = searchForNodeList(document(reader.getWorkbookData()), "/ss:workbook/ss:sheets/ss:sheet");
-                for (int i = 0; i < nl.getLength(); i++) {
-                    if (Objects.equals(nl.item(i).getAttributes().getNamedItem("name").getTextContent(), this.sheetName)) {
+                List<WorkbookMetadata.SheetEntry> sheets = metadata.getSheets();
+                for (int i = 0; i < sheets.size(); i++) {
+                    if (Objects.equals(sheets.get(i).getName(), this.sheetName)) {
                         index = i;
                     }
                 }
@@ -0,0 +1,165 @@
+package org.rdlinux.xlsx.impl;
+
+import org.apache.poi.poifs.crypt.CryptoFunctions;
+import org.apache.poi.poifs.crypt.Decryptor;
+import org.apache.poi.poifs.crypt.EncryptionHeader;
+import org.apache.poi.poifs.filesystem.DocumentInputStream;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.util.LittleEndian;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Decrypts the package of an Agile encrypted workbook on several threads.
+ * <p>
+ * Agile encryption splits the package into segments of 4096 bytes, each encrypted
+ * with an IV derived from the segment's index, so that segments can be decrypted
+ * independently. The encrypted package is read sequentially in batches of segments,
+ * the batches are decrypted by a pool of workers and written to their position in
+ * the output file. The number of batches in flight is bounded, which bounds memory
+ * use independently of the size of the workbook.
+ */
+class AgileSegmentDecryptor {
+    private static final int SEGMENT_LENGTH = 4096;
+    private static final int SEGMENTS_PER_BATCH = 256;
+
+    private final EncryptionHeader header;
+    private final SecretKey key;
+    private final int threads;
+
+    /**
+     * @param header  the encryption header of the workbook
+     * @param key     the secret key, as derived by a verified {@link Decryptor}
+     * @param threads the number of worker threads
+     */
+    AgileSegmentDecryptor(EncryptionHeader header, SecretKey key, int threads) {
+        this.header = header;
+        this.key = key;
+        this.threads = threads;
+    }
+
+    /**
+     * Decrypts the encrypted package of a workbook into a file.
+     *
+     * @param poifs the file system of the encrypted workbook
+     * @param out   the file to write the decrypted package to
+     */
+    void decrypt(POIFSFileSystem poifs, File out) throws IOException, GeneralSecurityException {
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "xlsx-decryptor");
+            t.setDaemon(true);
+            return t;
+        });
+        Semaphore inFlight = new Semaphore(this.threads * 2);
+        Deque<Future<Void>> pending = new ArrayDeque<>();
+        try (
+                DocumentInputStream in = poifs.createDocumentInputStream(Decryptor.DEFAULT_POIFS_ENTRY);
+                FileChannel channel = FileChannel.open(out.toPath(), StandardOpenOption.WRITE)
+        ) {
+            long size = in.readLong();
+            long position = 0;
+            int segment = 0;
+            while (position < size) {
+                int length = (int) Math.min((long) SEGMENT_LENGTH * SEGMENTS_PER_BATCH, size - position);
+                byte[] batch = new byte[this.roundToBlock(length)];
+                in.readFully(batch);
+
+                acquire(inFlight);
+                int firstSegment = segment;
+                long batchPosition = position;
+                pending.add(pool.submit(() -> {
+                    try {
+                        this.decryptBatch(batch, firstSegment);
+                        ByteBuffer data = ByteBuffer.wrap(batch, 0, length);
+                        long at = batchPosition;
+                        while (data.hasRemaining()) {
+                            at += channel.write(data, at);
+                        }
+                        return null;
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+                while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+                    await(pending.pollFirst());
+                }
+
+                position += length;
+                segment += SEGMENTS_PER_BATCH;
+            }
+            while (!pending.isEmpty()) {
+                await(pending.pollFirst());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void decryptBatch(byte[] batch, int firstSegment) throws GeneralSecurityException {
+        Cipher cipher = null;
+        for (int offset = 0, segment = firstSegment; offset < batch.length; offset += SEGMENT_LENGTH, segment++) {
+            byte[] blockKey = new byte[LittleEndian.INT_SIZE];
+            LittleEndian.putInt(blockKey, 0, segment);
+            byte[] iv = CryptoFunctions.generateIv(this.header.getHashAlgorithm(), this.header.getKeySalt(),
+                    blockKey, this.header.getBlockSize());
+            if (cipher == null) {
+                cipher = CryptoFunctions.getCipher(this.key, this.header.getCipherAlgorithm(),
+                        this.header.getChainingMode(), iv, Cipher.DECRYPT_MODE, "NoPadding");
+            } else {
+                cipher.init(Cipher.DECRYPT_MODE, this.key, new IvParameterSpec(iv));
+            }
+            cipher.doFinal(batch, offset, Math.min(SEGMENT_LENGTH, batch.length - offset), batch, offset);
+        }
+    }
+
+    /**
+     * The last segment is padded to the block size of the cipher.
+     */
+    private int roundToBlock(int length) {
+        int blockSize = this.header.getBlockSize();
+        return (length + blockSize - 1) / blockSize * blockSize;
+    }
+
+    private static void acquire(Semaphore semaphore) throws IOException {
+        try {
+            semaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decrypting", e);
+        }
+    }
+
+    private static void await(Future<Void> future) throws IOException, GeneralSecurityException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decrypting", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Decryption failed", cause);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.rdlinux.xlsx.impl;
+
+import org.apache.poi.xssf.model.SharedStringsTable;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.model.ThemesTable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the parts of a workbook from a {@link PartArchive}, resolving them through
+ * the package relationships instead of an {@code OPCPackage}.
+ */
+class ArchivePackage implements SheetParts, Closeable {
+    private final PartArchive archive;
+
+    private WorkbookMetadata workbook;
+    private PackageRelationships relationships;
+    private CellStyles styles;
+    private SharedStringsTable sst;
+
+    ArchivePackage(PartArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Reads the workbook, its relationships, the styles and the shared strings table.
+     *
+     * @param sstLoader         loads the shared strings table
+     * @param lightweightStyles whether to read the styles with {@link LightweightStylesTable}
+     * @param stylesCache       the cache of lightweight styles, or null
+     * @throws IOException if a part could not be read or the archive holds no workbook
+     */
+    void open(PartLoader<SharedStringsTable> sstLoader, boolean lightweightStyles, StylesCache stylesCache)
+            throws IOException {
+        String workbookPath;
+        try (InputStream in = this.requirePart(PackageRelationships.ROOT_RELS)) {
+            workbookPath = PackageRelationships.findWorkbook(in);
+        }
+        if (workbookPath == null) {
+            throw new IOException("Package does not contain a workbook");
+        }
+        try (InputStream in = this.requirePart(workbookPath)) {
+            this.workbook = WorkbookMetadata.read(in);
+        }
+        try (InputStream in = this.requirePart(PackageRelationships.relationshipsPath(workbookPath))) {
+            this.relationships = new PackageRelationships(workbookPath, in);
+        }
+
+        if (lightweightStyles) {
+            this.styles = CellStyles.of(null);
+            String stylesPath = this.relationships.getStylesPath();
+            try (InputStream in = this.getPart(stylesPath)) {
+                if (in != null) {
+                    this.styles = LightweightStylesTable.read(in, this::loadStylesTable, stylesCache,
+                            this.archive.getPartKey(stylesPath));
+                }
+            }
+        } else {
+            this.styles = CellStyles.of(this.loadStylesTable());
+        }
+        try (InputStream in = this.getPart(this.relationships.getSstPath())) {
+            if (in != null) {
+                this.sst = sstLoader.load(in);
+            }
+        }
+    }
+
+    WorkbookMetadata getWorkbook() {
+        return this.workbook;
+    }
+
+    /**
+     * @return the styles of the workbook, empty if it has none
+     */
+    CellStyles getStyles() {
+        return this.styles;
+    }
+
+    SharedStringsTable getSharedStrings() {
+        return this.sst;
+    }
+
+    /**
+     * Reads the styles part into a full {@link StylesTable}, with the workbook's theme.
+     *
+     * @return the styles, or null if the workbook has none
+     */
+    private StylesTable loadStylesTable() throws IOException {
+        ThemesTable theme = null;
+        try (InputStream in = this.getPart(this.relationships.getThemePath())) {
+            if (in != null) {
+                theme = new ThemesTable(in);
+            }
+        }
+        try (InputStream in = this.getPart(this.relationships.getStylesPath())) {
+            if (in == null) {
+                return null;
+            }
+            StylesTable styles = new StylesTable(in);
+            if (theme != null) {
+                styles.setTheme(theme);
+            }
+            return styles;
+        }
+    }
+
+    @Override
+    public String getSheetPath(String relationshipId) {
+        return this.relationships.getTarget(relationshipId);
+    }
+
+    @Override
+    public InputStream openSheet(String path) throws IOException {
+        return this.requirePart(path);
+    }
+
+    @Override
+    public String getPartKey(String path) {
+        return this.archive.getPartKey(path);
+    }
+
+    private InputStream getPart(String path) throws IOException {
+        return path == null ? null : this.archive.getPart(path);
+    }
+
+    private InputStream requirePart(String path) throws IOException {
+        InputStream in = this.archive.getPart(path);
+        if (in == null) {
+            throw new IOException("Package does not contain part [" + path + "]");
+        }
+        return in;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.archive.close();
+    }
+}
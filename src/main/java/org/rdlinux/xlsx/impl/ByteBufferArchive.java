@@ -0,0 +1,300 @@
+package org.rdlinux.xlsx.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * {@link PartArchive} over a ZIP archive that is already in memory or mapped from a
+ * file. The central directory is read from the buffer once, and entries are read
+ * from slices of the buffer: stored entries directly, deflated entries through an
+ * {@link Inflater} that takes its input straight from the backing array of heap
+ * buffers. Nothing is copied to a temp file.
+ */
+class ByteBufferArchive implements PartArchive {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final ByteBuffer buffer;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * @param buffer the archive, from its position to its limit
+     * @throws IOException if the buffer does not hold a ZIP archive
+     */
+    ByteBufferArchive(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        this.readCentralDirectory();
+    }
+
+    private void readCentralDirectory() throws IOException {
+        ByteBuffer b = this.buffer;
+        int eocd = -1;
+        for (int i = b.limit() - 22; i >= Math.max(0, b.limit() - 22 - 0xFFFF); i--) {
+            if (b.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("Not a ZIP archive: no end of central directory record");
+        }
+        long count = b.getShort(eocd + 10) & 0xFFFF;
+        long offset = b.getInt(eocd + 16) & 0xFFFFFFFFL;
+        if ((count == 0xFFFF || offset == 0xFFFFFFFFL) && eocd >= 20 && b.getInt(eocd - 20) == ZIP64_LOCATOR) {
+            int zip64 = this.position(b.getLong(eocd - 20 + 8));
+            if (b.getInt(zip64) != ZIP64_END_OF_CENTRAL_DIRECTORY) {
+                throw new IOException("Corrupt ZIP64 end of central directory record");
+            }
+            count = b.getLong(zip64 + 32);
+            offset = b.getLong(zip64 + 48);
+        }
+
+        int pos = this.position(offset);
+        for (long i = 0; i < count; i++) {
+            if (b.getInt(pos) != CENTRAL_HEADER) {
+                throw new IOException("Corrupt ZIP central directory");
+            }
+            int method = b.getShort(pos + 10) & 0xFFFF;
+            long crc = b.getInt(pos + 16) & 0xFFFFFFFFL;
+            long compressedSize = b.getInt(pos + 20) & 0xFFFFFFFFL;
+            long size = b.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLength = b.getShort(pos + 28) & 0xFFFF;
+            int extraLength = b.getShort(pos + 30) & 0xFFFF;
+            int commentLength = b.getShort(pos + 32) & 0xFFFF;
+            long localOffset = b.getInt(pos + 42) & 0xFFFFFFFFL;
+
+            // ZIP64 extended information, holding the fields that did not fit
+            int extra = pos + 46 + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = b.getShort(extra) & 0xFFFF;
+                int length = b.getShort(extra + 2) & 0xFFFF;
+                if (id == 0x0001) {
+                    int field = extra + 4;
+                    if (size == 0xFFFFFFFFL) {
+                        size = b.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xFFFFFFFFL) {
+                        compressedSize = b.getLong(field);
+                        field += 8;
+                    }
+                    if (localOffset == 0xFFFFFFFFL) {
+                        localOffset = b.getLong(field);
+                    }
+                }
+                extra += 4 + length;
+            }
+
+            String name = this.string(pos + 46, nameLength);
+            if (!name.endsWith("/")) {
+                this.entries.put(PackageRelationships.normalize(name),
+                        new Entry(method, localOffset, compressedSize, crc, size));
+            }
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    private int position(long offset) throws IOException {
+        if (offset < 0 || offset >= this.buffer.limit()) {
+            throw new IOException("Corrupt ZIP archive: offset " + offset + " is out of bounds");
+        }
+        return (int) offset;
+    }
+
+    private String string(int pos, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer b = this.buffer.duplicate();
+        b.position(pos);
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public InputStream getPart(String name) throws IOException {
+        Entry entry = this.entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        int header = this.position(entry.localOffset);
+        if (this.buffer.getInt(header) != LOCAL_HEADER) {
+            throw new IOException("Corrupt ZIP local header for [" + name + "]");
+        }
+        long start = header + 30L + (this.buffer.getShort(header + 26) & 0xFFFF)
+                + (this.buffer.getShort(header + 28) & 0xFFFF);
+        if (start + entry.compressedSize > this.buffer.limit()) {
+            throw new IOException("Corrupt ZIP archive: entry [" + name + "] is truncated");
+        }
+        ByteBuffer data = this.buffer.duplicate();
+        data.position((int) start);
+        data.limit((int) (start + entry.compressedSize));
+        data = data.slice();
+
+        switch (entry.method) {
+            case STORED:
+                return new ByteBufferInputStream(data);
+            case DEFLATED:
+                return new InflatingInputStream(data);
+            default:
+                throw new IOException("Unsupported compression method " + entry.method + " for [" + name + "]");
+        }
+    }
+
+    @Override
+    public String getPartKey(String name) {
+        Entry entry = this.entries.get(name);
+        return entry == null ? null : StylesCache.key(entry.crc, entry.size);
+    }
+
+    @Override
+    public void close() {
+        this.entries.clear();
+    }
+
+    private static class Entry {
+        final int method;
+        final long localOffset;
+        final long compressedSize;
+        final long crc;
+        final long size;
+
+        Entry(int method, long localOffset, long compressedSize, long crc, long size) {
+            this.method = method;
+            this.localOffset = localOffset;
+            this.compressedSize = compressedSize;
+            this.crc = crc;
+            this.size = size;
+        }
+    }
+
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer data;
+
+        ByteBufferInputStream(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            return this.data.hasRemaining() ? this.data.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!this.data.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, this.data.remaining());
+            this.data.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, this.data.remaining()));
+            this.data.position(this.data.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return this.data.remaining();
+        }
+    }
+
+    /**
+     * Inflates a raw deflate stream held in a buffer slice. Heap buffers are handed to the
+     * inflater as they are; direct buffers are fed through a small reusable array.
+     */
+    private static class InflatingInputStream extends InputStream {
+        private final ByteBuffer data;
+        private final Inflater inflater = new Inflater(true);
+        private byte[] chunk;
+        private boolean dummyByteSent;
+        private boolean closed;
+
+        InflatingInputStream(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                int n;
+                while ((n = this.inflater.inflate(b, off, len)) == 0) {
+                    if (this.inflater.finished()) {
+                        return -1;
+                    }
+                    if (this.inflater.needsDictionary()) {
+                        throw new IOException("Unexpected preset dictionary in ZIP entry");
+                    }
+                    if (this.inflater.needsInput()) {
+                        this.fill();
+                    }
+                }
+                return n;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt ZIP entry", e);
+            }
+        }
+
+        private void fill() throws IOException {
+            if (!this.data.hasRemaining()) {
+                // raw inflaters may need one extra byte to detect the end of the stream
+                if (this.dummyByteSent) {
+                    throw new IOException("Unexpected end of ZIP entry");
+                }
+                this.dummyByteSent = true;
+                this.inflater.setInput(new byte[1]);
+                return;
+            }
+            if (this.data.hasArray()) {
+                this.inflater.setInput(this.data.array(), this.data.arrayOffset() + this.data.position(),
+                        this.data.remaining());
+                this.data.position(this.data.limit());
+            } else {
+                if (this.chunk == null) {
+                    this.chunk = new byte[64 * 1024];
+                }
+                int n = Math.min(this.chunk.length, this.data.remaining());
+                this.data.get(this.chunk, 0, n);
+                this.inflater.setInput(this.chunk, 0, n);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!this.closed) {
+                this.closed = true;
+                this.inflater.end();
+            }
+        }
+    }
+}
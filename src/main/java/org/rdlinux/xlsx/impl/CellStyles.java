@@ -0,0 +1,36 @@
+package org.rdlinux.xlsx.impl;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.xssf.model.StylesTable;
+
+/**
+ * The cell styles of a workbook, by their index in {@code cellXfs}.
+ */
+interface CellStyles {
+
+    /**
+     * @param index the index of a cell format
+     * @return the style, or null if there is no cell format at that index
+     */
+    CellStyle getStyleAt(int index);
+
+    int getNumCellStyles();
+
+    /**
+     * @param stylesTable the styles of a workbook, or null if it has none
+     * @return the styles of the table
+     */
+    static CellStyles of(StylesTable stylesTable) {
+        return new CellStyles() {
+            @Override
+            public CellStyle getStyleAt(int index) {
+                return stylesTable == null ? null : stylesTable.getStyleAt(index);
+            }
+
+            @Override
+            public int getNumCellStyles() {
+                return stylesTable == null ? 0 : stylesTable.getNumCellStyles();
+            }
+        };
+    }
+}
@@ -0,0 +1,171 @@
+package org.rdlinux.xlsx.impl;
+
+import org.apache.poi.poifs.crypt.Decryptor;
+import org.apache.poi.poifs.crypt.EncryptionInfo;
+import org.apache.poi.poifs.crypt.EncryptionVerifier;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, in-process cache of the keys derived from the passwords of encrypted
+ * workbooks. Deriving a key runs the hash of the password as many times as the
+ * workbook's spin count asks for, 100,000 times for Agile encryption, which a
+ * workbook that is opened again and again pays on every open.
+ * <p>
+ * Entries are keyed by an HMAC-SHA256 of the verifier's salt, spin count and
+ * algorithms, the encrypted key and the password, under a secret that is drawn at
+ * random for every cache. The password is not kept, and a map key cannot be used to
+ * test guesses at the password without that secret. The cache does hold the derived
+ * keys, which decrypt their workbooks, so it must be protected like the passwords
+ * themselves. A hit is only possible for the same encrypted key, salt and password,
+ * which is exactly when the derived key is the same. Entries expire
+ * after a fixed time and the least recently used entry is evicted when the cache
+ * is full. Instances are thread safe and are meant to be shared by the builders
+ * of an application.
+ */
+public class DerivedKeyCache {
+    private static final String HMAC = "HmacSHA256";
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<ByteBuffer, Entry> entries;
+    private final SecretKeySpec secret;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxEntries the maximum number of cached keys
+     * @param ttlMillis  the time after which a cached key expires
+     */
+    public DerivedKeyCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+                return this.size() > DerivedKeyCache.this.maxEntries;
+            }
+        };
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.secret = new SecretKeySpec(secret, HMAC);
+    }
+
+    /**
+     * Returns a decryptor that has verified the password, deriving its key only if
+     * it is not cached.
+     *
+     * @param info     the encryption info of the workbook
+     * @param password the password to verify
+     * @return the decryptor, or null if the password is incorrect
+     * @throws GeneralSecurityException if the key could not be derived
+     */
+    Decryptor unlock(EncryptionInfo info, String password) throws GeneralSecurityException {
+        ByteBuffer key = this.key(info, password);
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Entry entry = this.entries.get(key);
+            if (entry != null && entry.expires > now) {
+                this.hits++;
+                Decryptor d = entry.decryptor.copy();
+                d.setEncryptionInfo(info);
+                return d;
+            }
+            if (entry != null) {
+                this.entries.remove(key);
+            }
+            this.misses++;
+        }
+
+        Decryptor d = Decryptor.getInstance(info);
+        if (!d.verifyPassword(password)) {
+            return null;
+        }
+        synchronized (this) {
+            this.entries.put(key, new Entry(d.copy(), now + this.ttlMillis));
+        }
+        return d;
+    }
+
+    private ByteBuffer key(EncryptionInfo info, String password) throws GeneralSecurityException {
+        EncryptionVerifier verifier = info.getVerifier();
+        Mac digest = Mac.getInstance(HMAC);
+        digest.init(this.secret);
+        digest.update(info.getEncryptionMode().name().getBytes(StandardCharsets.UTF_8));
+        update(digest, verifier.getSalt());
+        digest.update(ByteBuffer.allocate(4).putInt(verifier.getSpinCount()).array());
+        digest.update(String.valueOf(verifier.getCipherAlgorithm()).getBytes(StandardCharsets.UTF_8));
+        digest.update(String.valueOf(verifier.getHashAlgorithm()).getBytes(StandardCharsets.UTF_8));
+        update(digest, verifier.getEncryptedKey());
+        update(digest, verifier.getEncryptedVerifierHash());
+        update(digest, password.getBytes(StandardCharsets.UTF_8));
+        return ByteBuffer.wrap(digest.doFinal());
+    }
+
+    private static void update(Mac digest, byte[] bytes) {
+        if (bytes == null) {
+            digest.update(ByteBuffer.allocate(4).putInt(-1).array());
+        } else {
+            digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+            digest.update(bytes);
+        }
+    }
+
+    /**
+     * Removes all cached keys.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * Removes the cached keys that have expired.
+     */
+    public synchronized void evictExpired() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> it = this.entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().expires <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of cached keys, including expired ones that have not been evicted yet
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the number of opens that found their key in the cache
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * @return the number of opens that had to derive their key
+     */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    private static class Entry {
+        final Decryptor decryptor;
+        final long expires;
+
+        Entry(Decryptor decryptor, long expires) {
+            this.decryptor = decryptor;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,554 @@
+package org.rdlinux.xlsx.impl;
+
+import org.apache.poi.ss.usermodel.BorderStyle;
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Color;
+import org.apache.poi.ss.usermodel.FillPatternType;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
+import org.apache.poi.ss.usermodel.VerticalAlignment;
+import org.apache.poi.util.StaxHelper;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.rdlinux.xlsx.exceptions.NotSupportedException;
+import org.rdlinux.xlsx.exceptions.ParseException;
+import org.rdlinux.xlsx.exceptions.ReadException;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cell styles read from {@code styles.xml} in a single streaming pass that keeps
+ * only the number formats and the number format of every cell format, which is
+ * all that formatting cell values needs. Styles are {@link CellStyle}s that answer
+ * {@link CellStyle#getDataFormat()} and {@link CellStyle#getDataFormatString()}
+ * themselves; any other property is read from a full {@link StylesTable} that is
+ * only built, once, when the first such property is asked for.
+ * <p>
+ * Styles are read-only, their setters throw {@link NotSupportedException}.
+ */
+class LightweightStylesTable implements CellStyles {
+
+    /**
+     * Builds the full styles table of the workbook.
+     */
+    interface Loader {
+        StylesTable load() throws IOException;
+    }
+
+    private final Formats formats;
+    private final CellStyle[] styles;
+    private final Loader loader;
+    private StylesTable full;
+
+    LightweightStylesTable(Formats formats, Loader loader) {
+        this.formats = formats;
+        this.styles = new CellStyle[formats.cellFormats.length];
+        this.loader = loader;
+    }
+
+    /**
+     * @param is     the styles part
+     * @param loader builds the full styles table when a style property other than
+     *               its number format is read
+     * @return the styles of the part
+     * @throws ParseException if the part is not well-formed XML or declares a DOCTYPE
+     */
+    static LightweightStylesTable read(InputStream is, Loader loader) {
+        return new LightweightStylesTable(Formats.read(is), loader);
+    }
+
+    /**
+     * Reads the styles part unless a cache holds the formats of an identical part.
+     *
+     * @param is     the styles part, not read if its formats are cached
+     * @param loader builds the full styles table when a style property other than
+     *               its number format is read
+     * @param cache  the cache of formats, or null
+     * @param key    the key of the part in the cache, see {@link StylesCache#key(long, long)},
+     *               or null if the part cannot be identified
+     * @return the styles of the part
+     * @throws ParseException if the part is not well-formed XML or declares a DOCTYPE
+     */
+    static LightweightStylesTable read(InputStream is, Loader loader, StylesCache cache, String key) {
+        if (cache == null || key == null) {
+            return read(is, loader);
+        }
+        Formats formats = cache.get(key);
+        if (formats == null) {
+            formats = Formats.read(is);
+            cache.put(key, formats);
+        }
+        return new LightweightStylesTable(formats, loader);
+    }
+
+    @Override
+    public CellStyle getStyleAt(int index) {
+        if (index < 0 || index >= this.formats.cellFormats.length) {
+            return null;
+        }
+        CellStyle style = this.styles[index];
+        if (style == null) {
+            style = new LightweightCellStyle(index);
+            this.styles[index] = style;
+        }
+        return style;
+    }
+
+    @Override
+    public int getNumCellStyles() {
+        return this.formats.cellFormats.length;
+    }
+
+    /**
+     * @return whether the full styles table has been built
+     */
+    synchronized boolean isFullTableLoaded() {
+        return this.full != null;
+    }
+
+    /**
+     * @return the full styles table, built on first use
+     * @throws ReadException if the styles could not be read
+     */
+    synchronized StylesTable getFullTable() {
+        if (this.full == null) {
+            try {
+                this.full = this.loader.load();
+            } catch (IOException e) {
+                throw new ReadException("Unable to read styles", e);
+            }
+        }
+        return this.full;
+    }
+
+    /**
+     * The number formats of a styles part and the number format of each of its cell
+     * formats. Immutable, so that it can be shared by workbooks with identical styles.
+     */
+    static final class Formats {
+        private final Map<Integer, String> numberFormats;
+        private final short[] cellFormats;
+
+        private Formats(Map<Integer, String> numberFormats, short[] cellFormats) {
+            this.numberFormats = numberFormats;
+            this.cellFormats = cellFormats;
+        }
+
+        /**
+         * @param is the styles part
+         * @return the formats of the part
+         * @throws ParseException if the part is not well-formed XML or declares a DOCTYPE
+         */
+        static Formats read(InputStream is) {
+            Map<Integer, String> numberFormats = new HashMap<>();
+            short[] cellFormats = new short[16];
+            int count = 0;
+            XMLStreamReader reader = null;
+            try {
+                reader = StaxHelper.newXMLInputFactory().createXMLStreamReader(is);
+                int depth = 0;
+                String parent = null;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.DTD) {
+                        throw new ParseException("DOCTYPE is not allowed in the styles part");
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        depth--;
+                        if (depth == 1) {
+                            parent = null;
+                        }
+                        continue;
+                    } else if (event != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    depth++;
+                    String name = reader.getLocalName();
+                    if (depth == 2) {
+                        parent = name;
+                    } else if (depth == 3 && "numFmts".equals(parent) && "numFmt".equals(name)) {
+                        numberFormats.put(Integer.parseInt(reader.getAttributeValue(null, "numFmtId").trim()),
+                                reader.getAttributeValue(null, "formatCode"));
+                    } else if (depth == 3 && "cellXfs".equals(parent) && "xf".equals(name)) {
+                        String numFmtId = reader.getAttributeValue(null, "numFmtId");
+                        if (count == cellFormats.length) {
+                            short[] grown = new short[count * 2];
+                            System.arraycopy(cellFormats, 0, grown, 0, count);
+                            cellFormats = grown;
+                        }
+                        cellFormats[count++] = numFmtId == null ? 0 : (short) Integer.parseInt(numFmtId.trim());
+                    }
+                }
+            } catch (XMLStreamException | NumberFormatException e) {
+                throw new ParseException("Unable to parse styles part", e);
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (XMLStreamException e) {
+                        // nothing was written, nothing to lose
+                    }
+                }
+            }
+            short[] trimmed = new short[count];
+            System.arraycopy(cellFormats, 0, trimmed, 0, count);
+            return new Formats(Collections.unmodifiableMap(numberFormats), trimmed);
+        }
+    }
+
+    private class LightweightCellStyle implements CellStyle {
+        private final int index;
+
+        LightweightCellStyle(int index) {
+            this.index = index;
+        }
+
+        private XSSFCellStyle full() {
+            return LightweightStylesTable.this.getFullTable().getStyleAt(this.index);
+        }
+
+        @Override
+        public short getIndex() {
+            return (short) this.index;
+        }
+
+        @Override
+        public short getDataFormat() {
+            return LightweightStylesTable.this.formats.cellFormats[this.index];
+        }
+
+        @Override
+        public String getDataFormatString() {
+            int format = this.getDataFormat() & 0xFFFF;
+            String code = LightweightStylesTable.this.formats.numberFormats.get(format);
+            return code != null ? code : BuiltinFormats.getBuiltinFormat(format);
+        }
+
+        @Override
+        public int getFontIndex() {
+            return this.full().getFontIndex();
+        }
+
+        @Override
+        public int getFontIndexAsInt() {
+            return this.full().getFontIndexAsInt();
+        }
+
+        @Override
+        public boolean getHidden() {
+            return this.full().getHidden();
+        }
+
+        @Override
+        public boolean getLocked() {
+            return this.full().getLocked();
+        }
+
+        @Override
+        public boolean getQuotePrefixed() {
+            return this.full().getQuotePrefixed();
+        }
+
+        @Override
+        public HorizontalAlignment getAlignment() {
+            return this.full().getAlignment();
+        }
+
+        @Override
+        public boolean getWrapText() {
+            return this.full().getWrapText();
+        }
+
+        @Override
+        public VerticalAlignment getVerticalAlignment() {
+            return this.full().getVerticalAlignment();
+        }
+
+        @Override
+        public short getRotation() {
+            return this.full().getRotation();
+        }
+
+        @Override
+        public short getIndention() {
+            return this.full().getIndention();
+        }
+
+        @Override
+        public BorderStyle getBorderLeft() {
+            return this.full().getBorderLeft();
+        }
+
+        @Override
+        public BorderStyle getBorderRight() {
+            return this.full().getBorderRight();
+        }
+
+        @Override
+        public BorderStyle getBorderTop() {
+            return this.full().getBorderTop();
+        }
+
+        @Override
+        public BorderStyle getBorderBottom() {
+            return this.full().getBorderBottom();
+        }
+
+        @Override
+        public short getLeftBorderColor() {
+            return this.full().getLeftBorderColor();
+        }
+
+        @Override
+        public short getRightBorderColor() {
+            return this.full().getRightBorderColor();
+        }
+
+        @Override
+        public short getTopBorderColor() {
+            return this.full().getTopBorderColor();
+        }
+
+        @Override
+        public short getBottomBorderColor() {
+            return this.full().getBottomBorderColor();
+        }
+
+        @Override
+        public FillPatternType getFillPattern() {
+            return this.full().getFillPattern();
+        }
+
+        @Override
+        public short getFillBackgroundColor() {
+            return this.full().getFillBackgroundColor();
+        }
+
+        @Override
+        public Color getFillBackgroundColorColor() {
+            return this.full().getFillBackgroundColorColor();
+        }
+
+        @Override
+        public short getFillForegroundColor() {
+            return this.full().getFillForegroundColor();
+        }
+
+        @Override
+        public Color getFillForegroundColorColor() {
+            return this.full().getFillForegroundColorColor();
+        }
+
+        @Override
+        public boolean getShrinkToFit() {
+            return this.full().getShrinkToFit();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setDataFormat(short fmt) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setFont(Font font) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setHidden(boolean hidden) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setLocked(boolean locked) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setQuotePrefixed(boolean quotePrefix) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setAlignment(HorizontalAlignment align) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setWrapText(boolean wrapped) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setVerticalAlignment(VerticalAlignment align) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setRotation(short rotation) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setIndention(short indent) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setBorderLeft(BorderStyle border) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setBorderRight(BorderStyle border) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setBorderTop(BorderStyle border) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setBorderBottom(BorderStyle border) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setLeftBorderColor(short color) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setRightBorderColor(short color) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setTopBorderColor(short color) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setBottomBorderColor(short color) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setFillPattern(FillPatternType fp) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setFillBackgroundColor(short bg) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setFillBackgroundColor(Color color) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setFillForegroundColor(short bg) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setFillForegroundColor(Color color) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void cloneStyleFrom(CellStyle source) {
+            throw new NotSupportedException();
+        }
+
+        /**
+         * Not supported
+         */
+        @Override
+        public void setShrinkToFit(boolean shrinkToFit) {
+            throw new NotSupportedException();
+        }
+    }
+}
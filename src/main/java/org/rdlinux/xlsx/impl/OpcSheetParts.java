@@ -0,0 +1,68 @@
+package org.rdlinux.xlsx.impl;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.openxml4j.opc.PackageRelationship;
+import org.apache.poi.openxml4j.opc.PackageRelationshipCollection;
+import org.apache.poi.openxml4j.opc.PackageRelationshipTypes;
+import org.rdlinux.xlsx.sst.SstDiskCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Locates the worksheet parts of an {@code OPCPackage} through the relationships of
+ * its workbook part. Nothing is opened until a sheet is.
+ */
+class OpcSheetParts implements SheetParts {
+    private final PackagePart workbookPart;
+    private final Map<String, PackagePart> sheetParts = new HashMap<>();
+
+    OpcSheetParts(OPCPackage pkg) throws InvalidFormatException {
+        PackageRelationshipCollection rels = pkg.getRelationshipsByType(PackageRelationshipTypes.CORE_DOCUMENT);
+        if (rels.isEmpty()) {
+            rels = pkg.getRelationshipsByType(PackageRelationshipTypes.STRICT_CORE_DOCUMENT);
+        }
+        this.workbookPart = rels.isEmpty() ? null : pkg.getPart(rels.getRelationship(0));
+        if (this.workbookPart == null) {
+            throw new InvalidFormatException("Package does not contain a workbook");
+        }
+    }
+
+    @Override
+    public String getSheetPath(String relationshipId) {
+        PackageRelationship rel = this.workbookPart.getRelationship(relationshipId);
+        if (rel == null) {
+            return null;
+        }
+        try {
+            PackagePart part = this.workbookPart.getRelatedPart(rel);
+            if (part == null) {
+                return null;
+            }
+            String path = part.getPartName().getName();
+            this.sheetParts.put(path, part);
+            return path;
+        } catch (InvalidFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public InputStream openSheet(String path) throws IOException {
+        PackagePart part = this.sheetParts.get(path);
+        if (part == null) {
+            throw new IOException("Package does not contain part [" + path + "]");
+        }
+        return part.getInputStream();
+    }
+
+    @Override
+    public String getPartKey(String path) {
+        PackagePart part = this.sheetParts.get(path);
+        return part == null ? null : SstDiskCache.key(part);
+    }
+}
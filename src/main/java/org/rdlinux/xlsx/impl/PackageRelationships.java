@@ -0,0 +1,140 @@
+package org.rdlinux.xlsx.impl;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.*;
+
+import static org.rdlinux.xlsx.XmlUtils.document;
+
+/**
+ * The relationships of a workbook part, read without an {@code OPCPackage}.
+ * Part names are normalized to lower case without a leading slash, since OPC
+ * compares them case-insensitively.
+ */
+class PackageRelationships {
+    static final String ROOT_RELS = "_rels/.rels";
+
+    private static final String PACKAGE_RELATIONSHIPS_NS = "http://schemas.openxmlformats.org/package/2006/relationships";
+
+    private final Map<String, String> targets = new HashMap<>();
+    private final Set<String> sheetPaths = new HashSet<>();
+    private String stylesPath;
+    private String sstPath;
+    private String themePath;
+
+    /**
+     * @param workbookPath the name of the workbook part
+     * @param in           the workbook's relationships part
+     */
+    PackageRelationships(String workbookPath, InputStream in) {
+        for (Element rel : relationships(in)) {
+            if ("External".equals(rel.getAttribute("TargetMode"))) {
+                continue;
+            }
+            String type = rel.getAttribute("Type");
+            String path = resolve(workbookPath, rel.getAttribute("Target"));
+            this.targets.put(rel.getAttribute("Id"), path);
+            if (type.endsWith("/worksheet")) {
+                this.sheetPaths.add(path);
+            } else if (type.endsWith("/styles")) {
+                this.stylesPath = path;
+            } else if (type.endsWith("/sharedStrings")) {
+                this.sstPath = path;
+            } else if (type.endsWith("/theme")) {
+                this.themePath = path;
+            }
+        }
+    }
+
+    /**
+     * @param in the package's root relationships part
+     * @return the name of the workbook part, or null if there is none
+     */
+    static String findWorkbook(InputStream in) {
+        String workbookPath = null;
+        for (Element rel : relationships(in)) {
+            if (rel.getAttribute("Type").endsWith("/officeDocument")) {
+                workbookPath = resolve("", rel.getAttribute("Target"));
+            }
+        }
+        return workbookPath;
+    }
+
+    /**
+     * @param relationshipId the id of a relationship
+     * @return the name of the target part, or null if there is no such relationship
+     */
+    String getTarget(String relationshipId) {
+        return this.targets.get(relationshipId);
+    }
+
+    boolean isSheet(String path) {
+        return this.sheetPaths.contains(path);
+    }
+
+    String getStylesPath() {
+        return this.stylesPath;
+    }
+
+    String getSstPath() {
+        return this.sstPath;
+    }
+
+    String getThemePath() {
+        return this.themePath;
+    }
+
+    private static List<Element> relationships(InputStream in) {
+        NodeList nodes = document(in).getElementsByTagNameNS(PACKAGE_RELATIONSHIPS_NS, "Relationship");
+        List<Element> rels = new ArrayList<>(nodes.getLength());
+        for (int i = 0; i < nodes.getLength(); i++) {
+            rels.add((Element) nodes.item(i));
+        }
+        return rels;
+    }
+
+    /**
+     * @param path the name of a part
+     * @return the name of the part holding its relationships
+     */
+    static String relationshipsPath(String path) {
+        int slash = path.lastIndexOf('/');
+        return path.substring(0, slash + 1) + "_rels/" + path.substring(slash + 1) + ".rels";
+    }
+
+    /**
+     * Resolves a relationship target against the part it belongs to.
+     */
+    static String resolve(String source, String target) {
+        try {
+            target = new URI(target).getPath();
+        } catch (URISyntaxException e) {
+            // not escaped, use as is
+        }
+        String path = target.startsWith("/") ? target : source.substring(0, source.lastIndexOf('/') + 1) + target;
+        Deque<String> segments = new ArrayDeque<>();
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || ".".equals(segment)) {
+                continue;
+            }
+            if ("..".equals(segment)) {
+                segments.pollLast();
+            } else {
+                segments.addLast(segment);
+            }
+        }
+        return normalize(String.join("/", segments));
+    }
+
+    /**
+     * @param name the name of a ZIP entry or part
+     * @return the name in the form used for lookups
+     */
+    static String normalize(String name) {
+        return (name.startsWith("/") ? name.substring(1) : name).toLowerCase(Locale.ROOT);
+    }
+}
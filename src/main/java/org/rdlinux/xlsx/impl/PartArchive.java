@@ -0,0 +1,25 @@
+package org.rdlinux.xlsx.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Random access to the entries of an xlsx archive, without an {@code OPCPackage}.
+ */
+interface PartArchive extends Closeable {
+
+    /**
+     * @param name the name of the entry, as normalized by {@link PackageRelationships#normalize(String)}
+     * @return the entry's content, or null if the archive has no such entry
+     * @throws IOException if the entry could not be read
+     */
+    InputStream getPart(String name) throws IOException;
+
+    /**
+     * @param name the name of the entry, as normalized by {@link PackageRelationships#normalize(String)}
+     * @return a key made from the CRC32 and size of the entry, see {@link StylesCache#key(long, long)},
+     * or null if the archive has no such entry or does not know its CRC32 and size
+     */
+    String getPartKey(String name);
+}
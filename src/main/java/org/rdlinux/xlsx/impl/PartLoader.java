@@ -0,0 +1,11 @@
+package org.rdlinux.xlsx.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Loads a part that is read without an {@code OPCPackage}.
+ */
+interface PartLoader<T> {
+    T load(InputStream is) throws IOException;
+}
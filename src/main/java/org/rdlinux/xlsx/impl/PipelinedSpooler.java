@@ -0,0 +1,203 @@
+package org.rdlinux.xlsx.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Copies an input stream to a temp file on a background thread while the file is
+ * already being read. Readers see every byte as soon as it has been written and
+ * block only when they catch up with the download, so parsing starts with the
+ * first parts of the archive instead of after the last one.
+ * <p>
+ * Once the input has ended, the file is a complete archive and its entries can be
+ * opened directly, see {@link #archive()}.
+ */
+class PipelinedSpooler implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(PipelinedSpooler.class);
+
+    private final InputStream source;
+    private final File file;
+    private final Thread writer;
+    private long written;
+    private boolean done;
+    private Exception failure;
+    private volatile boolean closed;
+    private ZipFileArchive archive;
+
+    PipelinedSpooler(InputStream source, File file, int bufferSize) {
+        this.source = source;
+        this.file = file;
+        this.writer = new Thread(() -> this.spool(bufferSize), "xlsx-spooler");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    private void spool(int bufferSize) {
+        Exception error = null;
+        try (FileOutputStream out = new FileOutputStream(this.file)) {
+            byte[] buffer = new byte[bufferSize];
+            int read;
+            while (!this.closed && (read = this.source.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                synchronized (this) {
+                    this.written += read;
+                    this.notifyAll();
+                }
+            }
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            try {
+                this.source.close();
+            } catch (IOException e) {
+                log.debug("Failed to close input stream", e);
+            }
+            synchronized (this) {
+                if (error != null && !this.closed) {
+                    this.failure = error;
+                }
+                this.done = true;
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return a stream over the whole file that waits for bytes that have not been written yet
+     * @throws IOException if the file could not be opened
+     */
+    InputStream newReader() throws IOException {
+        return new TailInputStream(new RandomAccessFile(this.file, "r"));
+    }
+
+    /**
+     * Waits until the byte at {@code position} has been written or the input has ended.
+     *
+     * @return the number of bytes available from {@code position}, or -1 at the end of the input
+     */
+    private synchronized long awaitAvailable(long position) throws IOException {
+        while (this.written <= position && !this.done && !this.closed) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for input", e);
+            }
+        }
+        if (this.failure != null) {
+            throw new IOException("Unable to read input stream", this.failure);
+        }
+        if (this.closed) {
+            throw new IOException("Spooler closed");
+        }
+        return this.written > position ? this.written - position : -1;
+    }
+
+    /**
+     * Waits until the whole input has been written and opens the file as an archive.
+     *
+     * @return the archive, shared by every caller
+     * @throws IOException if the input could not be read or the file is not an archive
+     */
+    synchronized PartArchive archive() throws IOException {
+        while (!this.done && !this.closed) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for input", e);
+            }
+        }
+        if (this.failure != null) {
+            throw new IOException("Unable to read input stream", this.failure);
+        }
+        if (this.closed) {
+            throw new IOException("Spooler closed");
+        }
+        if (this.archive == null) {
+            this.archive = new ZipFileArchive(this.file);
+        }
+        return this.archive;
+    }
+
+    /**
+     * Stops spooling, closing the input if it is still being read.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        synchronized (this) {
+            this.notifyAll();
+            if (this.archive != null) {
+                try {
+                    this.archive.close();
+                } catch (IOException e) {
+                    log.debug("Failed to close spooled archive", e);
+                }
+                this.archive = null;
+            }
+        }
+        try {
+            // unblocks a pending read on most streams
+            this.source.close();
+        } catch (IOException e) {
+            log.debug("Failed to close input stream", e);
+        }
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class TailInputStream extends InputStream {
+        private final RandomAccessFile raf;
+        private long position;
+
+        TailInputStream(RandomAccessFile raf) {
+            this.raf = raf;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long available = PipelinedSpooler.this.awaitAvailable(this.position);
+            if (available < 0) {
+                return -1;
+            }
+            this.raf.seek(this.position);
+            int read = this.raf.read(b, off, (int) Math.min(len, available));
+            if (read > 0) {
+                this.position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() {
+            synchronized (PipelinedSpooler.this) {
+                return (int) Math.min(Integer.MAX_VALUE, Math.max(0, PipelinedSpooler.this.written - this.position));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.raf.close();
+        }
+    }
+}
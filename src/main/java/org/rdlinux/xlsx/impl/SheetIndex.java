@@ -0,0 +1,593 @@
+package org.rdlinux.xlsx.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Inflated copy of a worksheet part with the byte offset of every Nth {@code <row>}.
+ * <p>
+ * The part is copied to a temp file once, and a byte-level scan that runs along
+ * with the copy records where rows start, without parsing the XML. The copy is
+ * usually made by a {@link Recorder} while the sheet is read for the first time. A row is then
+ * read by parsing the sheet's header, everything before its first row, followed by
+ * the file from the nearest checkpoint at or before the row, which is a well-formed
+ * worksheet that only holds the rows from the checkpoint on.
+ * <p>
+ * An index can be written next to its copy and reopened by a later process, see
+ * {@link SheetIndexStore}. Instances are immutable once built. Every stream they
+ * open reads the copy through one channel with its own position; a reopened index
+ * holds the channel from the start, so the copy stays readable while the index is
+ * open even if the entry is evicted from its directory in the meantime.
+ */
+class SheetIndex implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(SheetIndex.class);
+
+    private static final int MAGIC = 0x58534958;
+    private static final int VERSION = 2;
+
+    private final File file;
+    // whether the file is a temp file of this index, rather than a stored entry
+    private final boolean temporary;
+    private final int interval;
+    private final byte[] header;
+    private final int[] rowNums;
+    private final long[] offsets;
+    private final int firstRowNum;
+    private final int physicalRows;
+    private final ZoneMap zoneMap;
+    private FileChannel channel;
+
+    private SheetIndex(File file, boolean temporary, int interval, byte[] header, int[] rowNums, long[] offsets,
+                       int firstRowNum, int physicalRows, ZoneMap zoneMap, FileChannel channel) {
+        this.file = file;
+        this.temporary = temporary;
+        this.interval = interval;
+        this.header = header;
+        this.rowNums = rowNums;
+        this.offsets = offsets;
+        this.firstRowNum = firstRowNum;
+        this.physicalRows = physicalRows;
+        this.zoneMap = zoneMap;
+        this.channel = channel;
+    }
+
+    /**
+     * @return a new temp file for the copy of a worksheet part
+     * @throws IOException if the file could not be created
+     */
+    static File newTempFile() throws IOException {
+        File file = Files.createTempFile("tmp-", ".xml").toFile();
+        log.debug("Created sheet index file [" + file.getAbsolutePath() + "]");
+        return file;
+    }
+
+    /**
+     * @return the copy of the worksheet part
+     */
+    File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Writes the checkpoints and header of this index, so that {@link #load(File, File)}
+     * can reopen it together with its copy of the part.
+     *
+     * @param index the file to write to
+     * @throws IOException if the file could not be written
+     */
+    void writeIndex(File index) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(this.interval);
+            out.writeLong(this.file.length());
+            out.writeInt(this.firstRowNum);
+            out.writeInt(this.physicalRows);
+            out.writeInt(this.header.length);
+            out.write(this.header);
+            out.writeInt(this.offsets.length);
+            for (int i = 0; i < this.offsets.length; i++) {
+                out.writeInt(this.rowNums[i]);
+                out.writeLong(this.offsets[i]);
+            }
+            out.writeBoolean(this.zoneMap != null);
+            if (this.zoneMap != null) {
+                this.zoneMap.write(out);
+            }
+        }
+    }
+
+    /**
+     * Reopens an index written by {@link #writeIndex(File)}. The files are left in place
+     * when the index is closed.
+     *
+     * @param data        the copy of the worksheet part
+     * @param index       the file written by {@link #writeIndex(File)}
+     * @param interval    the number of rows between checkpoints the index must have
+     * @param zoneColumns the columns the index must summarize, or null if it need not have a zone map
+     * @return the index
+     * @throws IOException if the files could not be read or do not belong together
+     */
+    static SheetIndex load(File data, File index, int interval, int[] zoneColumns) throws IOException {
+        FileChannel channel = FileChannel.open(data.toPath(), StandardOpenOption.READ);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a sheet index file");
+            }
+            if (in.readInt() != interval) {
+                throw new IOException("Sheet index has a different interval");
+            }
+            long length = in.readLong();
+            if (length != channel.size()) {
+                throw new IOException("Sheet index does not match its data file");
+            }
+            int firstRowNum = in.readInt();
+            int physicalRows = in.readInt();
+            byte[] header = new byte[in.readInt()];
+            in.readFully(header);
+            int count = in.readInt();
+            int[] rowNums = new int[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                rowNums[i] = in.readInt();
+                offsets[i] = in.readLong();
+                if (offsets[i] < header.length || offsets[i] >= length) {
+                    throw new IOException("Corrupt sheet index: offset " + offsets[i] + " is out of bounds");
+                }
+            }
+            ZoneMap zoneMap = in.readBoolean() ? ZoneMap.read(in) : null;
+            if (zoneColumns != null && (zoneMap == null || !zoneMap.hasColumns(zoneColumns))) {
+                throw new IOException("Sheet index does not summarize the requested columns");
+            }
+            return new SheetIndex(data, false, interval, header, rowNums, offsets, firstRowNum, physicalRows, zoneMap,
+                    channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the channel all streams of this index read through, opened on first use
+     * @throws IOException if the copy could not be opened
+     */
+    private synchronized FileChannel channel() throws IOException {
+        if (this.channel == null) {
+            this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+        }
+        return this.channel;
+    }
+
+    /**
+     * @return the whole worksheet part
+     * @throws IOException if the copy could not be opened
+     */
+    InputStream open() throws IOException {
+        return new ChannelInputStream(this.channel(), 0);
+    }
+
+    /**
+     * @param offset a byte offset in the copy
+     * @return the copy from the offset on, which is not a well-formed worksheet by itself
+     * @throws IOException if the copy could not be opened
+     */
+    InputStream openFrom(long offset) throws IOException {
+        return new ChannelInputStream(this.channel(), offset);
+    }
+
+    /**
+     * @param zoneMap the ranges of the summarized columns per block
+     * @return an index over the same copy with the given zone map, which takes over
+     * the channel of this one
+     */
+    synchronized SheetIndex withZoneMap(ZoneMap zoneMap) {
+        FileChannel channel = this.channel;
+        this.channel = null;
+        return new SheetIndex(this.file, this.temporary, this.interval, this.header, this.rowNums, this.offsets,
+                this.firstRowNum, this.physicalRows, zoneMap, channel);
+    }
+
+    /**
+     * Opens the worksheet from the nearest checkpoint at or before a row. Rows before
+     * the checkpoint are left out; the rows between it and {@code rownum} are not.
+     *
+     * @param rownum the 0-based row to read from
+     * @return a well-formed worksheet holding the rows from the checkpoint on
+     * @throws IOException if the copy could not be opened
+     */
+    InputStream openAt(int rownum) throws IOException {
+        return this.openBlock(this.checkpoint(rownum));
+    }
+
+    /**
+     * Opens the worksheet at the first row of a block, the rows from one checkpoint to
+     * the next.
+     *
+     * @param checkpoint the index of the block
+     * @return a well-formed worksheet holding the rows from the block on
+     * @throws IOException if the copy could not be opened
+     */
+    InputStream openBlock(int checkpoint) throws IOException {
+        if (checkpoint <= 0) {
+            return this.open();
+        }
+        return new SequenceInputStream(new ByteArrayInputStream(this.header),
+                new ChannelInputStream(this.channel(), this.offsets[checkpoint]));
+    }
+
+    /**
+     * @param rownum the 0-based row to read from
+     * @return the number of the first row in {@link #openAt(int)}, which a row without an
+     * {@code r} attribute at the checkpoint would otherwise not know
+     */
+    int getCheckpointRowNum(int rownum) {
+        return this.getBlockRowNum(this.checkpoint(rownum));
+    }
+
+    /**
+     * @param checkpoint the index of a block
+     * @return the number of the first row in {@link #openBlock(int)}
+     */
+    int getBlockRowNum(int checkpoint) {
+        return checkpoint <= 0 ? 0 : this.rowNums[checkpoint];
+    }
+
+    /**
+     * @return the number of blocks, one per checkpoint
+     */
+    int getBlockCount() {
+        return this.offsets.length;
+    }
+
+    /**
+     * @return the number of rows in a block
+     */
+    int getInterval() {
+        return this.interval;
+    }
+
+    /**
+     * @return the ranges of the summarized columns per block, or null if the sheet is not summarized
+     */
+    ZoneMap getZoneMap() {
+        return this.zoneMap;
+    }
+
+    private int checkpoint(int rownum) {
+        int i = Arrays.binarySearch(this.rowNums, rownum);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * @return the 0-based number of the first row, or -1 if the sheet has no rows
+     */
+    int getFirstRowNum() {
+        return this.firstRowNum;
+    }
+
+    /**
+     * @return the number of {@code <row>} elements in the sheet
+     */
+    int getPhysicalNumberOfRows() {
+        return this.physicalRows;
+    }
+
+    /**
+     * Closes the channel without deleting the copy, so that the copy can be moved.
+     * Streams opened so far fail; a later one opens the channel again.
+     */
+    synchronized void closeChannel() {
+        if (this.channel == null) {
+            return;
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            log.debug("Failed to close sheet index file", e);
+        }
+        this.channel = null;
+    }
+
+    @Override
+    public void close() {
+        this.closeChannel();
+        if (!this.temporary) {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Deleting sheet index file [" + this.file.getAbsolutePath() + "]");
+        }
+        this.file.delete();
+    }
+
+    /**
+     * Copies the bytes of a worksheet part to a file as they are passed in, and
+     * records the checkpoints of the rows along the way.
+     */
+    static class Recorder {
+        private final File file;
+        private final int interval;
+        private final RowScanner scanner;
+        private final OutputStream out;
+
+        /**
+         * @param file     the file to copy the part to, deleted if the copy is abandoned
+         * @param interval the number of rows between checkpoints
+         * @throws IOException if the file could not be opened
+         */
+        Recorder(File file, int interval) throws IOException {
+            this.file = file;
+            this.interval = interval;
+            this.scanner = new RowScanner(interval);
+            try {
+                this.out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+        }
+
+        void update(byte[] b, int off, int len) throws IOException {
+            this.scanner.update(b, off, len);
+            this.out.write(b, off, len);
+        }
+
+        /**
+         * Completes the copy once the whole part has been passed in.
+         *
+         * @param zoneMap the ranges of the summarized columns per block, or null
+         * @return the index, which owns the file
+         * @throws IOException if the copy could not be completed
+         */
+        SheetIndex finish(ZoneMap zoneMap) throws IOException {
+            this.out.close();
+            RowScanner scanner = this.scanner;
+            byte[] header = new byte[0];
+            if (scanner.count > 0) {
+                header = new byte[(int) scanner.offsets[0]];
+                try (InputStream is = new FileInputStream(this.file)) {
+                    int n = 0;
+                    while (n < header.length) {
+                        int read = is.read(header, n, header.length - n);
+                        if (read == -1) {
+                            throw new IOException("Sheet index file is truncated");
+                        }
+                        n += read;
+                    }
+                }
+            }
+            return new SheetIndex(this.file, true, this.interval, header, Arrays.copyOf(scanner.rowNums, scanner.count),
+                    Arrays.copyOf(scanner.offsets, scanner.count), scanner.firstRowNum, scanner.physicalRows, zoneMap,
+                    null);
+        }
+
+        /**
+         * Stops copying and deletes the file.
+         */
+        void abandon() {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                log.debug("Failed to close sheet index file", e);
+            }
+            this.file.delete();
+        }
+    }
+
+    /**
+     * Reads a channel from an offset on with positional reads, so that any number of
+     * streams can share the channel. Closing the stream leaves the channel open.
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+
+        ChannelInputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = this.channel.read(ByteBuffer.wrap(b, off, len), this.position);
+            if (n > 0) {
+                this.position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = Math.max(0, Math.min(n, this.channel.size() - this.position));
+            this.position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.max(0, Math.min(Integer.MAX_VALUE, this.channel.size() - this.position));
+        }
+    }
+
+    /**
+     * Finds the start tags of rows in the bytes of a worksheet part. Markup is always
+     * ASCII in UTF-8, and text and attribute values cannot hold a raw {@code <}, so a
+     * start tag is found at any {@code <} outside of comments, CDATA sections and
+     * processing instructions.
+     */
+    private static class RowScanner {
+        private static final Pattern ROW_NUM = Pattern.compile("(?:^|\\s)r\\s*=\\s*[\"'](\\d+)[\"']");
+
+        private static final int TEXT = 0;
+        private static final int TAG_START = 1;
+        private static final int NAME = 2;
+        private static final int ATTRIBUTES = 3;
+        private static final int BANG = 4;
+        private static final int SKIP = 5;
+
+        private final int interval;
+        private int[] rowNums = new int[64];
+        private long[] offsets = new long[64];
+        private int count;
+        private int firstRowNum = -1;
+        private int physicalRows;
+        private int lastRowNum = -1;
+
+        private long position;
+        private int state = TEXT;
+        private long tagStart;
+        private final StringBuilder name = new StringBuilder();
+        private final ByteArrayOutputStream attributes = new ByteArrayOutputStream();
+        private boolean rowTag;
+        private byte quote;
+        // terminator of a comment, CDATA section, processing instruction or declaration being skipped
+        private byte[] terminator;
+        private int matched;
+
+        RowScanner(int interval) {
+            this.interval = interval;
+        }
+
+        void update(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++, this.position++) {
+                byte c = b[i];
+                switch (this.state) {
+                    case TEXT:
+                        if (c == '<') {
+                            this.tagStart = this.position;
+                            this.state = TAG_START;
+                        }
+                        break;
+                    case TAG_START:
+                        if (c == '!') {
+                            this.name.setLength(0);
+                            this.state = BANG;
+                        } else if (c == '?') {
+                            this.skip("?>");
+                        } else if (c == '/') {
+                            this.skip(">");
+                        } else {
+                            this.name.setLength(0);
+                            this.name.append((char) c);
+                            this.state = NAME;
+                        }
+                        break;
+                    case NAME:
+                        if (c == '>' || c == '/' || c <= ' ') {
+                            String tag = this.name.toString();
+                            this.rowTag = "row".equals(tag) || tag.endsWith(":row");
+                            this.attributes.reset();
+                            this.quote = 0;
+                            this.state = ATTRIBUTES;
+                            this.attribute(c);
+                        } else {
+                            this.name.append((char) c);
+                        }
+                        break;
+                    case ATTRIBUTES:
+                        this.attribute(c);
+                        break;
+                    case BANG:
+                        this.name.append((char) c);
+                        if ("--".contentEquals(this.name)) {
+                            this.skip("-->");
+                        } else if ("[CDATA[".contentEquals(this.name)) {
+                            this.skip("]]>");
+                        } else if (!"--".startsWith(this.name.toString()) && !"[CDATA[".startsWith(this.name.toString())) {
+                            this.skip(">");
+                        }
+                        break;
+                    case SKIP:
+                        if (c == this.terminator[this.matched]) {
+                            if (++this.matched == this.terminator.length) {
+                                this.state = TEXT;
+                            }
+                        } else if (this.matched == 0 || c != this.terminator[this.matched - 1]
+                                || c != this.terminator[0]) {
+                            // a repeated leading character, as in "--->", keeps what was matched
+                            this.matched = c == this.terminator[0] ? 1 : 0;
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException();
+                }
+            }
+        }
+
+        private void skip(String terminator) {
+            this.terminator = terminator.getBytes(StandardCharsets.US_ASCII);
+            this.matched = 0;
+            this.state = SKIP;
+        }
+
+        private void attribute(byte c) {
+            if (this.quote != 0) {
+                if (c == this.quote) {
+                    this.quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                this.quote = c;
+            } else if (c == '>') {
+                if (this.rowTag) {
+                    this.row(this.attributes.toString());
+                }
+                this.state = TEXT;
+                return;
+            }
+            if (this.rowTag) {
+                this.attributes.write(c);
+            }
+        }
+
+        private void row(String attributes) {
+            Matcher m = ROW_NUM.matcher(attributes);
+            int rowNum = m.find() ? Integer.parseInt(m.group(1)) - 1 : this.lastRowNum + 1;
+            if (this.physicalRows == 0) {
+                this.firstRowNum = rowNum;
+            }
+            if (this.physicalRows % this.interval == 0) {
+                if (this.count == this.offsets.length) {
+                    this.rowNums = Arrays.copyOf(this.rowNums, this.count * 2);
+                    this.offsets = Arrays.copyOf(this.offsets, this.count * 2);
+                }
+                this.rowNums[this.count] = rowNum;
+                this.offsets[this.count] = this.tagStart;
+                this.count++;
+            }
+            this.physicalRows++;
+            this.lastRowNum = rowNum;
+        }
+    }
+}
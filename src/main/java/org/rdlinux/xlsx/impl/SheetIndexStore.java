@@ -0,0 +1,92 @@
+package org.rdlinux.xlsx.impl;
+
+import org.rdlinux.xlsx.sst.CacheDirectory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Directory of {@link SheetIndex}es that outlive a single workbook. Each entry is the
+ * inflated copy of a worksheet part ({@code <key>.xml}) and its row index
+ * ({@code <key>.idx}), where the key is made from the CRC32 and uncompressed size of
+ * the worksheet part as recorded in the ZIP central directory, the checkpoint
+ * interval and the columns of the {@link ZoneMap}, if any. Reopening a workbook
+ * with an unchanged sheet then reads rows straight from the stored copy without
+ * inflating or scanning the sheet again. Entries are committed and evicted by a
+ * {@link CacheDirectory}.
+ */
+class SheetIndexStore {
+    private final CacheDirectory directory;
+
+    SheetIndexStore(File directory, long maxSizeBytes, long maxAgeMillis) {
+        this.directory = new CacheDirectory(directory, ".xml", "sheet index entry", maxSizeBytes, maxAgeMillis);
+    }
+
+    /**
+     * @param partKey     the CRC32 and size key of the worksheet part, see {@link PartArchive#getPartKey(String)}
+     * @param interval    the number of rows between checkpoints
+     * @param zoneColumns the columns summarized in a zone map, or null
+     * @return the key of the entry
+     */
+    static String key(String partKey, int interval, int[] zoneColumns) {
+        StringBuilder key = new StringBuilder(partKey).append('-').append(interval);
+        if (zoneColumns != null) {
+            key.append("-z");
+            for (int i = 0; i < zoneColumns.length; i++) {
+                key.append(i == 0 ? "" : ".").append(zoneColumns[i]);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Opens a previously stored index.
+     *
+     * @param key         the entry key
+     * @param interval    the number of rows between checkpoints
+     * @param zoneColumns the columns the index must summarize, or null
+     * @return the stored index, or null if there is no usable entry for {@code key}
+     */
+    SheetIndex load(String key, int interval, int[] zoneColumns) {
+        return this.directory.load(key, (data, index) -> SheetIndex.load(data, index, interval, zoneColumns));
+    }
+
+    /**
+     * @param key the entry key
+     * @return a new file in the directory to copy a worksheet part to before it is
+     * committed with {@link #commit(String, SheetIndex, int[])}
+     * @throws IOException if the file could not be created
+     */
+    File newSpill(String key) throws IOException {
+        return this.directory.createSpillFile(key);
+    }
+
+    /**
+     * Adds an index built on a file from {@link #newSpill(String)} to the directory
+     * and opens the stored entry. The directory is evicted afterwards, leaving out
+     * the new entry.
+     *
+     * @param key         the entry key
+     * @param built       the index, whose file is moved into the entry and whose channel is closed
+     * @param zoneColumns the columns summarized by the index, or null
+     * @return the stored index
+     * @throws IOException if the entry could not be written
+     */
+    SheetIndex commit(String key, SheetIndex built, int[] zoneColumns) throws IOException {
+        File spill = built.getFile();
+        built.closeChannel();
+        try {
+            built.writeIndex(this.directory.spillIndexFile(spill));
+        } catch (IOException | RuntimeException e) {
+            this.directory.discard(spill);
+            throw e;
+        }
+        File data = this.directory.commit(key, spill);
+        SheetIndex stored = this.load(key, built.getInterval(), zoneColumns);
+        if (stored == null) {
+            throw new IOException("Unable to reopen sheet index entry [" + data.getAbsolutePath() + "]");
+        }
+        this.directory.evict(key);
+        return stored;
+    }
+}
@@ -0,0 +1,31 @@
+package org.rdlinux.xlsx.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Locates and opens the worksheet parts of a package, so that a sheet's part is
+ * opened only when its rows are first read.
+ */
+interface SheetParts {
+
+    /**
+     * @param relationshipId the {@code r:id} of a sheet in the workbook part
+     * @return the name of the sheet's part, or null if the relationship does not exist
+     */
+    String getSheetPath(String relationshipId);
+
+    /**
+     * @param path the name of the sheet's part
+     * @return the sheet's XML
+     * @throws IOException if the sheet could not be found or read
+     */
+    InputStream openSheet(String path) throws IOException;
+
+    /**
+     * @param path the name of the sheet's part
+     * @return a key made from the CRC32 and size of the sheet's part, or null if they
+     * are not known before the part is read
+     */
+    String getPartKey(String path);
+}
@@ -0,0 +1,11 @@
+package org.rdlinux.xlsx.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Opens the XML of a worksheet when its rows are first read.
+ */
+interface SheetSource {
+    InputStream open() throws IOException;
+}
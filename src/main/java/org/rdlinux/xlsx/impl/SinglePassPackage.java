@@ -0,0 +1,465 @@
+package org.rdlinux.xlsx.impl;
+
+import org.apache.poi.util.IOUtils;
+import org.apache.poi.xssf.model.SharedStringsTable;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.model.ThemesTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads an xlsx package in a single pass over a {@link ZipInputStream}, without
+ * copying the input to a file first.
+ * <p>
+ * Parts are handled in archive order. The workbook, its relationships, the styles
+ * and the shared strings table are parsed as they arrive. A worksheet is left in
+ * the stream for its reader once everything it depends on has been parsed; a
+ * worksheet that appears earlier than that, or that is passed over while another
+ * sheet is opened, is spilled to a temp file. Parts that may turn out to be needed
+ * but arrive before the relationships that identify them are spilled as well.
+ * <p>
+ * A worksheet that was streamed from the archive cannot be opened again, unlike a
+ * spilled one. When the input is being spooled to a file by a {@link PipelinedSpooler},
+ * nothing is spilled: such parts are left in the spool file and read from it once the
+ * input has ended, and a streamed worksheet can be opened again the same way.
+ * <p>
+ * Part names are compared case-insensitively, as OPC requires.
+ * Instances are not thread safe.
+ */
+class SinglePassPackage implements SheetParts, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(SinglePassPackage.class);
+
+    private final ZipInputStream zip;
+    private final PartLoader<SharedStringsTable> sstLoader;
+    // the file the input is spooled to, or null
+    private final PipelinedSpooler spool;
+    // parts that arrived before the relationships that identify them, null if left in the spool
+    private final Map<String, File> unresolved = new LinkedHashMap<>();
+    private final Map<String, File> spilledSheets = new HashMap<>();
+    private final Set<String> spooledSheets = new HashSet<>();
+    private final Set<String> streamedSheets = new HashSet<>();
+    private final List<File> tempFiles = new ArrayList<>();
+
+    private String workbookPath;
+    private WorkbookMetadata workbook;
+    private PackageRelationships relationships;
+
+    private final boolean lightweightStyles;
+    private final StylesCache stylesCache;
+    private CellStyles styles = CellStyles.of(null);
+    private boolean stylesLoaded;
+    private StylesTable stylesTable;
+    private ThemesTable theme;
+    private SharedStringsTable sst;
+    private boolean sstLoaded;
+
+    private String entryName;
+    private String entryKey;
+    private LiveEntryStream live;
+
+    SinglePassPackage(InputStream is, int bufferSize, PartLoader<SharedStringsTable> sstLoader,
+                      boolean lightweightStyles, StylesCache stylesCache) {
+        this(is, null, bufferSize, sstLoader, lightweightStyles, stylesCache);
+    }
+
+    /**
+     * @param spool the spooler that writes the file {@code is} reads, or null
+     */
+    SinglePassPackage(InputStream is, PipelinedSpooler spool, int bufferSize, PartLoader<SharedStringsTable> sstLoader,
+                      boolean lightweightStyles, StylesCache stylesCache) {
+        this.zip = new ZipInputStream(new BufferedInputStream(is, bufferSize));
+        this.spool = spool;
+        this.sstLoader = sstLoader;
+        this.lightweightStyles = lightweightStyles;
+        this.stylesCache = stylesCache;
+    }
+
+    /**
+     * Reads parts until the workbook can be streamed, which is at the first worksheet
+     * that follows all of the parts it depends on, or at the end of the archive.
+     */
+    void open() throws IOException {
+        while (this.nextEntry() != null) {
+            if (this.isSheet(this.entryName) && this.isReady()) {
+                return;
+            }
+            this.consume(this.entryName, new EntryInputStream(this.zip));
+            this.drainUnresolved();
+        }
+        if (this.workbook == null || this.relationships == null) {
+            throw new IOException("Package does not contain a workbook");
+        }
+    }
+
+    /**
+     * @return the metadata of the workbook part
+     */
+    WorkbookMetadata getWorkbook() {
+        return this.workbook;
+    }
+
+    /**
+     * @return the styles of the workbook, empty if it has none
+     */
+    CellStyles getStyles() {
+        return this.styles;
+    }
+
+    /**
+     * @return the shared strings table of the workbook, or null if it has none
+     */
+    SharedStringsTable getSharedStrings() {
+        return this.sst;
+    }
+
+    @Override
+    public String getSheetPath(String relationshipId) {
+        return this.relationships.getTarget(relationshipId);
+    }
+
+    /**
+     * Opens the XML of a worksheet. A sheet that was spilled is read from its temp file,
+     * and one that was left in the spool file from there, otherwise the archive is read
+     * forward to the sheet, spilling any worksheet that is passed over, including what is
+     * left of a sheet that is still being read.
+     *
+     * @param path the name of the sheet's part
+     * @return the sheet's XML
+     * @throws IOException if the sheet could not be found or read, or was streamed already
+     */
+    @Override
+    public InputStream openSheet(String path) throws IOException {
+        File spilled = this.spilledSheets.get(path);
+        if (spilled != null) {
+            return new FileInputStream(spilled);
+        }
+        if (this.spool != null && (this.spooledSheets.contains(path) || this.streamedSheets.contains(path))) {
+            return this.openSpooled(path);
+        }
+        if (this.streamedSheets.contains(path)) {
+            throw new IOException("Sheet part [" + path + "] has already been streamed and cannot be read again");
+        }
+        if (path.equals(this.entryName) && this.live == null) {
+            return this.stream(path);
+        }
+
+        this.retireEntry();
+        while (this.nextEntry() != null) {
+            if (this.entryName.equals(path)) {
+                return this.stream(path);
+            }
+            this.consume(this.entryName, new EntryInputStream(this.zip));
+        }
+        throw new IOException("Sheet part [" + path + "] was not found or has already been read");
+    }
+
+    /**
+     * Streamed entries often record their CRC32 and size only after their data, so
+     * sheets are not keyed.
+     *
+     * @return null
+     */
+    @Override
+    public String getPartKey(String path) {
+        return null;
+    }
+
+    private InputStream stream(String path) {
+        this.streamedSheets.add(path);
+        this.live = new LiveEntryStream(path);
+        return this.live;
+    }
+
+    private InputStream openSpooled(String path) throws IOException {
+        InputStream in = this.spool.archive().getPart(path);
+        if (in == null) {
+            throw new IOException("Sheet part [" + path + "] was not found in the spooled archive");
+        }
+        return in;
+    }
+
+    /**
+     * Sets aside a worksheet the archive has to move past, in a temp file or, when the
+     * input is spooled, by leaving it in the spool file.
+     */
+    private void setAside(String name, InputStream in) throws IOException {
+        if (this.spool != null) {
+            this.spooledSheets.add(name);
+        } else {
+            this.spilledSheets.put(name, this.spill(in));
+        }
+    }
+
+    private boolean isReady() {
+        return this.workbook != null && this.relationships != null
+                && (this.relationships.getStylesPath() == null || this.stylesLoaded)
+                && (this.relationships.getSstPath() == null || this.sstLoaded);
+    }
+
+    private boolean isSheet(String name) {
+        return this.relationships != null && this.relationships.isSheet(name);
+    }
+
+    private String nextEntry() throws IOException {
+        ZipEntry entry = this.zip.getNextEntry();
+        this.live = null;
+        this.entryName = entry == null ? null : PackageRelationships.normalize(entry.getName());
+        // only known up front if the local header records them, not for streamed entries
+        this.entryKey = entry == null ? null : StylesCache.key(entry.getCrc(), entry.getSize());
+        return this.entryName;
+    }
+
+    /**
+     * Moves the current worksheet out of the way before the archive is read forward.
+     */
+    private void retireEntry() throws IOException {
+        if (this.live != null) {
+            this.live.detach();
+        } else if (this.entryName != null && this.isSheet(this.entryName)) {
+            this.setAside(this.entryName, new EntryInputStream(this.zip));
+        }
+        this.live = null;
+        this.entryName = null;
+        this.entryKey = null;
+    }
+
+    private void consume(String name, InputStream in) throws IOException {
+        if (PackageRelationships.ROOT_RELS.equals(name)) {
+            this.workbookPath = PackageRelationships.findWorkbook(in);
+        } else if (name.equals(this.workbookPath)) {
+            this.workbook = WorkbookMetadata.read(in);
+        } else if (this.workbookPath != null && name.equals(PackageRelationships.relationshipsPath(this.workbookPath))) {
+            this.relationships = new PackageRelationships(this.workbookPath, in);
+        } else if (this.relationships == null) {
+            if (mayBeNeeded(name)) {
+                this.unresolved.put(name, this.spool != null ? null : this.spill(in));
+            }
+        } else if (name.equals(this.relationships.getStylesPath())) {
+            if (this.lightweightStyles) {
+                // the part cannot be read again, keep it for the full table
+                byte[] part = IOUtils.toByteArray(in);
+                String key = name.equals(this.entryName) ? this.entryKey : null;
+                this.styles = LightweightStylesTable.read(new ByteArrayInputStream(part), () -> {
+                    StylesTable table = new StylesTable(new ByteArrayInputStream(part));
+                    if (this.theme != null) {
+                        table.setTheme(this.theme);
+                    }
+                    return table;
+                }, this.stylesCache, key);
+            } else {
+                this.stylesTable = new StylesTable(in);
+                if (this.theme != null) {
+                    this.stylesTable.setTheme(this.theme);
+                }
+                this.styles = CellStyles.of(this.stylesTable);
+            }
+            this.stylesLoaded = true;
+        } else if (name.equals(this.relationships.getSstPath())) {
+            this.sst = this.sstLoader.load(in);
+            this.sstLoaded = true;
+        } else if (name.equals(this.relationships.getThemePath())) {
+            this.theme = new ThemesTable(in);
+            if (this.stylesTable != null) {
+                this.stylesTable.setTheme(this.theme);
+            }
+        } else if (this.relationships.isSheet(name)) {
+            log.debug("Setting aside sheet [" + name + "] that precedes the parts it depends on");
+            this.setAside(name, in);
+        }
+        // anything else is not needed and is skipped by the next getNextEntry
+    }
+
+    /**
+     * Handles the spilled parts that the relationships read so far identify.
+     */
+    private void drainUnresolved() throws IOException {
+        String name;
+        while ((name = this.nextResolvable()) != null) {
+            File file = this.unresolved.remove(name);
+            if (this.isSheet(name)) {
+                if (file == null) {
+                    this.spooledSheets.add(name);
+                } else {
+                    this.spilledSheets.put(name, file);
+                }
+                continue;
+            }
+            if (file == null) {
+                try (InputStream in = this.spool.archive().getPart(name)) {
+                    this.consume(name, in);
+                }
+                continue;
+            }
+            try (InputStream in = new FileInputStream(file)) {
+                this.consume(name, in);
+            } finally {
+                file.delete();
+                this.tempFiles.remove(file);
+            }
+        }
+    }
+
+    private String nextResolvable() {
+        for (String name : this.unresolved.keySet()) {
+            if (this.relationships != null || PackageRelationships.ROOT_RELS.equals(name)
+                    || name.equals(this.workbookPath) || (this.workbookPath != null
+                    && name.equals(PackageRelationships.relationshipsPath(this.workbookPath)))) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private File spill(InputStream in) throws IOException {
+        File file = Files.createTempFile("tmp-", ".xml").toFile();
+        this.tempFiles.add(file);
+        try (OutputStream out = new FileOutputStream(file)) {
+            copy(in, out);
+        }
+        return file;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private static boolean mayBeNeeded(String name) {
+        return !name.equals("[content_types].xml") && !name.startsWith("docprops/")
+                && (name.endsWith(".xml") || name.endsWith(".rels"));
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.live != null) {
+                this.live.close();
+            }
+            this.zip.close();
+        } finally {
+            for (File file : this.tempFiles) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Deleting tmp file [" + file.getAbsolutePath() + "]");
+                }
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Current entry of the archive. Parsers close their input when they are done, which
+     * must not close the archive.
+     */
+    private static class EntryInputStream extends FilterInputStream {
+        EntryInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Worksheet read straight from the archive. When the archive has to move past it,
+     * the rest of the entry is copied to a temp file and reading continues from there,
+     * or, when the input is spooled, reading continues from the entry in the spool file.
+     */
+    private class LiveEntryStream extends InputStream {
+        private final String name;
+        private InputStream detached;
+        private boolean spooled;
+        private long position;
+        private boolean closed;
+
+        LiveEntryStream(String name) {
+            this.name = name;
+        }
+
+        void detach() throws IOException {
+            if (this.closed) {
+                return;
+            }
+            if (SinglePassPackage.this.spool != null) {
+                this.spooled = true;
+                return;
+            }
+            int next = SinglePassPackage.this.zip.read();
+            if (next == -1) {
+                this.detached = new ByteArrayInputStream(new byte[0]);
+                return;
+            }
+            File file = Files.createTempFile("tmp-", ".xml").toFile();
+            SinglePassPackage.this.tempFiles.add(file);
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(next);
+                copy(SinglePassPackage.this.zip, out);
+            }
+            this.detached = new FileInputStream(file);
+        }
+
+        private InputStream source() throws IOException {
+            if (this.closed) {
+                throw new IOException("Stream closed");
+            }
+            if (this.spooled && this.detached == null) {
+                InputStream in = SinglePassPackage.this.openSpooled(this.name);
+                long skipped = 0;
+                while (skipped < this.position) {
+                    long n = in.skip(this.position - skipped);
+                    if (n <= 0) {
+                        in.close();
+                        throw new IOException("Sheet part [" + this.name + "] is shorter in the spooled archive");
+                    }
+                    skipped += n;
+                }
+                this.detached = in;
+            }
+            return this.detached != null ? this.detached : SinglePassPackage.this.zip;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = this.source().read();
+            if (b != -1) {
+                this.position++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = this.source().read(b, off, len);
+            if (read > 0) {
+                this.position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.closed = true;
+            if (this.detached != null) {
+                this.detached.close();
+            }
+        }
+    }
+}
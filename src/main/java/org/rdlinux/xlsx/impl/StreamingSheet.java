@@ -6,6 +6,7 @@ import org.apache.poi.ss.util.CellRangeAddress;
 import org.apache.poi.ss.util.PaneInformation;
 
 import java.util.Collection;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -25,10 +26,25 @@ public class StreamingSheet implements Sheet {
         return this.reader;
     }
 
+    /**
+     * Returns the cache that interns this sheet's inline and formula string values,
+     * which exposes its hit rate.
+     *
+     * @return the cache, or null if interning is not enabled on the builder
+     */
+    public StringInterner getStringInterner() {
+        return this.reader.getInterner();
+    }
+
     /* Supported */
 
     /**
-     * {@inheritDoc}
+     * Returns a new iterator that starts at the first row. Each iterator parses the
+     * sheet on its own, so the sheet can be read again without reopening the workbook.
+     * A sheet streamed straight from an input stream by {@code singlePass} can only be
+     * read again if it is indexed, see {@code rowIndexInterval}.
+     *
+     * @return the iterator
      */
     @Override
     public Iterator<Row> iterator() {
@@ -36,13 +52,61 @@ public class StreamingSheet implements Sheet {
     }
 
     /**
-     * {@inheritDoc}
+     * Same as {@link #iterator()}.
+     *
+     * @return the iterator
      */
     @Override
     public Iterator<Row> rowIterator() {
         return this.reader.iterator();
     }
 
+    /**
+     * Returns a new iterator over the rows from {@code fromRow} on. Parsing starts at
+     * the nearest checkpoint of the sheet's row index rather than at the top of the
+     * sheet, and the iterator has a position of its own like {@link #iterator()}.
+     *
+     * @param fromRow the 0-based number of the first row to return
+     * @return the iterator
+     * @throws UnsupportedOperationException if the sheet is not indexed, see
+     *                                       {@code StreamingReader.Builder#rowIndexInterval(int)}
+     */
+    public Iterator<Row> iterator(int fromRow) {
+        return this.reader.iterator(fromRow);
+    }
+
+    /**
+     * Returns a new iterator over the rows whose value in a column is a number between
+     * {@code from} and {@code to}, inclusive. Blocks of rows that cannot hold such a
+     * value according to the sheet's zone map are skipped without being parsed, see
+     * {@code StreamingReader.Builder#zoneMapColumns(int...)}.
+     *
+     * @param column the 0-based column to test
+     * @param from   the lowest value
+     * @param to     the highest value
+     * @return the iterator
+     * @throws UnsupportedOperationException if the sheet is not indexed, see
+     *                                       {@code StreamingReader.Builder#rowIndexInterval(int)}
+     */
+    public Iterator<Row> iterator(int column, double from, double to) {
+        return this.reader.iterator(column, from, to);
+    }
+
+    /**
+     * Returns a new iterator over the rows whose value in a column is a date between
+     * {@code from} and {@code to}, inclusive. See {@link #iterator(int, double, double)}.
+     *
+     * @param column the 0-based column to test
+     * @param from   the earliest date
+     * @param to     the latest date
+     * @return the iterator
+     * @throws UnsupportedOperationException if the sheet is not indexed, see
+     *                                       {@code StreamingReader.Builder#rowIndexInterval(int)}
+     */
+    public Iterator<Row> iterator(int column, Date from, Date to) {
+        return this.reader.iterator(column, from, to);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -62,37 +126,48 @@ public class StreamingSheet implements Sheet {
         return this.reader.isColumnHidden(columnIndex);
     }
 
-    /* Unsupported */
-
     /**
-     * Not supported
+     * Reads a single row, parsing from the nearest checkpoint of the sheet's row index.
+     * Only supported if the sheet is indexed, see
+     * {@code StreamingReader.Builder#rowIndexInterval(int)}.
+     *
+     * @param rownum the 0-based row number
+     * @return the row, or null if the sheet does not define it
      */
     @Override
-    public Row createRow(int rownum) {
-        throw new UnsupportedOperationException();
+    public Row getRow(int rownum) {
+        return this.reader.getRow(rownum);
     }
 
     /**
-     * Not supported
+     * Only supported if the sheet is indexed, see
+     * {@code StreamingReader.Builder#rowIndexInterval(int)}.
+     *
+     * @return the number of rows the sheet defines
      */
     @Override
-    public void removeRow(Row row) {
-        throw new UnsupportedOperationException();
+    public int getPhysicalNumberOfRows() {
+        return this.reader.getPhysicalNumberOfRows();
     }
 
     /**
-     * Not supported
+     * Only supported if the sheet is indexed, see
+     * {@code StreamingReader.Builder#rowIndexInterval(int)}.
+     *
+     * @return the 0-based number of the first row, or -1 if the sheet has no rows
      */
     @Override
-    public Row getRow(int rownum) {
-        throw new UnsupportedOperationException();
+    public int getFirstRowNum() {
+        return this.reader.getFirstRowNum();
     }
 
+    /* Unsupported */
+
     /**
      * Not supported
      */
     @Override
-    public int getPhysicalNumberOfRows() {
+    public Row createRow(int rownum) {
         throw new UnsupportedOperationException();
     }
 
@@ -100,7 +175,7 @@ public class StreamingSheet implements Sheet {
      * Not supported
      */
     @Override
-    public int getFirstRowNum() {
+    public void removeRow(Row row) {
         throw new UnsupportedOperationException();
     }
 
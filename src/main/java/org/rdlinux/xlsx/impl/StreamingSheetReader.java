@@ -1,16 +1,21 @@
 package org.rdlinux.xlsx.impl;
 
 import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CellType;
 import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.DateUtil;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.StaxHelper;
 import org.apache.poi.xssf.model.SharedStringsTable;
 import org.apache.poi.xssf.model.StylesTable;
-import org.apache.poi.xssf.usermodel.XSSFCellStyle;
-import org.apache.poi.xssf.usermodel.XSSFRichTextString;
 import org.rdlinux.xlsx.exceptions.CloseException;
 import org.rdlinux.xlsx.exceptions.ParseException;
+import org.rdlinux.xlsx.exceptions.ReadException;
+import org.rdlinux.xlsx.sst.BufferedStringsTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,38 +24,94 @@ import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.events.*;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.*;
 
 public class StreamingSheetReader implements Iterable<Row> {
     private static final Logger log = LoggerFactory.getLogger(StreamingSheetReader.class);
 
     private final SharedStringsTable sst;
-    private final StylesTable stylesTable;
-    private final XMLEventReader parser;
+    private final BufferedStringsTable bufferedSst;
+    private final CellStyles stylesTable;
+    private final SheetSource source;
+    // the sheet's XML as cursors read it, from the index once there is one
+    private final SheetSource rowSource;
+    private final StringInterner interner;
+    private final int rowIndexInterval;
     private final DataFormatter dataFormatter = new DataFormatter();
     private final Set<Integer> hiddenColumns = new HashSet<>();
+    // the cursor of the first iterator(), and the parts opened by cursors that have not been closed yet
+    private final Cursor cursor;
+    private final Set<OpenPart> openParts = new HashSet<>();
+    private final ReferenceQueue<Cursor> collectedCursors = new ReferenceQueue<>();
+    private boolean cursorTaken;
+    private SheetIndex index;
+    // the pass that indexes the sheet while a cursor reads it, if one is running
+    private IndexingPass indexingPass;
+    private SheetIndexStore indexStore;
+    private String indexPartKey;
+    private boolean indexStoreChecked;
+    private int[] zoneMapColumns;
 
     private int lastRowNum;
-    private int currentRowNum;
     private int firstColNum = 0;
-    private int currentColNum;
     private int rowCacheSize;
-    private List<Row> rowCache = new ArrayList<>();
-    private Iterator<Row> rowCacheIterator;
 
-    private String lastContents;
     private Sheet sheet;
-    private StreamingRow currentRow;
-    private StreamingCell currentCell;
     private boolean use1904Dates;
 
     public StreamingSheetReader(SharedStringsTable sst, StylesTable stylesTable, XMLEventReader parser,
                                 final boolean use1904Dates, int rowCacheSize) {
+        this(sst, stylesTable, parser, use1904Dates, rowCacheSize, 0);
+    }
+
+    /**
+     * @param internCacheSize the number of inline and formula string values to intern,
+     *                        or 0 to decode every occurrence separately
+     */
+    public StreamingSheetReader(SharedStringsTable sst, StylesTable stylesTable, XMLEventReader parser,
+                                final boolean use1904Dates, int rowCacheSize, int internCacheSize) {
+        this(sst, CellStyles.of(stylesTable), parser, null, use1904Dates, rowCacheSize, internCacheSize, 0);
+    }
+
+    /**
+     * Creates a reader that opens the sheet's XML only when its rows are first read.
+     */
+    StreamingSheetReader(SharedStringsTable sst, CellStyles stylesTable, SheetSource source,
+                         final boolean use1904Dates, int rowCacheSize, int internCacheSize) {
+        this(sst, stylesTable, source, use1904Dates, rowCacheSize, internCacheSize, 0);
+    }
+
+    /**
+     * Creates a reader that opens the sheet's XML only when its rows are first read.
+     *
+     * @param rowIndexInterval the number of rows between the checkpoints of a {@link SheetIndex}
+     *                         built when the sheet is opened, or 0 to stream the sheet as it is
+     */
+    StreamingSheetReader(SharedStringsTable sst, CellStyles stylesTable, SheetSource source,
+                         final boolean use1904Dates, int rowCacheSize, int internCacheSize, int rowIndexInterval) {
+        this(sst, stylesTable, null, source, use1904Dates, rowCacheSize, internCacheSize, rowIndexInterval);
+    }
+
+    private StreamingSheetReader(SharedStringsTable sst, CellStyles stylesTable, XMLEventReader parser,
+                                 SheetSource source, final boolean use1904Dates, int rowCacheSize,
+                                 int internCacheSize, int rowIndexInterval) {
         this.sst = sst;
+        this.bufferedSst = sst instanceof BufferedStringsTable ? (BufferedStringsTable) sst : null;
         this.stylesTable = stylesTable;
-        this.parser = parser;
+        this.source = source;
         this.use1904Dates = use1904Dates;
         this.rowCacheSize = rowCacheSize;
+        this.interner = internCacheSize > 0 ? new StringInterner(internCacheSize) : null;
+        this.rowIndexInterval = rowIndexInterval;
+        this.rowSource = rowIndexInterval > 0 && source != null ? this::openIndexed : source;
+        this.cursor = new Cursor(parser, this.rowSource, 0, 0);
     }
 
     void setSheet(StreamingSheet sheet) {
@@ -58,21 +119,27 @@ public class StreamingSheetReader implements Iterable<Row> {
     }
 
     /**
-     * Read through a number of rows equal to the rowCacheSize field or until there is no more data to read
+     * Keeps the sheet's index in a directory that outlives the workbook.
      *
-     * @return true if data was read
+     * @param indexStore the directory of indexes
+     * @param partKey    the CRC32 and size key of the sheet's part
      */
-    private boolean getRow() {
-        try {
-            this.rowCache.clear();
-            while (this.rowCache.size() < this.rowCacheSize && this.parser.hasNext()) {
-                this.handleEvent(this.parser.nextEvent());
-            }
-            this.rowCacheIterator = this.rowCache.iterator();
-            return this.rowCacheIterator.hasNext();
-        } catch (XMLStreamException e) {
-            throw new ParseException("Error reading XML stream", e);
-        }
+    void setIndexStore(SheetIndexStore indexStore, String partKey) {
+        this.indexStore = indexStore;
+        this.indexPartKey = partKey;
+    }
+
+    /**
+     * Summarizes the given columns in a {@link ZoneMap} when the sheet is indexed.
+     *
+     * @param columns the 0-based columns, sorted
+     */
+    void setZoneMapColumns(int[] columns) {
+        this.zoneMapColumns = columns;
+    }
+
+    StringInterner getInterner() {
+        return this.interner;
     }
 
     private String[] splitCellRef(String ref) {
@@ -94,127 +161,6 @@ public class StreamingSheetReader implements Iterable<Row> {
         };
     }
 
-    /**
-     * Handles a SAX event.
-     *
-     * @param event
-     */
-    private void handleEvent(XMLEvent event) {
-        if (event.getEventType() == XMLStreamConstants.CHARACTERS) {
-            Characters c = event.asCharacters();
-            this.lastContents += c.getData();
-        } else if (event.getEventType() == XMLStreamConstants.START_ELEMENT
-                && this.isSpreadsheetTag(event.asStartElement().getName())) {
-            StartElement startElement = event.asStartElement();
-            String tagLocalName = startElement.getName().getLocalPart();
-
-            if ("row".equals(tagLocalName)) {
-                Attribute rowNumAttr = startElement.getAttributeByName(new QName("r"));
-                int rowIndex = this.currentRowNum;
-                if (rowNumAttr != null) {
-                    rowIndex = Integer.parseInt(rowNumAttr.getValue()) - 1;
-                    this.currentRowNum = rowIndex;
-                }
-                Attribute isHiddenAttr = startElement.getAttributeByName(new QName("hidden"));
-                boolean isHidden = isHiddenAttr != null && ("1".equals(isHiddenAttr.getValue()) || "true".equals(isHiddenAttr.getValue()));
-                this.currentRow = new StreamingRow(this.sheet, rowIndex, isHidden);
-                this.currentColNum = this.firstColNum;
-            } else if ("col".equals(tagLocalName)) {
-                Attribute isHiddenAttr = startElement.getAttributeByName(new QName("hidden"));
-                boolean isHidden = isHiddenAttr != null && ("1".equals(isHiddenAttr.getValue()) || "true".equals(isHiddenAttr.getValue()));
-                if (isHidden) {
-                    Attribute minAttr = startElement.getAttributeByName(new QName("min"));
-                    Attribute maxAttr = startElement.getAttributeByName(new QName("max"));
-                    int min = Integer.parseInt(minAttr.getValue()) - 1;
-                    int max = Integer.parseInt(maxAttr.getValue()) - 1;
-                    for (int columnIndex = min; columnIndex <= max; columnIndex++) {
-                        this.hiddenColumns.add(columnIndex);
-                    }
-                }
-            } else if ("c".equals(tagLocalName)) {
-                Attribute ref = startElement.getAttributeByName(new QName("r"));
-
-                if (ref != null) {
-                    String[] coord = this.splitCellRef(ref.getValue());
-                    this.currentColNum = CellReference.convertColStringToIndex(coord[0]);
-                    this.currentCell = new StreamingCell(this.sheet, this.currentColNum, Integer.parseInt(coord[1]) - 1, this.use1904Dates);
-                } else {
-                    this.currentCell = new StreamingCell(this.sheet, this.currentColNum, this.currentRowNum, this.use1904Dates);
-                }
-                this.setFormatString(startElement, this.currentCell);
-
-                Attribute type = startElement.getAttributeByName(new QName("t"));
-                if (type != null) {
-                    this.currentCell.setType(type.getValue());
-                } else {
-                    this.currentCell.setType("n");
-                }
-
-                Attribute style = startElement.getAttributeByName(new QName("s"));
-                if (style != null) {
-                    String indexStr = style.getValue();
-                    try {
-                        int index = Integer.parseInt(indexStr);
-                        this.currentCell.setCellStyle(this.stylesTable.getStyleAt(index));
-                    } catch (NumberFormatException nfe) {
-                        log.warn("Ignoring invalid style index {}", indexStr);
-                    }
-                } else {
-                    this.currentCell.setCellStyle(this.stylesTable.getStyleAt(0));
-                }
-            } else if ("dimension".equals(tagLocalName)) {
-                Attribute refAttr = startElement.getAttributeByName(new QName("ref"));
-                String ref = refAttr != null ? refAttr.getValue() : null;
-                if (ref != null) {
-                    // ref is formatted as A1 or A1:F25. Take the last numbers of this string and use it as lastRowNum
-                    for (int i = ref.length() - 1; i >= 0; i--) {
-                        if (!Character.isDigit(ref.charAt(i))) {
-                            try {
-                                this.lastRowNum = Integer.parseInt(ref.substring(i + 1)) - 1;
-                            } catch (NumberFormatException ignore) {
-                            }
-                            break;
-                        }
-                    }
-                    for (int i = 0; i < ref.length(); i++) {
-                        if (!Character.isAlphabetic(ref.charAt(i))) {
-                            this.firstColNum = CellReference.convertColStringToIndex(ref.substring(0, i));
-                            break;
-                        }
-                    }
-                }
-            } else if ("f".equals(tagLocalName)) {
-                if (this.currentCell != null) {
-                    this.currentCell.setFormulaType(true);
-                }
-            }
-
-            // Clear contents cache
-            this.lastContents = "";
-        } else if (event.getEventType() == XMLStreamConstants.END_ELEMENT
-                && this.isSpreadsheetTag(event.asEndElement().getName())) {
-            EndElement endElement = event.asEndElement();
-            String tagLocalName = endElement.getName().getLocalPart();
-
-            if ("v".equals(tagLocalName) || "t".equals(tagLocalName)) {
-                this.currentCell.setRawContents(this.unformattedContents());
-                this.currentCell.setContentSupplier(this.formattedContents());
-            } else if ("row".equals(tagLocalName) && this.currentRow != null) {
-                this.rowCache.add(this.currentRow);
-                this.currentRowNum++;
-            } else if ("c".equals(tagLocalName)) {
-                this.currentRow.getCellMap().put(this.currentCell.getColumnIndex(), this.currentCell);
-                this.currentCell = null;
-                this.currentColNum++;
-            } else if ("f".equals(tagLocalName)) {
-                if (this.currentCell != null) {
-                    this.currentCell.setFormula(this.lastContents);
-                }
-            }
-
-        }
-    }
-
     /**
      * Returns true if a tag is part of the main namespace for SpreadsheetML:
      * <ul>
@@ -238,8 +184,8 @@ public class StreamingSheetReader implements Iterable<Row> {
      * @return hidden - <code>false</code> if the column is visible
      */
     boolean isColumnHidden(int columnIndex) {
-        if (this.rowCacheIterator == null) {
-            this.getRow();
+        if (this.cursor.rowCacheIterator == null) {
+            this.cursor.fill();
         }
         return this.hiddenColumns.contains(columnIndex);
     }
@@ -250,8 +196,8 @@ public class StreamingSheetReader implements Iterable<Row> {
      * @return
      */
     int getLastRowNum() {
-        if (this.rowCacheIterator == null) {
-            this.getRow();
+        if (this.cursor.rowCacheIterator == null) {
+            this.cursor.fill();
         }
         return this.lastRowNum;
     }
@@ -266,7 +212,7 @@ public class StreamingSheetReader implements Iterable<Row> {
     void setFormatString(StartElement startElement, StreamingCell cell) {
         Attribute cellStyle = startElement.getAttributeByName(new QName("s"));
         String cellStyleString = (cellStyle != null) ? cellStyle.getValue() : null;
-        XSSFCellStyle style = null;
+        CellStyle style = null;
 
         if (cellStyleString != null) {
             style = this.stylesTable.getStyleAt(Integer.parseInt(cellStyleString));
@@ -289,122 +235,982 @@ public class StreamingSheetReader implements Iterable<Row> {
         }
     }
 
+    private String decodeString(String raw) {
+        return this.interner != null ? this.interner.intern(raw) : StringInterner.decode(raw);
+    }
+
     /**
-     * Tries to format the contents of the last contents appropriately based on
-     * the type of cell and the discovered numeric format.
+     * Returns a new streaming iterator to loop through rows. This iterator is not
+     * guaranteed to have all rows in memory, and any particular iteration may
+     * trigger a load from disk to read in new data.
+     * <p>
+     * Every call starts at the first row with a cursor of its own, which parses the
+     * sheet's XML again but shares the workbook's shared strings and styles, so a
+     * sheet can be read more than once and several iterators can be used side by
+     * side. A reader created from an already open parser has a single cursor, which
+     * every iterator continues.
+     * <p>
+     * The sheet is opened by the first call to {@code hasNext()} or {@code next()}, and
+     * closed once the iterator has returned the last row. An iterator that is dropped
+     * before that is closed after it has been garbage collected, or when the workbook
+     * is closed.
      *
-     * @return
+     * @return the streaming iterator
      */
-    Supplier formattedContents() {
-        return this.getFormatterForType(this.currentCell.getType());
+    @Override
+    public Iterator<Row> iterator() {
+        if (!this.cursorTaken || this.rowSource == null) {
+            // the first iterator keeps the rows isColumnHidden or getLastRowNum may have read
+            this.cursorTaken = true;
+            return new StreamingRowIterator(this.cursor);
+        }
+        return new StreamingRowIterator(new Cursor(null, this.rowSource, 0, 0));
     }
 
     /**
-     * Tries to format the contents of the last contents appropriately based on
-     * the provided type and the discovered numeric format.
+     * Returns a new streaming iterator over the rows from {@code fromRow} on, which
+     * starts parsing at the nearest checkpoint of the sheet's {@link SheetIndex}. The
+     * iterator has its own position and does not move the one of {@link #iterator()}.
      *
-     * @return
+     * @param fromRow the 0-based number of the first row to return
+     * @return the streaming iterator
+     * @throws UnsupportedOperationException if the sheet is not indexed
      */
-    private Supplier getFormatterForType(String type) {
-        switch (type) {
-            case "s":           //string stored in shared table
-                if (!this.lastContents.isEmpty()) {
-                    int idx = Integer.parseInt(this.lastContents);
-                    return new StringSupplier(this.sst.getItemAt(idx).toString());
-                }
-                return new StringSupplier(this.lastContents);
-            case "inlineStr":   //inline string (not in sst)
-            case "str":
-                return new StringSupplier(new XSSFRichTextString(this.lastContents).toString());
-            case "e":           //error type
-                return new StringSupplier("ERROR:  " + this.lastContents);
-            case "n":           //numeric type
-                if (this.currentCell.getNumericFormat() != null && this.lastContents.length() > 0) {
-                    // the formatRawCellContents operation incurs a significant overhead on large sheets,
-                    // and we want to defer the execution of this method until the value is actually needed.
-                    // it is not needed in all cases..
-                    final String currentLastContents = this.lastContents;
-                    final int currentNumericFormatIndex = this.currentCell.getNumericFormatIndex();
-                    final String currentNumericFormat = this.currentCell.getNumericFormat();
-
-                    return new Supplier() {
-                        String cachedContent;
-
-                        @Override
-                        public Object getContent() {
-                            if (this.cachedContent == null) {
-                                this.cachedContent = StreamingSheetReader.this.dataFormatter.formatRawCellContents(
-                                        Double.parseDouble(currentLastContents),
-                                        currentNumericFormatIndex,
-                                        currentNumericFormat);
-                            }
+    Iterator<Row> iterator(int fromRow) {
+        SheetIndex index = this.index();
+        Cursor cursor = new Cursor(null, () -> index.openAt(fromRow), fromRow, index.getCheckpointRowNum(fromRow));
+        return new StreamingRowIterator(cursor);
+    }
 
-                            return this.cachedContent;
-                        }
-                    };
-                } else {
-                    return new StringSupplier(this.lastContents);
-                }
-            default:
-                return new StringSupplier(this.lastContents);
+    /**
+     * Reads a single row, parsing the sheet from the nearest checkpoint of its
+     * {@link SheetIndex} at or before the row.
+     *
+     * @param rownum the 0-based row number
+     * @return the row, or null if the sheet does not define it
+     * @throws UnsupportedOperationException if the sheet is not indexed
+     */
+    Row getRow(int rownum) {
+        SheetIndex index = this.index();
+        Cursor cursor = new Cursor(null, () -> index.openAt(rownum), rownum, index.getCheckpointRowNum(rownum));
+        // stop at the first row at or after the one asked for
+        cursor.batchSize = 1;
+        try {
+            if (cursor.fill()) {
+                Row row = cursor.rowCacheIterator.next();
+                return row.getRowNum() == rownum ? row : null;
+            }
+            return null;
+        } finally {
+            cursor.close();
         }
     }
 
     /**
-     * Returns the contents of the cell, with no formatting applied
+     * @return the 0-based number of the first row, or -1 if the sheet has no rows
+     * @throws UnsupportedOperationException if the sheet is not indexed
+     */
+    int getFirstRowNum() {
+        return this.index().getFirstRowNum();
+    }
+
+    /**
+     * @return the number of rows the sheet defines
+     * @throws UnsupportedOperationException if the sheet is not indexed
+     */
+    int getPhysicalNumberOfRows() {
+        return this.index().getPhysicalNumberOfRows();
+    }
+
+    /**
+     * Returns the index of the sheet. The index is normally recorded while the sheet
+     * is read for the first time; if it is needed before that read has reached the
+     * end, the rest of the part is copied now and the read goes on from the copy,
+     * which also works for a part that can only be streamed once. Without such a
+     * read, the whole sheet is copied and scanned now.
      *
-     * @return
+     * @return the index of the sheet
+     * @throws UnsupportedOperationException if the sheet is not indexed
      */
-    String unformattedContents() {
-        switch (this.currentCell.getType()) {
-            case "s":           //string stored in shared table
-                if (!this.lastContents.isEmpty()) {
-                    int idx = Integer.parseInt(this.lastContents);
-                    return this.sst.getItemAt(idx).toString();
+    private SheetIndex index() {
+        if (this.rowIndexInterval <= 0 || this.source == null) {
+            throw new UnsupportedOperationException("Random access to rows requires a row index, see "
+                    + "StreamingReader.Builder#rowIndexInterval(int)");
+        }
+        if (this.storedIndex() == null && this.indexingPass != null) {
+            // a cursor is still reading the sheet, finish its copy rather than read the part again
+            this.indexingPass.completeEarly();
+        }
+        if (this.index == null) {
+            IndexingPass pass;
+            try {
+                pass = new IndexingPass();
+            } catch (IOException e) {
+                throw new ReadException("Unable to index sheet", e);
+            }
+            try {
+                if (this.zoneMapColumns == null) {
+                    pass.complete();
+                } else {
+                    // the zone map is collected from the rows as they are parsed
+                    Cursor cursor = new Cursor(null, () -> pass, 0, 0);
+                    try {
+                        while (cursor.fill()) {
+                            // completes the pass at the end
+                        }
+                    } finally {
+                        cursor.close();
+                    }
                 }
-                return this.lastContents;
-            case "inlineStr":   //inline string (not in sst)
-                return new XSSFRichTextString(this.lastContents).toString();
-            default:
-                return this.lastContents;
+            } finally {
+                pass.discard();
+            }
+            if (this.index == null) {
+                throw new ReadException("Unable to index sheet", pass.failure);
+            }
         }
+        return this.index;
     }
 
     /**
-     * Returns a new streaming iterator to loop through rows. This iterator is not
-     * guaranteed to have all rows in memory, and any particular iteration may
-     * trigger a load from disk to read in new data.
+     * @return the index built so far or found in the index store, or null
+     */
+    private SheetIndex storedIndex() {
+        if (this.index == null && this.indexStore != null && !this.indexStoreChecked) {
+            this.indexStoreChecked = true;
+            this.index = this.indexStore.load(this.indexKey(), this.rowIndexInterval, this.zoneMapColumns);
+        }
+        return this.index;
+    }
+
+    private String indexKey() {
+        return this.indexStore == null ? null
+                : SheetIndexStore.key(this.indexPartKey, this.rowIndexInterval, this.zoneMapColumns);
+    }
+
+    /**
+     * Opens the whole sheet for a cursor of an indexed sheet: the copy of the index
+     * once there is one, otherwise the part itself, which the first cursor to read it
+     * records into the index as it goes.
+     */
+    private InputStream openIndexed() throws IOException {
+        SheetIndex index = this.storedIndex();
+        if (index != null) {
+            return index.open();
+        }
+        if (this.indexingPass == null) {
+            this.indexingPass = new IndexingPass();
+            return this.indexingPass;
+        }
+        return this.source.open();
+    }
+
+    /**
+     * Returns a new streaming iterator over the rows whose value in a column is a number
+     * in a range. Blocks of rows whose {@link ZoneMap} range in the column cannot match
+     * are skipped without being parsed; the other blocks are parsed and their rows
+     * filtered. A column that is not summarized is filtered in every block.
      *
+     * @param column the 0-based column to test
+     * @param from   the lowest value, inclusive
+     * @param to     the highest value, inclusive
      * @return the streaming iterator
+     * @throws UnsupportedOperationException if the sheet is not indexed
      */
-    @Override
-    public Iterator<Row> iterator() {
-        return new StreamingRowIterator();
+    Iterator<Row> iterator(int column, double from, double to) {
+        return new RangeRowIterator(this.index(), column, from, to);
+    }
+
+    /**
+     * Returns a new streaming iterator over the rows whose value in a column is a date
+     * in a range, see {@link #iterator(int, double, double)}.
+     *
+     * @param column the 0-based column to test
+     * @param from   the earliest date, inclusive
+     * @param to     the latest date, inclusive
+     * @return the streaming iterator
+     * @throws UnsupportedOperationException if the sheet is not indexed
+     */
+    Iterator<Row> iterator(int column, Date from, Date to) {
+        return this.iterator(column, DateUtil.getExcelDate(from, this.use1904Dates),
+                DateUtil.getExcelDate(to, this.use1904Dates));
+    }
+
+    /**
+     * @return the numeric value of a cell, or of its cached formula result, or null if it is not a number
+     */
+    private static Double numericValue(Cell cell) {
+        if (cell == null) {
+            return null;
+        }
+        CellType type = cell.getCellType() == CellType.FORMULA ? cell.getCachedFormulaResultType() : cell.getCellType();
+        if (type != CellType.NUMERIC) {
+            return null;
+        }
+        try {
+            return cell.getNumericCellValue();
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 
     public void close() {
         try {
-            this.parser.close();
-        } catch (XMLStreamException e) {
-            throw new CloseException(e);
+            this.cursor.close();
+            if (this.indexingPass != null) {
+                this.indexingPass.abandon();
+            }
+            for (OpenPart part : new ArrayList<>(this.openParts)) {
+                Cursor cursor = part.get();
+                if (cursor != null) {
+                    cursor.close();
+                } else {
+                    part.close();
+                }
+            }
+        } finally {
+            this.openParts.clear();
+            if (this.index != null) {
+                this.index.close();
+                this.index = null;
+            }
         }
     }
 
-    class StreamingRowIterator implements Iterator<Row> {
-        public StreamingRowIterator() {
-            if (StreamingSheetReader.this.rowCacheIterator == null) {
-                this.hasNext();
+    private OpenPart track(Cursor cursor, XMLEventReader parser, InputStream stream) {
+        this.closeCollected();
+        OpenPart part = new OpenPart(cursor, parser, stream, this.collectedCursors);
+        this.openParts.add(part);
+        return part;
+    }
+
+    /**
+     * Closes the parts of cursors that have been garbage collected without being closed.
+     */
+    private void closeCollected() {
+        Reference<? extends Cursor> reference;
+        while ((reference = this.collectedCursors.poll()) != null) {
+            OpenPart part = (OpenPart) reference;
+            if (this.openParts.remove(part)) {
+                try {
+                    part.close();
+                } catch (CloseException e) {
+                    log.debug("Failed to close sheet", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The parser and stream of a cursor that has opened the sheet. They are tracked
+     * through a weak reference to the cursor, so a cursor dropped before the end of
+     * the sheet does not stay reachable, and its part is closed once it has been
+     * garbage collected.
+     */
+    private static class OpenPart extends WeakReference<Cursor> {
+        private final XMLEventReader parser;
+        private final InputStream stream;
+
+        OpenPart(Cursor cursor, XMLEventReader parser, InputStream stream, ReferenceQueue<Cursor> queue) {
+            super(cursor, queue);
+            this.parser = parser;
+            this.stream = stream;
+        }
+
+        void close() {
+            try {
+                this.parser.close();
+                if (this.stream != null) {
+                    this.stream.close();
+                }
+            } catch (XMLStreamException | IOException e) {
+                throw new CloseException(e);
+            } finally {
+                if (this.stream instanceof IndexingPass) {
+                    // a no-op once the index has been published
+                    ((IndexingPass) this.stream).abandon();
+                }
+            }
+        }
+    }
+
+    /**
+     * The part of an indexed sheet as a cursor reads it, copied into a new
+     * {@link SheetIndex} along the way. The index is published once the cursor has
+     * parsed the whole part, and dropped if the cursor is closed before that. If the
+     * copy fails, the cursor reads on without it. Closing the stream does not drop
+     * the index, as the parser may close it when it reaches the end of the part.
+     * <p>
+     * The cursor passes every row it parses to {@link #row(Row)}, which collects the
+     * zone map of the index in the same pass.
+     */
+    private class IndexingPass extends FilterInputStream {
+        private final String key;
+        private final SheetIndex.Recorder recorder;
+        private final ZoneMap.Collector collector;
+        private boolean recording = true;
+        private boolean ended;
+        // the number of bytes passed on to the parser
+        private long position;
+        // set when the part was consumed by a failed early completion
+        private IOException broken;
+        private Exception failure;
+
+        IndexingPass() throws IOException {
+            super(StreamingSheetReader.this.source.open());
+            this.key = StreamingSheetReader.this.indexKey();
+            try {
+                File file = this.key != null ? StreamingSheetReader.this.indexStore.newSpill(this.key)
+                        : SheetIndex.newTempFile();
+                this.recorder = new SheetIndex.Recorder(file, StreamingSheetReader.this.rowIndexInterval);
+            } catch (IOException | RuntimeException e) {
+                this.in.close();
+                throw e;
+            }
+            int[] columns = StreamingSheetReader.this.zoneMapColumns;
+            this.collector = columns == null ? null
+                    : new ZoneMap.Collector(columns, StreamingSheetReader.this.rowIndexInterval);
+        }
+
+        /**
+         * Adds the values of a parsed row to the zone map. Rows are passed in the
+         * order of the part, so they fall in the same blocks as the checkpoints.
+         */
+        void row(Row row) {
+            if (this.collector != null && this.recording) {
+                this.collect(row);
+            }
+        }
+
+        private void collect(Row row) {
+            this.collector.nextRow();
+            for (int column : this.collector.getColumns()) {
+                Double value = numericValue(row.getCell(column));
+                if (value != null) {
+                    this.collector.add(column, value);
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            this.checkBroken();
+            int b = super.read();
+            if (b != -1) {
+                this.position++;
+                this.record(new byte[]{(byte) b}, 0, 1);
+            } else {
+                this.ended = true;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            this.checkBroken();
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                this.position += read;
+                this.record(b, off, read);
+            } else if (read == -1) {
+                this.ended = true;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes have to be copied as well
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = this.read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void checkBroken() throws IOException {
+            if (this.broken != null) {
+                throw new IOException("Sheet could not be read on after indexing it failed", this.broken);
+            }
+        }
+
+        private void record(byte[] b, int off, int len) {
+            if (!this.recording) {
+                return;
+            }
+            try {
+                this.recorder.update(b, off, len);
+            } catch (IOException e) {
+                log.warn("Unable to record sheet index, reading on without it", e);
+                this.failure = e;
+                this.abandon();
+            }
+        }
+
+        /**
+         * Copies whatever the parser has not read of the part yet and publishes the
+         * index, once the cursor has parsed every row.
+         */
+        void complete() {
+            if (!this.recording) {
+                return;
+            }
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                while (!this.ended && this.read(buffer, 0, buffer.length) != -1) {
+                    // copied by read
+                }
+                if (!this.recording) {
+                    return;
+                }
+                this.recording = false;
+                this.publish(this.recorder.finish(this.collector == null ? null : this.collector.build()));
+            } catch (IOException | RuntimeException e) {
+                log.warn("Unable to record sheet index", e);
+                this.failure = e;
+                this.recorder.abandon();
+            } finally {
+                this.detach();
+            }
+        }
+
+        /**
+         * Publishes the index while the cursor is still reading the part. The rest of
+         * the part is copied, the ranges of the rows the cursor has not parsed yet are
+         * collected from the copy, and the cursor reads on from the copy.
+         */
+        void completeEarly() {
+            if (!this.recording) {
+                return;
+            }
+            this.recording = false;
+            boolean drained = false;
+            SheetIndex index = null;
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while (!this.ended && (read = this.in.read(buffer)) != -1) {
+                    drained = true;
+                    this.recorder.update(buffer, 0, read);
+                }
+                index = this.recorder.finish(null);
+                if (this.collector != null) {
+                    this.collectRemaining(index);
+                    index = index.withZoneMap(this.collector.build());
+                }
+                SheetIndex published = this.publish(index);
+                InputStream rest = published.openFrom(this.position);
+                InputStream part = this.in;
+                this.in = rest;
+                this.ended = false;
+                part.close();
+            } catch (IOException | RuntimeException e) {
+                log.warn("Unable to record sheet index", e);
+                this.failure = e;
+                if (index != null) {
+                    index.closeChannel();
+                }
+                this.recorder.abandon();
+                if (drained) {
+                    this.broken = e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+            } finally {
+                this.detach();
+            }
+        }
+
+        /**
+         * Collects the ranges of the rows after the ones the cursor has parsed.
+         */
+        private void collectRemaining(SheetIndex index) {
+            int collected = this.collector.getRows();
+            int block = collected / index.getInterval();
+            if (block >= index.getBlockCount()) {
+                return;
+            }
+            int skip = collected - block * index.getInterval();
+            Cursor cursor = new Cursor(null, () -> index.openBlock(block), 0, index.getBlockRowNum(block));
+            try {
+                while (cursor.fill()) {
+                    while (cursor.rowCacheIterator.hasNext()) {
+                        Row row = cursor.rowCacheIterator.next();
+                        if (skip > 0) {
+                            skip--;
+                        } else {
+                            this.collect(row);
+                        }
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        private SheetIndex publish(SheetIndex index) throws IOException {
+            if (this.key != null) {
+                index = StreamingSheetReader.this.indexStore.commit(this.key, index,
+                        StreamingSheetReader.this.zoneMapColumns);
+            }
+            if (StreamingSheetReader.this.index == null) {
+                StreamingSheetReader.this.index = index;
+            } else {
+                index.close();
+            }
+            return StreamingSheetReader.this.index;
+        }
+
+        /**
+         * Stops recording and deletes what has been copied so far.
+         */
+        void abandon() {
+            if (this.recording) {
+                this.recording = false;
+                this.recorder.abandon();
+            }
+            this.detach();
+        }
+
+        private void detach() {
+            if (StreamingSheetReader.this.indexingPass == this) {
+                StreamingSheetReader.this.indexingPass = null;
+            }
+        }
+
+        /**
+         * Closes the part and drops the index unless it has been published.
+         */
+        void discard() {
+            try {
+                this.close();
+            } catch (IOException e) {
+                log.debug("Failed to close sheet", e);
+            } finally {
+                this.abandon();
+            }
+        }
+    }
+
+    /**
+     * A position in the sheet's XML with the state of the row being parsed. Rows are
+     * read into the cursor's cache, {@code rowCacheSize} at a time.
+     */
+    private class Cursor {
+        private final SheetSource source;
+        // rows before this one are parsed but not returned
+        private final int fromRow;
+        private XMLEventReader parser;
+        private InputStream sourceStream;
+        private OpenPart part;
+        private boolean exhausted;
+        private int batchSize = StreamingSheetReader.this.rowCacheSize;
+
+        private int currentRowNum;
+        private int currentColNum;
+        private List<Row> rowCache = new ArrayList<>();
+        private Iterator<Row> rowCacheIterator;
+
+        private String lastContents;
+        private StreamingRow currentRow;
+        private StreamingCell currentCell;
+
+        Cursor(XMLEventReader parser, SheetSource source, int fromRow, int firstRowNum) {
+            this.parser = parser;
+            this.source = source;
+            this.fromRow = fromRow;
+            this.currentRowNum = firstRowNum;
+            if (parser != null) {
+                this.part = StreamingSheetReader.this.track(this, parser, null);
+            }
+        }
+
+        /**
+         * Read through a number of rows equal to the rowCacheSize field or until there is no more data to read
+         *
+         * @return true if data was read
+         */
+        private boolean fill() {
+            try {
+                this.rowCache.clear();
+                if (!this.exhausted) {
+                    XMLEventReader parser = this.parser();
+                    while (this.rowCache.size() < this.batchSize && parser.hasNext()) {
+                        this.handleEvent(parser.nextEvent());
+                    }
+                    if (!parser.hasNext()) {
+                        // the whole sheet has been read, release its stream and parser
+                        this.exhausted = true;
+                        if (this.sourceStream instanceof IndexingPass) {
+                            ((IndexingPass) this.sourceStream).complete();
+                        }
+                        this.close();
+                    }
+                }
+                this.rowCacheIterator = this.rowCache.iterator();
+                return this.rowCacheIterator.hasNext();
+            } catch (XMLStreamException e) {
+                throw new ParseException("Error reading XML stream", e);
+            }
+        }
+
+        private XMLEventReader parser() throws XMLStreamException {
+            if (this.parser == null) {
+                InputStream stream;
+                try {
+                    stream = this.source.open();
+                } catch (IOException e) {
+                    throw new ReadException("Unable to open sheet", e);
+                }
+                try {
+                    this.parser = StaxHelper.newXMLInputFactory().createXMLEventReader(stream);
+                } catch (XMLStreamException | RuntimeException e) {
+                    try {
+                        stream.close();
+                    } catch (IOException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                    throw e;
+                }
+                this.sourceStream = stream;
+                this.part = StreamingSheetReader.this.track(this, this.parser, stream);
+            }
+            return this.parser;
+        }
+
+        /**
+         * Handles a SAX event.
+         *
+         * @param event
+         */
+        private void handleEvent(XMLEvent event) {
+            if (event.getEventType() == XMLStreamConstants.CHARACTERS) {
+                Characters c = event.asCharacters();
+                this.lastContents += c.getData();
+            } else if (event.getEventType() == XMLStreamConstants.START_ELEMENT
+                    && StreamingSheetReader.this.isSpreadsheetTag(event.asStartElement().getName())) {
+                StartElement startElement = event.asStartElement();
+                String tagLocalName = startElement.getName().getLocalPart();
+
+                if ("row".equals(tagLocalName)) {
+                    Attribute rowNumAttr = startElement.getAttributeByName(new QName("r"));
+                    int rowIndex = this.currentRowNum;
+                    if (rowNumAttr != null) {
+                        rowIndex = Integer.parseInt(rowNumAttr.getValue()) - 1;
+                        this.currentRowNum = rowIndex;
+                    }
+                    Attribute isHiddenAttr = startElement.getAttributeByName(new QName("hidden"));
+                    boolean isHidden = isHiddenAttr != null && ("1".equals(isHiddenAttr.getValue()) || "true".equals(isHiddenAttr.getValue()));
+                    this.currentRow = new StreamingRow(StreamingSheetReader.this.sheet, rowIndex, isHidden);
+                    this.currentColNum = StreamingSheetReader.this.firstColNum;
+                } else if ("col".equals(tagLocalName)) {
+                    Attribute isHiddenAttr = startElement.getAttributeByName(new QName("hidden"));
+                    boolean isHidden = isHiddenAttr != null && ("1".equals(isHiddenAttr.getValue()) || "true".equals(isHiddenAttr.getValue()));
+                    if (isHidden) {
+                        Attribute minAttr = startElement.getAttributeByName(new QName("min"));
+                        Attribute maxAttr = startElement.getAttributeByName(new QName("max"));
+                        int min = Integer.parseInt(minAttr.getValue()) - 1;
+                        int max = Integer.parseInt(maxAttr.getValue()) - 1;
+                        for (int columnIndex = min; columnIndex <= max; columnIndex++) {
+                            StreamingSheetReader.this.hiddenColumns.add(columnIndex);
+                        }
+                    }
+                } else if ("c".equals(tagLocalName)) {
+                    Attribute ref = startElement.getAttributeByName(new QName("r"));
+
+                    if (ref != null) {
+                        String[] coord = StreamingSheetReader.this.splitCellRef(ref.getValue());
+                        this.currentColNum = CellReference.convertColStringToIndex(coord[0]);
+                        this.currentCell = new StreamingCell(StreamingSheetReader.this.sheet, this.currentColNum, Integer.parseInt(coord[1]) - 1, StreamingSheetReader.this.use1904Dates);
+                    } else {
+                        this.currentCell = new StreamingCell(StreamingSheetReader.this.sheet, this.currentColNum, this.currentRowNum, StreamingSheetReader.this.use1904Dates);
+                    }
+                    StreamingSheetReader.this.setFormatString(startElement, this.currentCell);
+
+                    Attribute type = startElement.getAttributeByName(new QName("t"));
+                    if (type != null) {
+                        this.currentCell.setType(type.getValue());
+                    } else {
+                        this.currentCell.setType("n");
+                    }
+
+                    Attribute style = startElement.getAttributeByName(new QName("s"));
+                    if (style != null) {
+                        String indexStr = style.getValue();
+                        try {
+                            int index = Integer.parseInt(indexStr);
+                            this.currentCell.setCellStyle(StreamingSheetReader.this.stylesTable.getStyleAt(index));
+                        } catch (NumberFormatException nfe) {
+                            log.warn("Ignoring invalid style index {}", indexStr);
+                        }
+                    } else {
+                        this.currentCell.setCellStyle(StreamingSheetReader.this.stylesTable.getStyleAt(0));
+                    }
+                } else if ("dimension".equals(tagLocalName)) {
+                    Attribute refAttr = startElement.getAttributeByName(new QName("ref"));
+                    String ref = refAttr != null ? refAttr.getValue() : null;
+                    if (ref != null) {
+                        // ref is formatted as A1 or A1:F25. Take the last numbers of this string and use it as lastRowNum
+                        for (int i = ref.length() - 1; i >= 0; i--) {
+                            if (!Character.isDigit(ref.charAt(i))) {
+                                try {
+                                    StreamingSheetReader.this.lastRowNum = Integer.parseInt(ref.substring(i + 1)) - 1;
+                                } catch (NumberFormatException ignore) {
+                                }
+                                break;
+                            }
+                        }
+                        for (int i = 0; i < ref.length(); i++) {
+                            if (!Character.isAlphabetic(ref.charAt(i))) {
+                                StreamingSheetReader.this.firstColNum = CellReference.convertColStringToIndex(ref.substring(0, i));
+                                break;
+                            }
+                        }
+                    }
+                } else if ("f".equals(tagLocalName)) {
+                    if (this.currentCell != null) {
+                        this.currentCell.setFormulaType(true);
+                    }
+                }
+
+                // Clear contents cache
+                this.lastContents = "";
+            } else if (event.getEventType() == XMLStreamConstants.END_ELEMENT
+                    && StreamingSheetReader.this.isSpreadsheetTag(event.asEndElement().getName())) {
+                EndElement endElement = event.asEndElement();
+                String tagLocalName = endElement.getName().getLocalPart();
+
+                if ("v".equals(tagLocalName) || "t".equals(tagLocalName)) {
+                    // resolve the raw value once, string types reuse it as their formatted value
+                    String unformattedContents = this.unformattedContents();
+                    this.currentCell.setRawContents(unformattedContents);
+                    this.currentCell.setContentSupplier(this.formattedContents(unformattedContents));
+                } else if ("row".equals(tagLocalName) && this.currentRow != null) {
+                    if (this.sourceStream instanceof IndexingPass) {
+                        ((IndexingPass) this.sourceStream).row(this.currentRow);
+                    }
+                    if (this.currentRow.getRowNum() >= this.fromRow) {
+                        this.rowCache.add(this.currentRow);
+                    }
+                    this.currentRowNum++;
+                } else if ("c".equals(tagLocalName)) {
+                    this.currentRow.getCellMap().put(this.currentCell.getColumnIndex(), this.currentCell);
+                    this.currentCell = null;
+                    this.currentColNum++;
+                } else if ("f".equals(tagLocalName)) {
+                    if (this.currentCell != null) {
+                        this.currentCell.setFormula(this.lastContents);
+                    }
+                }
+
             }
         }
 
+        /**
+         * Tries to format the contents of the last contents appropriately based on
+         * the type of cell and the discovered numeric format.
+         *
+         * @param unformattedContents the result of {@link #unformattedContents()} for the current cell
+         * @return
+         */
+        Supplier formattedContents(String unformattedContents) {
+            return this.getFormatterForType(this.currentCell.getType(), unformattedContents);
+        }
+
+        /**
+         * Tries to format the contents of the last contents appropriately based on
+         * the provided type and the discovered numeric format.
+         *
+         * @return
+         */
+        private Supplier getFormatterForType(String type, String unformattedContents) {
+            switch (type) {
+                case "s":           //string stored in shared table, already resolved
+                case "inlineStr":   //inline string (not in sst)
+                    return new StringSupplier(unformattedContents);
+                case "str":
+                    return new StringSupplier(StreamingSheetReader.this.decodeString(this.lastContents));
+                case "e":           //error type
+                    return new StringSupplier("ERROR:  " + this.lastContents);
+                case "n":           //numeric type
+                    if (this.currentCell.getNumericFormat() != null && this.lastContents.length() > 0) {
+                        // the formatRawCellContents operation incurs a significant overhead on large sheets,
+                        // and we want to defer the execution of this method until the value is actually needed.
+                        // it is not needed in all cases..
+                        final String currentLastContents = this.lastContents;
+                        final int currentNumericFormatIndex = this.currentCell.getNumericFormatIndex();
+                        final String currentNumericFormat = this.currentCell.getNumericFormat();
+
+                        return new Supplier() {
+                            String cachedContent;
+
+                            @Override
+                            public Object getContent() {
+                                if (this.cachedContent == null) {
+                                    this.cachedContent = StreamingSheetReader.this.dataFormatter.formatRawCellContents(
+                                            Double.parseDouble(currentLastContents),
+                                            currentNumericFormatIndex,
+                                            currentNumericFormat);
+                                }
+
+                                return this.cachedContent;
+                            }
+                        };
+                    } else {
+                        return new StringSupplier(this.lastContents);
+                    }
+                default:
+                    return new StringSupplier(this.lastContents);
+            }
+        }
+
+        /**
+         * Returns the contents of the cell, with no formatting applied
+         *
+         * @return
+         */
+        String unformattedContents() {
+            switch (this.currentCell.getType()) {
+                case "s":           //string stored in shared table
+                    if (!this.lastContents.isEmpty()) {
+                        int idx = Integer.parseInt(this.lastContents);
+                        return StreamingSheetReader.this.bufferedSst != null ? StreamingSheetReader.this.bufferedSst.getStringAt(idx) : StreamingSheetReader.this.sst.getItemAt(idx).getString();
+                    }
+                    return this.lastContents;
+                case "inlineStr":   //inline string (not in sst)
+                    return StreamingSheetReader.this.decodeString(this.lastContents);
+                default:
+                    return this.lastContents;
+            }
+        }
+
+        void close() {
+            OpenPart part = this.part;
+            this.part = null;
+            this.parser = null;
+            this.sourceStream = null;
+            if (part != null) {
+                StreamingSheetReader.this.openParts.remove(part);
+                part.clear();
+                part.close();
+            }
+        }
+    }
+
+    /**
+     * Iterates over the rows of the blocks that may hold a value in a range, filtering
+     * their rows. Consecutive candidate blocks are read with one cursor; a block that
+     * cannot match is skipped by opening a new cursor at the next candidate.
+     */
+    private class RangeRowIterator implements Iterator<Row> {
+        private final SheetIndex index;
+        private final ZoneMap zoneMap;
+        private final int column;
+        private final double from;
+        private final double to;
+        private Cursor cursor;
+        private int block = -1;
+        private int rowsInBlock;
+        private Row next;
+
+        RangeRowIterator(SheetIndex index, int column, double from, double to) {
+            this.index = index;
+            this.zoneMap = index.getZoneMap();
+            this.column = column;
+            this.from = from;
+            this.to = to;
+        }
+
         @Override
         public boolean hasNext() {
-            return (StreamingSheetReader.this.rowCacheIterator != null && StreamingSheetReader.this.rowCacheIterator.hasNext()) || StreamingSheetReader.this.getRow();
+            if (this.next == null) {
+                this.next = this.advance();
+            }
+            return this.next != null;
         }
 
         @Override
         public Row next() {
-            return StreamingSheetReader.this.rowCacheIterator.next();
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Row row = this.next;
+            this.next = null;
+            return row;
+        }
+
+        private Row advance() {
+            while (true) {
+                if (this.cursor == null || this.rowsInBlock == this.index.getInterval()) {
+                    int candidate = this.block + 1;
+                    while (candidate < this.index.getBlockCount() && !this.mayMatch(candidate)) {
+                        candidate++;
+                    }
+                    if (candidate >= this.index.getBlockCount()) {
+                        this.closeCursor();
+                        return null;
+                    }
+                    if (this.cursor == null || candidate != this.block + 1) {
+                        this.closeCursor();
+                        int start = candidate;
+                        this.cursor = new Cursor(null, () -> this.index.openBlock(start), 0,
+                                this.index.getBlockRowNum(start));
+                    }
+                    this.block = candidate;
+                    this.rowsInBlock = 0;
+                }
+                Iterator<Row> rows = this.cursor.rowCacheIterator;
+                if ((rows == null || !rows.hasNext()) && !this.cursor.fill()) {
+                    this.closeCursor();
+                    return null;
+                }
+                Row row = this.cursor.rowCacheIterator.next();
+                this.rowsInBlock++;
+                Double value = numericValue(row.getCell(this.column));
+                if (value != null && value >= this.from && value <= this.to) {
+                    return row;
+                }
+            }
+        }
+
+        private boolean mayMatch(int block) {
+            return this.zoneMap == null || this.zoneMap.mayMatch(block, this.column, this.from, this.to);
+        }
+
+        private void closeCursor() {
+            if (this.cursor != null) {
+                this.cursor.close();
+                this.cursor = null;
+            }
+        }
+    }
+
+    class StreamingRowIterator implements Iterator<Row> {
+        private final Cursor cursor;
+
+        StreamingRowIterator(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (this.cursor.rowCacheIterator != null && this.cursor.rowCacheIterator.hasNext()) || this.cursor.fill();
+        }
+
+        @Override
+        public Row next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return this.cursor.rowCacheIterator.next();
         }
 
         @Override
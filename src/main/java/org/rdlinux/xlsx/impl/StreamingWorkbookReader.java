@@ -3,37 +3,43 @@ package org.rdlinux.xlsx.impl;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
 import org.apache.poi.openxml4j.opc.OPCPackage;
-import org.apache.poi.poifs.crypt.Decryptor;
-import org.apache.poi.poifs.crypt.EncryptionInfo;
-import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
 import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.util.StaxHelper;
 import org.apache.poi.xssf.eventusermodel.XSSFReader;
 import org.apache.poi.xssf.eventusermodel.XSSFReader.SheetIterator;
 import org.apache.poi.xssf.model.SharedStringsTable;
-import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
 import org.rdlinux.xlsx.StreamingReader.Builder;
+import org.rdlinux.xlsx.exceptions.MissingSheetException;
 import org.rdlinux.xlsx.exceptions.OpenException;
 import org.rdlinux.xlsx.exceptions.ReadException;
 import org.rdlinux.xlsx.sst.BufferedStringsTable;
+import org.rdlinux.xlsx.sst.CompressedList;
+import org.rdlinux.xlsx.sst.FileBackedList;
+import org.rdlinux.xlsx.sst.InMemoryList;
+import org.rdlinux.xlsx.sst.OffHeapList;
+import org.rdlinux.xlsx.sst.SheetStringReferenceScanner;
+import org.rdlinux.xlsx.sst.SstDiskCache;
+import org.rdlinux.xlsx.sst.SstIndexFilter;
+import org.rdlinux.xlsx.sst.StringList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
-import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.XMLStreamException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.util.*;
 
 import static java.util.Arrays.asList;
-import static org.rdlinux.xlsx.XmlUtils.document;
-import static org.rdlinux.xlsx.XmlUtils.searchForNodeList;
+import static org.rdlinux.xlsx.impl.TempFileUtil.writeDecryptedPackageToFile;
 import static org.rdlinux.xlsx.impl.TempFileUtil.writeInputStreamToFile;
 
 public class StreamingWorkbookReader implements Iterable<Sheet>, AutoCloseable {
@@ -44,9 +50,14 @@ public class StreamingWorkbookReader implements Iterable<Sheet>, AutoCloseable {
     private final Builder builder;
     private File tmp;
     private File sstCache;
+    private File decrypted;
     private OPCPackage pkg;
+    private SinglePassPackage singlePassPkg;
+    private ArchivePackage archivePkg;
+    private PipelinedSpooler spooler;
     private SharedStringsTable sst;
     private boolean use1904Dates = false;
+    private WorkbookMetadata metadata;
 
     /**
      * This constructor exists only so the StreamingReader can instantiate
@@ -78,6 +89,21 @@ public class StreamingWorkbookReader implements Iterable<Sheet>, AutoCloseable {
     }
 
     public void init(InputStream is) {
+        if (this.builder.isPipelinedSpooling() && this.builder.getPassword() == null) {
+            this.initPipelined(is);
+            return;
+        }
+        if (this.builder.isSinglePass() && this.builder.getPassword() == null) {
+            this.initSinglePass(is, null);
+            return;
+        }
+        this.initSpooled(is);
+    }
+
+    /**
+     * Copies the input stream to a temp file and reads the workbook from the file.
+     */
+    private void initSpooled(InputStream is) {
         File f = null;
         try {
             f = writeInputStreamToFile(is, this.builder.getBufferSize());
@@ -96,77 +122,314 @@ public class StreamingWorkbookReader implements Iterable<Sheet>, AutoCloseable {
     }
 
     public void init(File f) {
+        if (this.builder.isLightweightZip() && !this.needsPackage()) {
+            try {
+                this.initArchive(new ZipFileArchive(f));
+            } catch (IOException e) {
+                this.closeQuietly();
+                throw new OpenException("Failed to open file", e);
+            } catch (RuntimeException e) {
+                this.closeQuietly();
+                throw e;
+            }
+            return;
+        }
         try {
             if (this.builder.getPassword() != null) {
-                // Based on: https://poi.apache.org/encryption.html
-                POIFSFileSystem poifs = new POIFSFileSystem(f);
-                EncryptionInfo info = new EncryptionInfo(poifs);
-                Decryptor d = Decryptor.getInstance(info);
-                d.verifyPassword(this.builder.getPassword());
-                this.pkg = OPCPackage.open(d.getDataStream(poifs));
+                this.decrypted = writeDecryptedPackageToFile(f, this.builder.getPassword(), this.builder.getBufferSize(),
+                        this.builder.getDecryptionThreads(), this.builder.getDerivedKeyCache());
+                log.debug("Created decrypted temp file [" + this.decrypted.getAbsolutePath() + "]");
+                this.pkg = OPCPackage.open(this.decrypted, PackageAccess.READ);
             } else {
                 this.pkg = OPCPackage.open(f);
             }
 
             XSSFReader reader = new XSSFReader(this.pkg);
-            if (this.builder.getSstCacheSizeBytes() > 0) {
-                this.sstCache = Files.createTempFile("", "").toFile();
-                log.debug("Created sst cache file [" + this.sstCache.getAbsolutePath() + "]");
-                this.sst = BufferedStringsTable.getSharedStringsTable(this.sstCache, this.builder.getSstCacheSizeBytes(), this.pkg);
-            } else {
-                this.sst = (SharedStringsTable) reader.getSharedStringsTable();
-            }
-
-            StylesTable styles = reader.getStylesTable();
-            NodeList workbookPr = searchForNodeList(document(reader.getWorkbookData()), "/ss:workbook/ss:workbookPr");
-            if (workbookPr.getLength() == 1) {
-                final Node date1904 = workbookPr.item(0).getAttributes().getNamedItem("date1904");
-                if (date1904 != null) {
-                    this.use1904Dates = ("1".equals(date1904.getTextContent()));
-                }
-            }
+            this.sst = this.loadSharedStrings(reader);
 
-            this.loadSheets(reader, this.sst, styles, this.builder.getRowCacheSize());
+            this.loadSheets(WorkbookMetadata.read(reader.getWorkbookData()), this.loadStyles(reader),
+                    new OpcSheetParts(this.pkg));
         } catch (IOException e) {
+            this.closeQuietly();
             throw new OpenException("Failed to open file", e);
-        } catch (OpenXML4JException | XMLStreamException e) {
+        } catch (OpenXML4JException e) {
+            this.closeQuietly();
             throw new ReadException("Unable to read workbook", e);
         } catch (GeneralSecurityException e) {
+            this.closeQuietly();
             throw new ReadException("Unable to read workbook - Decryption failed", e);
+        } catch (RuntimeException e) {
+            this.closeQuietly();
+            throw e;
+        }
+    }
+
+    /**
+     * Spools the input stream to a temp file on a background thread and reads the
+     * workbook from the file while it is still being written. See {@link PipelinedSpooler}.
+     */
+    private void initPipelined(InputStream is) {
+        InputStream reader;
+        try {
+            this.tmp = Files.createTempFile("tmp-", ".xlsx").toFile();
+            log.debug("Created temp file [" + this.tmp.getAbsolutePath() + "]");
+            this.spooler = new PipelinedSpooler(is, this.tmp, this.builder.getBufferSize());
+            reader = this.spooler.newReader();
+        } catch (IOException e) {
+            this.closeQuietly();
+            throw new ReadException("Unable to read input stream", e);
+        }
+        this.initSinglePass(reader, this.spooler);
+    }
+
+    /**
+     * Reads the workbook in a single pass over the input stream. See
+     * {@link SinglePassPackage}.
+     *
+     * @param spool the spooler that writes the file {@code is} reads, or null
+     */
+    private void initSinglePass(InputStream is, PipelinedSpooler spool) {
+        this.singlePassPkg = new SinglePassPackage(is, spool, this.builder.getBufferSize(),
+                in -> this.sst = this.loadSharedStrings(in), this.builder.isLightweightStyles(),
+                this.builder.getStylesCache());
+        try {
+            this.singlePassPkg.open();
+            this.loadSheets(this.singlePassPkg.getWorkbook(), this.singlePassPkg.getStyles(), this.singlePassPkg);
+        } catch (IOException e) {
+            this.closeQuietly();
+            throw new OpenException("Failed to open file", e);
+        } catch (RuntimeException e) {
+            this.closeQuietly();
+            throw e;
         }
     }
 
-    void loadSheets(XSSFReader reader, SharedStringsTable sst, StylesTable stylesTable, int rowCacheSize)
-            throws IOException, InvalidFormatException, XMLStreamException {
-        this.lookupSheetNames(reader);
+    /**
+     * @return whether the options require an {@code OPCPackage} rather than reading
+     * the entries of the archive directly: decryption, and the SST options that work
+     * on package parts
+     */
+    private boolean needsPackage() {
+        return this.builder.getPassword() != null || !this.builder.getSstSheets().isEmpty()
+                || this.builder.isAsyncSstLoading() || this.builder.getSstCacheDirectory() != null;
+    }
+
+    /**
+     * Reads the workbook from an archive held in a buffer, without temp files. See
+     * {@link ByteBufferArchive}. If the options need an {@code OPCPackage}, see
+     * {@link #needsPackage()}, the buffer is copied to a temp file and opened like a file.
+     *
+     * @param buffer the archive, from its position to its limit
+     */
+    public void init(ByteBuffer buffer) {
+        if (this.needsPackage()) {
+            this.initSpooled(new ByteBufferArchive.ByteBufferInputStream(buffer.duplicate()));
+            return;
+        }
+        try {
+            this.initArchive(new ByteBufferArchive(buffer));
+        } catch (IOException e) {
+            this.closeQuietly();
+            throw new OpenException("Failed to open file", e);
+        } catch (RuntimeException e) {
+            this.closeQuietly();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the workbook straight from the entries of an archive, resolving its parts
+     * through {@link PackageRelationships} instead of an {@code OPCPackage}.
+     */
+    private void initArchive(PartArchive archive) throws IOException {
+        this.archivePkg = new ArchivePackage(archive);
+        this.archivePkg.open(in -> this.sst = this.loadSharedStrings(in), this.builder.isLightweightStyles(),
+                this.builder.getStylesCache());
+        this.loadSheets(this.archivePkg.getWorkbook(), this.archivePkg.getStyles(), this.archivePkg);
+    }
+
+    /**
+     * Memory-maps a file and reads the workbook from the mapping. Files that are too
+     * large to be mapped into a single buffer, and workbooks whose options need an
+     * {@code OPCPackage}, see {@link #needsPackage()}, are opened like any other file.
+     *
+     * @param path the workbook file
+     */
+    public void init(Path path) {
+        MappedByteBuffer buffer = null;
+        if (!this.needsPackage()) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (channel.size() <= Integer.MAX_VALUE) {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            } catch (IOException e) {
+                throw new OpenException("Failed to open file", e);
+            }
+        }
+        if (buffer != null) {
+            this.init(buffer);
+        } else {
+            this.init(path.toFile());
+        }
+    }
 
-        //Some workbooks have multiple references to the same sheet. Need to filter
-        //them out before creating the XMLEventReader by keeping track of their URIs.
-        //The sheets are listed in order, so we must keep track of insertion order.
+    /**
+     * Creates a reader for every sheet listed in the workbook part. Sheets are opened
+     * when their rows are first read.
+     */
+    private void loadSheets(WorkbookMetadata workbook, CellStyles styles, SheetParts parts) {
+        this.setMetadata(workbook);
+        SheetIndexStore indexStore = null;
+        if (this.builder.getRowIndexInterval() > 0 && this.builder.getSheetIndexDirectory() != null
+                && this.builder.getPassword() == null) {
+            indexStore = new SheetIndexStore(this.builder.getSheetIndexDirectory(),
+                    this.builder.getSheetIndexDirectoryMaxSizeBytes(), this.builder.getSheetIndexDirectoryMaxAgeMillis());
+        }
+        for (WorkbookMetadata.SheetEntry entry : workbook.getSheets()) {
+            String rId = entry.getRelationshipId();
+            String path = parts.getSheetPath(rId);
+            if (path == null) {
+                throw new ReadException("Unable to find the part of sheet [" + rId + "]");
+            }
+            StreamingSheetReader reader = new StreamingSheetReader(this.sst, styles, () -> parts.openSheet(path),
+                    this.use1904Dates, this.builder.getRowCacheSize(), this.builder.getStringInternCacheSize(),
+                    this.builder.getRowIndexInterval());
+            if (this.builder.getZoneMapColumns().length > 0) {
+                reader.setZoneMapColumns(this.builder.getZoneMapColumns());
+            }
+            String partKey = indexStore == null ? null : parts.getPartKey(path);
+            if (partKey != null) {
+                reader.setIndexStore(indexStore, partKey);
+            }
+            this.sheets.add(new StreamingSheet(entry.getName(), reader));
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            this.close();
+        } catch (IOException | RuntimeException e) {
+            log.debug("Failed to close workbook", e);
+        }
+    }
+
+    /**
+     * Reads the styles of a package, as a {@link LightweightStylesTable} if the builder
+     * asks for it. The full table is then built only when a style property other than
+     * the number format is read.
+     */
+    private CellStyles loadStyles(XSSFReader reader) throws IOException, InvalidFormatException {
+        if (!this.builder.isLightweightStyles()) {
+            return CellStyles.of(reader.getStylesTable());
+        }
+        List<PackagePart> parts = this.pkg.getPartsByContentType(XSSFRelation.STYLES.getContentType());
+        if (parts.isEmpty()) {
+            return CellStyles.of(null);
+        }
+        try (InputStream in = reader.getStylesData()) {
+            return LightweightStylesTable.read(in, () -> {
+                try {
+                    return reader.getStylesTable();
+                } catch (InvalidFormatException e) {
+                    throw new IOException(e);
+                }
+            }, this.builder.getStylesCache(), SstDiskCache.key(parts.get(0)));
+        }
+    }
+
+    /**
+     * Loads the SST with the storage selected on the builder. POI's own table is used
+     * unless the SST has to be spilled, filtered, loaded in the background,
+     * compressed or kept off-heap.
+     */
+    private SharedStringsTable loadSharedStrings(XSSFReader reader)
+            throws IOException, InvalidFormatException {
+        int cacheSizeBytes = this.builder.getSstCacheSizeBytes();
+        SstIndexFilter filter = null;
+        if (!this.builder.getSstSheets().isEmpty()) {
+            filter = this.scanSharedStringReferences(reader, this.builder.getSstSheets());
+        }
+
+        if (cacheSizeBytes > 0 && filter == null && this.builder.getSstCacheDirectory() != null
+                && this.builder.getPassword() == null) {
+            SstDiskCache diskCache = new SstDiskCache(this.builder.getSstCacheDirectory(),
+                    this.builder.getSstCacheDirectoryMaxSizeBytes(), this.builder.getSstCacheDirectoryMaxAgeMillis());
+            BufferedStringsTable cached = BufferedStringsTable.getSharedStringsTable(diskCache, cacheSizeBytes, this.pkg);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        if (cacheSizeBytes > 0 || filter != null || this.builder.isAsyncSstLoading() || this.builder.isSstCompression()
+                || this.builder.getSstOffHeapCapacityBytes() > 0) {
+            return BufferedStringsTable.getSharedStringsTable(this.createStringList(), this.pkg, filter,
+                    this.builder.isAsyncSstLoading());
+        }
+        return (SharedStringsTable) reader.getSharedStringsTable();
+    }
+
+    /**
+     * Loads an SST part read straight from the input, with the storage selected on the builder.
+     */
+    private SharedStringsTable loadSharedStrings(InputStream is) throws IOException {
+        if (this.builder.getSstCacheSizeBytes() > 0 || this.builder.isSstCompression()
+                || this.builder.getSstOffHeapCapacityBytes() > 0) {
+            return BufferedStringsTable.getSharedStringsTable(this.createStringList(), is);
+        }
+        SharedStringsTable sst = new SharedStringsTable();
+        sst.readFrom(is);
+        return sst;
+    }
+
+    private StringList createStringList() throws IOException {
+        int cacheSizeBytes = this.builder.getSstCacheSizeBytes();
+        if (cacheSizeBytes <= 0 && this.builder.getSstOffHeapCapacityBytes() > 0) {
+            return new OffHeapList(this.builder.getSstOffHeapCapacityBytes());
+        }
+        if (cacheSizeBytes <= 0) {
+            return this.builder.isSstCompression() ? new CompressedList(this.builder.getSstCompressionCachedBlocks()) : new InMemoryList();
+        }
+        this.sstCache = Files.createTempFile("", "").toFile();
+        log.debug("Created sst cache file [" + this.sstCache.getAbsolutePath() + "]");
+        if (this.builder.isSstPageCache()) {
+            return new FileBackedList(this.sstCache, cacheSizeBytes, this.builder.isSstPrefetch());
+        }
+        return new FileBackedList(this.sstCache, cacheSizeBytes);
+    }
+
+    /**
+     * Runs a byte-level pass over the named sheets to find the SST entries they reference.
+     */
+    SstIndexFilter scanSharedStringReferences(XSSFReader reader, Set<String> sheetNames)
+            throws IOException, InvalidFormatException {
+        BitSet referenced = new BitSet();
         SheetIterator iter = (SheetIterator) reader.getSheetsData();
-        Map<URI, InputStream> sheetStreams = new LinkedHashMap<>();
+        Set<String> found = new HashSet<>();
         while (iter.hasNext()) {
-            InputStream is = iter.next();
-            sheetStreams.put(iter.getSheetPart().getPartName().getURI(), is);
+            try (InputStream is = iter.next()) {
+                if (sheetNames.contains(iter.getSheetName())) {
+                    SheetStringReferenceScanner.scan(is, referenced);
+                    found.add(iter.getSheetName());
+                }
+            }
         }
-
-        //Iterate over the loaded streams
-        int i = 0;
-        for (URI uri : sheetStreams.keySet()) {
-            XMLEventReader parser = StaxHelper.newXMLInputFactory().createXMLEventReader(sheetStreams.get(uri));
-            this.sheets.add(new StreamingSheet(this.sheetProperties.get(i++).get("name"), new StreamingSheetReader(sst, stylesTable, parser, this.use1904Dates, rowCacheSize)));
+        if (!found.containsAll(sheetNames)) {
+            Set<String> missing = new HashSet<>(sheetNames);
+            missing.removeAll(found);
+            throw new MissingSheetException("Unable to find sheets " + missing);
         }
+        log.debug("Sheets " + sheetNames + " reference " + referenced.cardinality() + " SST entries");
+        return new SstIndexFilter(referenced);
     }
 
-    void lookupSheetNames(XSSFReader reader) throws IOException, InvalidFormatException {
+    private void setMetadata(WorkbookMetadata metadata) {
+        this.metadata = metadata;
+        this.use1904Dates = metadata.isDate1904();
         this.sheetProperties.clear();
-        NodeList nl = searchForNodeList(document(reader.getWorkbookData()), "/ss:workbook/ss:sheets/ss:sheet");
-        for (int i = 0; i < nl.getLength(); i++) {
+        for (WorkbookMetadata.SheetEntry entry : metadata.getSheets()) {
             Map<String, String> props = new HashMap<>();
-            props.put("name", nl.item(i).getAttributes().getNamedItem("name").getTextContent());
-
-            Node state = nl.item(i).getAttributes().getNamedItem("state");
-            props.put("state", state == null ? "visible" : state.getTextContent());
+            props.put("name", entry.getName());
+            props.put("state", entry.getState());
             this.sheetProperties.add(props);
         }
     }
@@ -179,6 +442,13 @@ public class StreamingWorkbookReader implements Iterable<Sheet>, AutoCloseable {
         return this.sheetProperties;
     }
 
+    /**
+     * @return the metadata of the workbook part, or null if the workbook has not been opened
+     */
+    public WorkbookMetadata getMetadata() {
+        return this.metadata;
+    }
+
     @Override
     public Iterator<Sheet> iterator() {
         return new StreamingSheetIterator(this.sheets.iterator());
@@ -190,19 +460,38 @@ public class StreamingWorkbookReader implements Iterable<Sheet>, AutoCloseable {
             for (StreamingSheet sheet : this.sheets) {
                 sheet.getReader().close();
             }
-            this.pkg.revert();
+            if (this.pkg != null) {
+                this.pkg.revert();
+            }
+            if (this.archivePkg != null) {
+                this.archivePkg.close();
+            }
         } finally {
+            if (this.spooler != null) {
+                this.spooler.close();
+            }
+            if (this.singlePassPkg != null) {
+                this.singlePassPkg.close();
+            }
             if (this.tmp != null) {
                 if (log.isDebugEnabled()) {
                     log.debug("Deleting tmp file [" + this.tmp.getAbsolutePath() + "]");
                 }
                 this.tmp.delete();
             }
+            if (this.decrypted != null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Deleting decrypted temp file [" + this.decrypted.getAbsolutePath() + "]");
+                }
+                this.decrypted.delete();
+            }
             if (this.sst instanceof BufferedStringsTable) {
+                ((BufferedStringsTable) this.sst).close();
+            }
+            if (this.sstCache != null) {
                 if (log.isDebugEnabled()) {
                     log.debug("Deleting sst cache file [" + this.sstCache.getAbsolutePath() + "]");
                 }
-                ((BufferedStringsTable) this.sst).close();
                 this.sstCache.delete();
             }
         }
@@ -0,0 +1,102 @@
+package org.rdlinux.xlsx.impl;
+
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+
+/**
+ * Bounded cache of decoded inline and formula string values for a single sheet.
+ * Exports that never write a shared strings table tend to repeat the same few
+ * values on every row; with this cache each distinct value is decoded once and
+ * every repeated occurrence shares the same {@code String} instance.
+ * <p>
+ * The cache is direct-mapped: a value is stored in the slot selected by the hash
+ * of its raw XML content and replaces whatever was there before, so lookups and
+ * updates are constant time and the cache never holds more than its number of
+ * slots. Values longer than {@value #MAX_LENGTH} characters are not cached.
+ * <p>
+ * Instances are not thread safe, which matches the single reader of a sheet.
+ */
+public class StringInterner {
+    static final int MAX_LENGTH = 1024;
+
+    private final Entry[] entries;
+    private final int mask;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param size the maximum number of cached values, rounded up to a power of two
+     */
+    StringInterner(int size) {
+        int capacity = size <= 1 ? 1 : Integer.highestOneBit(Math.min(size, 1 << 30) - 1) << 1;
+        this.entries = new Entry[capacity];
+        this.mask = this.entries.length - 1;
+    }
+
+    /**
+     * Decodes the raw content of a string cell, returning the cached instance if
+     * the same content was seen before.
+     *
+     * @param raw the cell's content as read from the XML
+     * @return the decoded value
+     */
+    String intern(String raw) {
+        if (raw.length() > MAX_LENGTH) {
+            this.misses++;
+            return decode(raw);
+        }
+        int h = raw.hashCode();
+        int slot = (h ^ (h >>> 16)) & this.mask;
+        Entry entry = this.entries[slot];
+        if (entry != null && entry.raw.equals(raw)) {
+            this.hits++;
+            return entry.value;
+        }
+        this.misses++;
+        String value = decode(raw);
+        this.entries[slot] = new Entry(raw, value);
+        return value;
+    }
+
+    static String decode(String raw) {
+        return new XSSFRichTextString(raw).toString();
+    }
+
+    /**
+     * @return the number of lookups that returned a cached value
+     */
+    public long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * @return the number of lookups that had to decode the value
+     */
+    public long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * @return the fraction of lookups that returned a cached value, or 0 if there were none
+     */
+    public double getHitRate() {
+        long total = this.hits + this.misses;
+        return total == 0 ? 0 : (double) this.hits / total;
+    }
+
+    /**
+     * @return the maximum number of cached values
+     */
+    public int getCapacity() {
+        return this.entries.length;
+    }
+
+    private static class Entry {
+        final String raw;
+        final String value;
+
+        Entry(String raw, String value) {
+            this.raw = raw;
+            this.value = value;
+        }
+    }
+}
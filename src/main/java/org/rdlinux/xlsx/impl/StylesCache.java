@@ -0,0 +1,91 @@
+package org.rdlinux.xlsx.impl;
+
+import org.rdlinux.xlsx.sst.PartKey;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, in-process cache of the number formats read from the styles parts of
+ * workbooks. Workbooks produced by the same template or exporter usually carry a
+ * byte-identical {@code styles.xml}, which then only has to be parsed once.
+ * <p>
+ * Entries are keyed by the CRC32 and uncompressed size of the styles part as
+ * recorded in the ZIP directory, so the part is identified without reading it.
+ * The cached formats are immutable and shared by every workbook that hits them;
+ * each workbook still builds its own full {@code StylesTable} if a style property
+ * other than the number format is read. The least recently used entry is evicted
+ * when the cache is full. Instances are thread safe and are meant to be shared by
+ * the builders of an application. Only used together with lightweight styles.
+ */
+public class StylesCache {
+    private final int maxEntries;
+    private final LinkedHashMap<String, LightweightStylesTable.Formats> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxEntries the maximum number of cached styles parts
+     */
+    public StylesCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, LightweightStylesTable.Formats>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LightweightStylesTable.Formats> eldest) {
+                return this.size() > StylesCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param crc  the CRC32 of the styles part
+     * @param size the uncompressed size of the styles part
+     * @return the cache key of the part, or null if the ZIP directory did not record them
+     * @see PartKey
+     */
+    static String key(long crc, long size) {
+        return PartKey.of(crc, size);
+    }
+
+    synchronized LightweightStylesTable.Formats get(String key) {
+        LightweightStylesTable.Formats formats = this.entries.get(key);
+        if (formats != null) {
+            this.hits++;
+        } else {
+            this.misses++;
+        }
+        return formats;
+    }
+
+    synchronized void put(String key, LightweightStylesTable.Formats formats) {
+        this.entries.put(key, formats);
+    }
+
+    /**
+     * Removes all cached styles.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * @return the number of cached styles parts
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the number of opens that found their styles in the cache
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * @return the number of opens that had to parse their styles
+     */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+}
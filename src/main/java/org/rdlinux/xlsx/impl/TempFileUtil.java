@@ -1,10 +1,16 @@
 package org.rdlinux.xlsx.impl;
 
+import org.apache.poi.poifs.crypt.Decryptor;
+import org.apache.poi.poifs.crypt.EncryptionInfo;
+import org.apache.poi.poifs.crypt.EncryptionMode;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.security.GeneralSecurityException;
 
 public class TempFileUtil {
     public static File writeInputStreamToFile(InputStream is, int bufferSize) throws IOException {
@@ -16,8 +22,59 @@ public class TempFileUtil {
                 fos.write(bytes, 0, read);
             }
             return f;
+        } catch (IOException | RuntimeException e) {
+            f.delete();
+            throw e;
         } finally {
             is.close();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Decrypts a password protected workbook into a temp file, {@code bufferSize} bytes
+     * at a time, so that the package can be opened from disk instead of from a stream
+     * that POI would buffer in memory as a whole.
+     *
+     * <p>
+     * Agile encrypted workbooks are decrypted on {@code threads} threads when more than
+     * one is given, see {@link AgileSegmentDecryptor}.
+     *
+     * @param f          the encrypted workbook
+     * @param password   the password of the workbook
+     * @param bufferSize the number of bytes to decrypt at a time
+     * @param threads    the number of threads to decrypt Agile encrypted workbooks on
+     * @param keyCache   the cache of derived keys to use, or null to always derive the key
+     * @return the temp file holding the decrypted package
+     * @throws GeneralSecurityException if the password is incorrect or decryption fails
+     */
+    public static File writeDecryptedPackageToFile(File f, String password, int bufferSize, int threads,
+                                                   DerivedKeyCache keyCache) throws IOException, GeneralSecurityException {
+        // Based on: https://poi.apache.org/encryption.html
+        try (POIFSFileSystem poifs = new POIFSFileSystem(f, true)) {
+            EncryptionInfo info = new EncryptionInfo(poifs);
+            Decryptor d;
+            if (keyCache != null) {
+                d = keyCache.unlock(info, password);
+            } else {
+                d = Decryptor.getInstance(info);
+                if (!d.verifyPassword(password)) {
+                    d = null;
+                }
+            }
+            if (d == null) {
+                throw new GeneralSecurityException("Password incorrect");
+            }
+            if (threads <= 1 || info.getEncryptionMode() != EncryptionMode.agile) {
+                return writeInputStreamToFile(d.getDataStream(poifs), bufferSize);
+            }
+            File decrypted = Files.createTempFile("tmp-", ".xlsx").toFile();
+            try {
+                new AgileSegmentDecryptor(info.getHeader(), d.getSecretKey(), threads).decrypt(poifs, decrypted);
+                return decrypted;
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                decrypted.delete();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.rdlinux.xlsx.impl;
+
+import org.apache.poi.util.StaxHelper;
+import org.rdlinux.xlsx.exceptions.ParseException;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the streaming reader needs to know about a workbook part: the date system,
+ * the sheets in workbook order and the defined names. It is collected in a single
+ * streaming pass over {@code workbook.xml}, so that the part is neither built into
+ * a DOM nor parsed more than once per open. Instances are immutable.
+ */
+public class WorkbookMetadata {
+    private static final String OFFICE_RELATIONSHIPS_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    private final boolean date1904;
+    private final List<SheetEntry> sheets;
+    private final List<DefinedName> definedNames;
+
+    private WorkbookMetadata(boolean date1904, List<SheetEntry> sheets, List<DefinedName> definedNames) {
+        this.date1904 = date1904;
+        this.sheets = Collections.unmodifiableList(sheets);
+        this.definedNames = Collections.unmodifiableList(definedNames);
+    }
+
+    /**
+     * Reads the metadata of a workbook part.
+     *
+     * @param is the workbook part
+     * @return the metadata of the workbook
+     * @throws ParseException if the part is not well-formed XML or declares a DOCTYPE
+     */
+    public static WorkbookMetadata read(InputStream is) {
+        boolean date1904 = false;
+        List<SheetEntry> sheets = new ArrayList<>();
+        List<DefinedName> definedNames = new ArrayList<>();
+        XMLStreamReader reader = null;
+        try {
+            reader = StaxHelper.newXMLInputFactory().createXMLStreamReader(is);
+            // elements are matched by their local name at their depth below the root,
+            // which covers both transitional and strict namespaces
+            int depth = 0;
+            String parent = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.DTD) {
+                    // workbook parts have no use for a DTD, and entities must never be expanded
+                    throw new ParseException("DOCTYPE is not allowed in the workbook part");
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    if (depth == 1) {
+                        parent = null;
+                    }
+                    continue;
+                } else if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                depth++;
+                String name = reader.getLocalName();
+                if (depth == 2) {
+                    parent = name;
+                    if ("workbookPr".equals(name)) {
+                        date1904 = isTrue(reader.getAttributeValue(null, "date1904"));
+                    }
+                } else if (depth == 3 && "sheets".equals(parent) && "sheet".equals(name)) {
+                    String state = reader.getAttributeValue(null, "state");
+                    sheets.add(new SheetEntry(reader.getAttributeValue(null, "name"),
+                            state == null ? "visible" : state,
+                            reader.getAttributeValue(OFFICE_RELATIONSHIPS_NS, "id")));
+                } else if (depth == 3 && "definedNames".equals(parent) && "definedName".equals(name)) {
+                    String localSheetId = reader.getAttributeValue(null, "localSheetId");
+                    definedNames.add(new DefinedName(reader.getAttributeValue(null, "name"),
+                            localSheetId == null ? -1 : Integer.parseInt(localSheetId.trim()),
+                            isTrue(reader.getAttributeValue(null, "hidden")),
+                            reader.getElementText()));
+                    // getElementText leaves the reader on the end element
+                    depth--;
+                }
+            }
+        } catch (XMLStreamException | NumberFormatException e) {
+            throw new ParseException("Unable to parse workbook part", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // nothing was written, nothing to lose
+                }
+            }
+        }
+        return new WorkbookMetadata(date1904, sheets, definedNames);
+    }
+
+    private static boolean isTrue(String value) {
+        return "1".equals(value) || "true".equals(value);
+    }
+
+    /**
+     * @return whether dates use the 1904 date system
+     */
+    public boolean isDate1904() {
+        return this.date1904;
+    }
+
+    /**
+     * @return the sheets of the workbook, in workbook order
+     */
+    public List<SheetEntry> getSheets() {
+        return this.sheets;
+    }
+
+    /**
+     * @return the defined names of the workbook, in workbook order
+     */
+    public List<DefinedName> getDefinedNames() {
+        return this.definedNames;
+    }
+
+    /**
+     * A {@code <sheet>} element of the workbook part.
+     */
+    public static class SheetEntry {
+        private final String name;
+        private final String state;
+        private final String relationshipId;
+
+        SheetEntry(String name, String state, String relationshipId) {
+            this.name = name;
+            this.state = state;
+            this.relationshipId = relationshipId;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return {@code visible}, {@code hidden} or {@code veryHidden}
+         */
+        public String getState() {
+            return this.state;
+        }
+
+        /**
+         * @return the id of the relationship to the sheet's part
+         */
+        public String getRelationshipId() {
+            return this.relationshipId;
+        }
+    }
+
+    /**
+     * A {@code <definedName>} element of the workbook part.
+     */
+    public static class DefinedName {
+        private final String name;
+        private final int localSheetId;
+        private final boolean hidden;
+        private final String formula;
+
+        DefinedName(String name, int localSheetId, boolean hidden, String formula) {
+            this.name = name;
+            this.localSheetId = localSheetId;
+            this.hidden = hidden;
+            this.formula = formula;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return the index of the sheet the name is scoped to, or -1 for a workbook-wide name
+         */
+        public int getLocalSheetId() {
+            return this.localSheetId;
+        }
+
+        public boolean isHidden() {
+            return this.hidden;
+        }
+
+        /**
+         * @return the formula the name refers to
+         */
+        public String getFormula() {
+            return this.formula;
+        }
+    }
+}
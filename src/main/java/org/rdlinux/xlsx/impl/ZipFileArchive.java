@@ -0,0 +1,47 @@
+package org.rdlinux.xlsx.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * {@link PartArchive} over a {@link ZipFile}. Only the central directory is read
+ * when the archive is opened; entries are inflated when they are requested.
+ */
+class ZipFileArchive implements PartArchive {
+    private final ZipFile zipFile;
+    private final Map<String, ZipEntry> entries = new HashMap<>();
+
+    ZipFileArchive(File file) throws IOException {
+        this.zipFile = new ZipFile(file);
+        Enumeration<? extends ZipEntry> e = this.zipFile.entries();
+        while (e.hasMoreElements()) {
+            ZipEntry entry = e.nextElement();
+            if (!entry.isDirectory()) {
+                this.entries.put(PackageRelationships.normalize(entry.getName()), entry);
+            }
+        }
+    }
+
+    @Override
+    public InputStream getPart(String name) throws IOException {
+        ZipEntry entry = this.entries.get(name);
+        return entry == null ? null : this.zipFile.getInputStream(entry);
+    }
+
+    @Override
+    public String getPartKey(String name) {
+        ZipEntry entry = this.entries.get(name);
+        return entry == null ? null : StylesCache.key(entry.getCrc(), entry.getSize());
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.zipFile.close();
+    }
+}
@@ -0,0 +1,171 @@
+package org.rdlinux.xlsx.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The minimum and maximum numeric value of some columns in every block of rows of a
+ * {@link SheetIndex}, where a block is the rows from one checkpoint to the next.
+ * Dates are numbers in a sheet, so a date range is a range of their serial numbers.
+ * <p>
+ * A block whose range does not overlap the range asked for cannot hold a matching
+ * row and is skipped without being parsed. Instances are immutable.
+ */
+class ZoneMap {
+    private final int[] columns;
+    private final int blocks;
+    // per block, then per column
+    private final double[] min;
+    private final double[] max;
+
+    private ZoneMap(int[] columns, int blocks, double[] min, double[] max) {
+        this.columns = columns;
+        this.blocks = blocks;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @param column a 0-based column index
+     * @return whether the column is summarized
+     */
+    boolean covers(int column) {
+        return this.position(column) >= 0;
+    }
+
+    /**
+     * @param block  the index of a block
+     * @param column a 0-based column index
+     * @param from   the lowest value of the range, inclusive
+     * @param to     the highest value of the range, inclusive
+     * @return false if no row of the block has a value in the range in the column,
+     * true if one may have, or if the column or block is not summarized
+     */
+    boolean mayMatch(int block, int column, double from, double to) {
+        int c = this.position(column);
+        if (c < 0 || block >= this.blocks) {
+            return true;
+        }
+        int i = block * this.columns.length + c;
+        return this.min[i] <= to && this.max[i] >= from;
+    }
+
+    private int position(int column) {
+        for (int i = 0; i < this.columns.length; i++) {
+            if (this.columns[i] == column) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param columns the summarized columns
+     * @return whether this map summarizes exactly the given columns
+     */
+    boolean hasColumns(int[] columns) {
+        return Arrays.equals(this.columns, columns);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(this.columns.length);
+        for (int column : this.columns) {
+            out.writeInt(column);
+        }
+        out.writeInt(this.blocks);
+        for (int i = 0; i < this.min.length; i++) {
+            out.writeDouble(this.min[i]);
+            out.writeDouble(this.max[i]);
+        }
+    }
+
+    static ZoneMap read(DataInputStream in) throws IOException {
+        int[] columns = new int[in.readInt()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = in.readInt();
+        }
+        int blocks = in.readInt();
+        double[] min = new double[blocks * columns.length];
+        double[] max = new double[min.length];
+        for (int i = 0; i < min.length; i++) {
+            min[i] = in.readDouble();
+            max[i] = in.readDouble();
+        }
+        return new ZoneMap(columns, blocks, min, max);
+    }
+
+    /**
+     * Collects the ranges of the rows of a sheet, in the order of the sheet.
+     */
+    static class Collector {
+        private final int[] columns;
+        private final int interval;
+        private double[] min = new double[0];
+        private double[] max = new double[0];
+        private int blocks;
+        private int rows;
+
+        /**
+         * @param columns  the 0-based columns to summarize
+         * @param interval the number of rows in a block
+         */
+        Collector(int[] columns, int interval) {
+            this.columns = columns.clone();
+            this.interval = interval;
+        }
+
+        int[] getColumns() {
+            return this.columns;
+        }
+
+        /**
+         * @return the number of rows collected so far
+         */
+        int getRows() {
+            return this.rows;
+        }
+
+        /**
+         * Starts the next row.
+         */
+        void nextRow() {
+            if (this.rows % this.interval == 0) {
+                int size = (this.blocks + 1) * this.columns.length;
+                if (size > this.min.length) {
+                    int capacity = Math.max(size, this.min.length * 2);
+                    int filled = this.min.length;
+                    this.min = Arrays.copyOf(this.min, capacity);
+                    this.max = Arrays.copyOf(this.max, capacity);
+                    Arrays.fill(this.min, filled, capacity, Double.POSITIVE_INFINITY);
+                    Arrays.fill(this.max, filled, capacity, Double.NEGATIVE_INFINITY);
+                }
+                this.blocks++;
+            }
+            this.rows++;
+        }
+
+        /**
+         * Adds a value of the current row.
+         *
+         * @param column the 0-based column of the value
+         * @param value  the numeric value
+         */
+        void add(int column, double value) {
+            for (int c = 0; c < this.columns.length; c++) {
+                if (this.columns[c] == column) {
+                    int i = (this.blocks - 1) * this.columns.length + c;
+                    this.min[i] = Math.min(this.min[i], value);
+                    this.max[i] = Math.max(this.max[i], value);
+                    return;
+                }
+            }
+        }
+
+        ZoneMap build() {
+            int size = this.blocks * this.columns.length;
+            return new ZoneMap(this.columns, this.blocks, Arrays.copyOf(this.min, size), Arrays.copyOf(this.max, size));
+        }
+    }
+}
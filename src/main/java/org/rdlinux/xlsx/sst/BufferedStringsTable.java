@@ -7,111 +7,442 @@ import org.apache.poi.util.StaxHelper;
 import org.apache.poi.xssf.model.SharedStringsTable;
 import org.apache.poi.xssf.usermodel.XSSFRelation;
 import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.rdlinux.xlsx.exceptions.ReadException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.XMLStreamReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 public class BufferedStringsTable extends SharedStringsTable implements AutoCloseable {
-    private final FileBackedList list;
+    private static final Logger log = LoggerFactory.getLogger(BufferedStringsTable.class);
+    private static final int PUBLISH_BATCH_SIZE = 64;
+
+    private final StringList list;
+    private final SstIndexFilter filter;
+
+    // Background loading state. While the loader runs, the list is only touched
+    // while holding this table's monitor; entries are published in small batches.
+    private Thread loader;
+    private List<String> pending;
+    private volatile boolean loaded = true;
+    private volatile boolean closed;
+    private Exception failure;
+    private int published;
+    // set when the table is closed before the loader stopped
+    private boolean closeListWhenLoaded;
 
     public static BufferedStringsTable getSharedStringsTable(File tmp, int cacheSizeBytes, OPCPackage pkg)
             throws IOException {
+        return getSharedStringsTable(tmp, cacheSizeBytes, pkg, null);
+    }
+
+    /**
+     * Loads the SST of a package, keeping only the entries accepted by {@code filter}.
+     *
+     * @param tmp            file to spill the entries to, or null to keep them in memory
+     * @param cacheSizeBytes size of the in-memory cache when spilling to {@code tmp}
+     * @param pkg            the package to read the SST from
+     * @param filter         the SST indices to keep, or null to keep all of them
+     * @return the table, or null if the package has no SST
+     * @throws IOException if the SST could not be read
+     */
+    public static BufferedStringsTable getSharedStringsTable(File tmp, int cacheSizeBytes, OPCPackage pkg,
+                                                             SstIndexFilter filter) throws IOException {
+        return getSharedStringsTable(tmp, cacheSizeBytes, pkg, filter, false);
+    }
+
+    /**
+     * Loads the SST of a package, keeping only the entries accepted by {@code filter}.
+     * <p>
+     * If {@code async} is set, the part is parsed on a background thread and this method
+     * returns immediately. Entries become readable as soon as they are parsed, and
+     * {@link #getItemAt(int)} only blocks for an entry that has not been parsed yet.
+     * </p>
+     *
+     * @param tmp            file to spill the entries to, or null to keep them in memory
+     * @param cacheSizeBytes size of the in-memory cache when spilling to {@code tmp}
+     * @param pkg            the package to read the SST from
+     * @param filter         the SST indices to keep, or null to keep all of them
+     * @param async          whether to parse the SST on a background thread
+     * @return the table, or null if the package has no SST
+     * @throws IOException if the SST could not be read
+     */
+    public static BufferedStringsTable getSharedStringsTable(File tmp, int cacheSizeBytes, OPCPackage pkg,
+                                                             SstIndexFilter filter, boolean async) throws IOException {
+        List<PackagePart> parts = pkg.getPartsByContentType(XSSFRelation.SHARED_STRINGS.getContentType());
+        if (parts.size() == 0) {
+            return null;
+        }
+        StringList list = tmp == null ? new InMemoryList() : new FileBackedList(tmp, cacheSizeBytes);
+        return getSharedStringsTable(list, pkg, filter, async);
+    }
+
+    /**
+     * Loads the SST of a package into the given storage. See
+     * {@link #getSharedStringsTable(File, int, OPCPackage, SstIndexFilter, boolean)}.
+     *
+     * @param list   the empty storage to load the entries into, closed with the table
+     * @param pkg    the package to read the SST from
+     * @param filter the SST indices to keep, or null to keep all of them
+     * @param async  whether to parse the SST on a background thread
+     * @return the table, or null if the package has no SST
+     * @throws IOException if the SST could not be read
+     */
+    public static BufferedStringsTable getSharedStringsTable(StringList list, OPCPackage pkg, SstIndexFilter filter,
+                                                             boolean async) throws IOException {
+        List<PackagePart> parts = pkg.getPartsByContentType(XSSFRelation.SHARED_STRINGS.getContentType());
+        if (parts.size() == 0) {
+            list.close();
+            return null;
+        }
+        BufferedStringsTable sst = new BufferedStringsTable(list, filter);
+        if (async) {
+            sst.startLoading(parts.get(0));
+            return sst;
+        }
+        try {
+            sst.readFrom(parts.get(0));
+        } catch (IOException | RuntimeException e) {
+            list.close();
+            throw e;
+        }
+        return sst;
+    }
+
+    /**
+     * Loads an SST part that is read directly rather than through an {@link OPCPackage}.
+     *
+     * @param list the empty storage to load the entries into, closed with the table
+     * @param is   the content of the SST part
+     * @return the table
+     * @throws IOException if the SST could not be read
+     */
+    public static BufferedStringsTable getSharedStringsTable(StringList list, InputStream is) throws IOException {
+        BufferedStringsTable sst = new BufferedStringsTable(list, null);
+        try {
+            sst.readFrom(is);
+        } catch (IOException | RuntimeException e) {
+            list.close();
+            throw e;
+        }
+        return sst;
+    }
+
+    /**
+     * Loads the SST of a package through a persistent {@link SstDiskCache}. If the cache
+     * already holds this SST it is reused without parsing the part, otherwise the part is
+     * spilled into the cache directory and stored for later opens.
+     *
+     * @param diskCache      the cache to read from and store to
+     * @param cacheSizeBytes size of the in-memory cache
+     * @param pkg            the package to read the SST from
+     * @return the table, or null if the package has no SST or its part cannot be keyed
+     * @throws IOException if the SST could not be read
+     */
+    public static BufferedStringsTable getSharedStringsTable(SstDiskCache diskCache, int cacheSizeBytes, OPCPackage pkg)
+            throws IOException {
         List<PackagePart> parts = pkg.getPartsByContentType(XSSFRelation.SHARED_STRINGS.getContentType());
-        return parts.size() == 0 ? null : new BufferedStringsTable(parts.get(0), tmp, cacheSizeBytes);
+        String key = parts.size() == 0 ? null : SstDiskCache.key(parts.get(0));
+        if (key == null) {
+            return null;
+        }
+        FileBackedList cached = diskCache.load(key, cacheSizeBytes);
+        if (cached != null) {
+            return new BufferedStringsTable(cached, null);
+        }
+
+        File spill = diskCache.createSpillFile(key);
+        FileBackedList list = null;
+        try {
+            list = new FileBackedList(spill, cacheSizeBytes);
+            new BufferedStringsTable(list, null).readFrom(parts.get(0));
+            return new BufferedStringsTable(diskCache.store(key, list, spill, cacheSizeBytes), null);
+        } catch (IOException | RuntimeException e) {
+            if (list != null) {
+                list.close();
+            }
+            spill.delete();
+            throw e;
+        }
+    }
+
+    private BufferedStringsTable(StringList list, SstIndexFilter filter) {
+        this.list = list;
+        this.filter = filter;
+    }
+
+    private void readFrom(PackagePart part) throws IOException {
+        try (InputStream is = part.getInputStream()) {
+            this.readFrom(is);
+        }
+    }
+
+    private void startLoading(PackagePart part) {
+        this.pending = new ArrayList<>(PUBLISH_BATCH_SIZE);
+        this.loaded = false;
+        this.loader = new Thread(() -> {
+            Exception error = null;
+            try {
+                this.readFrom(part);
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                boolean closeList;
+                synchronized (this) {
+                    if (error == null) {
+                        this.publish();
+                    } else if (!this.closed) {
+                        log.debug("Failed to load shared strings", error);
+                        this.failure = error;
+                    }
+                    this.loaded = true;
+                    this.notifyAll();
+                    closeList = this.closeListWhenLoaded;
+                }
+                if (closeList) {
+                    this.list.close();
+                }
+            }
+        }, "xlsx-sst-loader");
+        this.loader.setDaemon(true);
+        this.loader.start();
+    }
+
+    private void append(StringBuilder str) throws IOException {
+        if (this.pending == null) {
+            this.list.add(str);
+            return;
+        }
+        if (this.closed) {
+            throw new IOException("Shared strings table was closed while loading");
+        }
+        this.pending.add(str.toString());
+        if (this.pending.size() == PUBLISH_BATCH_SIZE) {
+            synchronized (this) {
+                this.publish();
+                this.notifyAll();
+            }
+        }
     }
 
-    private BufferedStringsTable(PackagePart part, File file, int cacheSizeBytes) throws IOException {
-        this.list = new FileBackedList(file, cacheSizeBytes);
-        this.readFrom(part.getInputStream());
+    private void publish() {
+        for (String str : this.pending) {
+            this.list.add(str);
+        }
+        this.published += this.pending.size();
+        this.pending.clear();
     }
 
+    /**
+     * Blocks until the entry at {@code idx} has been loaded, then reads it while
+     * the loader is still running.
+     */
+    private synchronized String awaitItem(int idx) {
+        while (idx >= this.published && !this.loaded) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ReadException("Interrupted while waiting for shared strings", e);
+            }
+        }
+        if (this.failure != null) {
+            throw new ReadException("Unable to read shared strings", this.failure);
+        }
+        return this.list.getAt(idx);
+    }
+
+    /**
+     * Parses the SST with a cursor rather than events. The text of every kept {@code <si>}
+     * is collected into one reused buffer straight from the parser's character arrays, so
+     * rich text runs do not produce intermediate Strings, and skipped items are passed over
+     * without looking at their content.
+     */
     @Override
     public void readFrom(InputStream is) throws IOException {
+        XMLStreamReader xmlStreamReader = null;
         try {
-            XMLEventReader xmlEventReader = StaxHelper.newXMLInputFactory().createXMLEventReader(is);
+            xmlStreamReader = StaxHelper.newXMLInputFactory().createXMLStreamReader(is);
+            StringBuilder buf = new StringBuilder();
 
-            while (xmlEventReader.hasNext()) {
-                XMLEvent xmlEvent = xmlEventReader.nextEvent();
-
-                if (xmlEvent.isStartElement() && xmlEvent.asStartElement().getName().getLocalPart().equals("si")) {
-                    this.list.add(this.parseCT_Rst(xmlEventReader));
+            int index = 0;
+            while (xmlStreamReader.hasNext()) {
+                if (xmlStreamReader.next() == XMLStreamConstants.START_ELEMENT
+                        && "si".equals(xmlStreamReader.getLocalName())) {
+                    if (this.filter == null || this.filter.contains(index)) {
+                        buf.setLength(0);
+                        this.parseCT_Rst(xmlStreamReader, buf);
+                        this.append(buf);
+                    } else {
+                        this.skipElement(xmlStreamReader);
+                    }
+                    index++;
                 }
             }
         } catch (XMLStreamException e) {
             throw new IOException(e);
+        } finally {
+            if (xmlStreamReader != null) {
+                try {
+                    xmlStreamReader.close();
+                } catch (XMLStreamException e) {
+                    log.debug("Failed to close shared strings parser", e);
+                }
+            }
         }
     }
 
     /**
-     * Parses a {@code <si>} String Item. Returns just the text and drops the formatting. See <a
+     * Parses a {@code <si>} String Item. Collects just the text and drops the formatting. See <a
      * href="https://msdn.microsoft.com/en-us/library/documentformat.openxml.spreadsheet.sharedstringitem.aspx">xmlschema
      * type {@code CT_Rst}</a>.
      */
-    private String parseCT_Rst(XMLEventReader xmlEventReader) throws XMLStreamException {
+    private void parseCT_Rst(XMLStreamReader xmlStreamReader, StringBuilder buf) throws XMLStreamException {
         // Precondition: pointing to <si>;  Post condition: pointing to </si>
-        StringBuilder buf = new StringBuilder();
-        XMLEvent xmlEvent;
-        while ((xmlEvent = xmlEventReader.nextTag()).isStartElement()) {
-            switch (xmlEvent.asStartElement().getName().getLocalPart()) {
+        while (xmlStreamReader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (xmlStreamReader.getLocalName()) {
                 case "t": // Text
-                    buf.append(xmlEventReader.getElementText());
+                    this.readText(xmlStreamReader, buf);
                     break;
                 case "r": // Rich Text Run
-                    this.parseCT_RElt(xmlEventReader, buf);
+                    this.parseCT_RElt(xmlStreamReader, buf);
                     break;
                 case "rPh": // Phonetic Run
                 case "phoneticPr": // Phonetic Properties
-                    this.skipElement(xmlEventReader);
+                    this.skipElement(xmlStreamReader);
                     break;
                 default:
-                    throw new IllegalArgumentException(xmlEvent.asStartElement().getName().getLocalPart());
+                    throw new IllegalArgumentException(xmlStreamReader.getLocalName());
             }
         }
-        return buf.toString();
     }
 
     /**
-     * Parses a {@code <r>} Rich Text Run. Returns just the text and drops the formatting. See <a
+     * Parses a {@code <r>} Rich Text Run. Collects just the text and drops the formatting. See <a
      * href="https://msdn.microsoft.com/en-us/library/documentformat.openxml.spreadsheet.run.aspx">xmlschema
      * type {@code CT_RElt}</a>.
      */
-    private void parseCT_RElt(XMLEventReader xmlEventReader, StringBuilder buf) throws XMLStreamException {
+    private void parseCT_RElt(XMLStreamReader xmlStreamReader, StringBuilder buf) throws XMLStreamException {
         // Precondition: pointing to <r>;  Post condition: pointing to </r>
-        XMLEvent xmlEvent;
-        while ((xmlEvent = xmlEventReader.nextTag()).isStartElement()) {
-            switch (xmlEvent.asStartElement().getName().getLocalPart()) {
+        while (xmlStreamReader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (xmlStreamReader.getLocalName()) {
                 case "t": // Text
-                    buf.append(xmlEventReader.getElementText());
+                    this.readText(xmlStreamReader, buf);
                     break;
                 case "rPr": // Run Properties
-                    this.skipElement(xmlEventReader);
+                    this.skipElement(xmlStreamReader);
+                    break;
+                default:
+                    throw new IllegalArgumentException(xmlStreamReader.getLocalName());
+            }
+        }
+    }
+
+    private void readText(XMLStreamReader xmlStreamReader, StringBuilder buf) throws XMLStreamException {
+        // Precondition: pointing to <t>;  Post condition: pointing to </t>
+        while (true) {
+            switch (xmlStreamReader.next()) {
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    buf.append(xmlStreamReader.getTextCharacters(), xmlStreamReader.getTextStart(),
+                            xmlStreamReader.getTextLength());
+                    break;
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    buf.append(xmlStreamReader.getText());
                     break;
+                case XMLStreamConstants.END_ELEMENT:
+                    return;
+                case XMLStreamConstants.START_ELEMENT:
+                    throw new XMLStreamException("Unexpected element in text run", xmlStreamReader.getLocation());
+                case XMLStreamConstants.END_DOCUMENT:
+                    throw new XMLStreamException("Unexpected end of document in text run");
                 default:
-                    throw new IllegalArgumentException(xmlEvent.asStartElement().getName().getLocalPart());
+                    // comments and processing instructions
+                    break;
             }
         }
     }
 
-    private void skipElement(XMLEventReader xmlEventReader) throws XMLStreamException {
+    private void skipElement(XMLStreamReader xmlStreamReader) throws XMLStreamException {
         // Precondition: pointing to start element;  Post condition: pointing to end element
-        while (xmlEventReader.nextTag().isStartElement()) {
-            this.skipElement(xmlEventReader); // recursively skip over child
+        // Text content is skipped as well, since skipped elements such as <si> and <rPh> contain <t> runs
+        int depth = 1;
+        while (depth > 0) {
+            int event = xmlStreamReader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
         }
     }
 
     @Override
     public RichTextString getItemAt(int idx) {
-        return new XSSFRichTextString(this.list.getAt(idx));
+        return new XSSFRichTextString(this.rawStringAt(idx));
+    }
+
+    /**
+     * Returns the plain text of an SST entry without wrapping it in a rich text string.
+     * The entry is decoded like {@link XSSFRichTextString#getString()} does, so
+     * {@code _xHHHH_} escapes come back as the characters they stand for.
+     *
+     * @param idx the SST index
+     * @return the entry's text
+     */
+    public String getStringAt(int idx) {
+        String raw = this.rawStringAt(idx);
+        // most entries have no escapes, skip the rich text string for them
+        return raw.indexOf("_x") < 0 ? raw : new XSSFRichTextString(raw).getString();
+    }
+
+    /**
+     * @return the entry as it is stored in the part, with its {@code _xHHHH_} escapes
+     */
+    private String rawStringAt(int idx) {
+        if (this.filter != null) {
+            int compact = this.filter.compactIndex(idx);
+            if (compact < 0) {
+                throw new ReadException("SST entry [" + idx + "] is not referenced by the selected sheets");
+            }
+            idx = compact;
+        }
+        if (!this.loaded) {
+            return this.awaitItem(idx);
+        }
+        if (this.failure != null) {
+            throw new ReadException("Unable to read shared strings", this.failure);
+        }
+        return this.list.getAt(idx);
     }
 
     @Override
     public void close() throws IOException {
+        this.closed = true;
+        boolean deferred = false;
+        if (this.loader != null) {
+            try {
+                this.loader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                synchronized (this) {
+                    // the loader may still write to the list, it closes the list when it stops
+                    deferred = !this.loaded;
+                    this.closeListWhenLoaded = deferred;
+                }
+            }
+        }
         super.close();
-        this.list.close();
+        if (!deferred) {
+            this.list.close();
+        }
     }
 }
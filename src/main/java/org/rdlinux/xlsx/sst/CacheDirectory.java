@@ -0,0 +1,217 @@
+package org.rdlinux.xlsx.sst;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Directory of cache entries that outlive a single workbook, shared by the
+ * {@link SstDiskCache} and the sheet index store. Each entry is a data file
+ * ({@code <key><dataSuffix>}) and an index file ({@code <key>.idx}).
+ * <p>
+ * An entry is written to spill files in the directory first and committed by moving
+ * them into place, the index file last, so the index file acts as the commit marker
+ * and a half-written entry is never picked up. Entries are evicted by age and then,
+ * least recently used first, until the directory fits in its size budget.
+ */
+public class CacheDirectory {
+    private static final Logger log = LoggerFactory.getLogger(CacheDirectory.class);
+
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final String dataSuffix;
+    private final String entryName;
+    private final long maxSizeBytes;
+    private final long maxAgeMillis;
+
+    /**
+     * @param directory    the directory
+     * @param dataSuffix   the file name suffix of the data files
+     * @param entryName    what an entry is called in log messages
+     * @param maxSizeBytes the size budget of the directory
+     * @param maxAgeMillis the age after which an unused entry is evicted
+     */
+    public CacheDirectory(File directory, String dataSuffix, String entryName, long maxSizeBytes, long maxAgeMillis) {
+        this.directory = directory;
+        this.dataSuffix = dataSuffix;
+        this.entryName = entryName;
+        this.maxSizeBytes = maxSizeBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Opens the content of an entry from its files.
+     */
+    public interface Loader<T> {
+        T load(File data, File index) throws IOException;
+    }
+
+    /**
+     * Opens a committed entry and marks it as used. An entry that cannot be opened
+     * is deleted.
+     *
+     * @param key    the entry key
+     * @param loader opens the entry's files
+     * @return the loaded entry, or null if there is no usable entry for {@code key}
+     */
+    public <T> T load(String key, Loader<T> loader) {
+        File data = new File(this.directory, key + this.dataSuffix);
+        File index = new File(this.directory, key + INDEX_SUFFIX);
+        if (!index.isFile() || !data.isFile()) {
+            return null;
+        }
+        try {
+            T loaded = loader.load(data, index);
+            long now = System.currentTimeMillis();
+            index.setLastModified(now);
+            data.setLastModified(now);
+            log.debug("Loaded " + this.entryName + " [" + data.getAbsolutePath() + "]");
+            return loaded;
+        } catch (IOException e) {
+            log.warn("Discarding unreadable " + this.entryName + " [" + data.getAbsolutePath() + "]", e);
+            index.delete();
+            data.delete();
+            return null;
+        }
+    }
+
+    /**
+     * @param key the key the spill file is written for
+     * @return a new, empty file in the directory to write the data of an entry to
+     * @throws IOException if the file could not be created
+     */
+    public File createSpillFile(String key) throws IOException {
+        Files.createDirectories(this.directory.toPath());
+        return Files.createTempFile(this.directory.toPath(), key + "-", TEMP_SUFFIX).toFile();
+    }
+
+    /**
+     * @param spill a file from {@link #createSpillFile(String)}
+     * @return the file to write the index of the entry to before it is committed
+     */
+    public File spillIndexFile(File spill) {
+        return new File(spill.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Deletes a spill file and its index file.
+     *
+     * @param spill a file from {@link #createSpillFile(String)}
+     */
+    public void discard(File spill) {
+        spill.delete();
+        this.spillIndexFile(spill).delete();
+    }
+
+    /**
+     * Moves a spill file and its index file into place as the entry for {@code key}.
+     * Both are deleted if that fails.
+     *
+     * @param key   the entry key
+     * @param spill a file from {@link #createSpillFile(String)}, with its index file written
+     * @return the data file of the entry
+     * @throws IOException if the files could not be moved
+     */
+    public File commit(String key, File spill) throws IOException {
+        File data = new File(this.directory, key + this.dataSuffix);
+        try {
+            move(spill, data);
+            move(this.spillIndexFile(spill), new File(this.directory, key + INDEX_SUFFIX));
+        } finally {
+            this.discard(spill);
+        }
+        log.debug("Stored " + this.entryName + " [" + data.getAbsolutePath() + "]");
+        return data;
+    }
+
+    /**
+     * Removes entries older than the maximum age, then the least recently used
+     * entries until the directory is within its size budget.
+     */
+    public void evict() {
+        this.evict(null);
+    }
+
+    /**
+     * Evicts entries like {@link #evict()}, except the one for {@code keep}, which
+     * still counts towards the size budget. An entry that has just been committed is
+     * kept this way even if it is larger than the budget by itself.
+     *
+     * @param keep the key of the entry to keep, or null
+     */
+    public void evict(String keep) {
+        File kept = keep == null ? null : new File(this.directory, keep + INDEX_SUFFIX);
+        File[] files = this.directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<File> entries = new ArrayList<>();
+        long totalSize = 0;
+        for (File file : files) {
+            String name = file.getName();
+            boolean expired = now - file.lastModified() > this.maxAgeMillis;
+            if (name.endsWith(TEMP_SUFFIX) || name.endsWith(TEMP_SUFFIX + INDEX_SUFFIX)) {
+                // spill files of an abandoned or crashed store
+                if (expired) {
+                    file.delete();
+                }
+            } else if (name.endsWith(INDEX_SUFFIX)) {
+                File data = this.dataFile(file);
+                if (file.equals(kept)) {
+                    totalSize += file.length() + data.length();
+                } else if (expired || !data.isFile()) {
+                    this.remove(file);
+                } else {
+                    entries.add(file);
+                    totalSize += file.length() + data.length();
+                }
+            } else if (name.endsWith(this.dataSuffix) && !this.indexFile(file).isFile() && expired) {
+                file.delete();
+            }
+        }
+
+        entries.sort(Comparator.comparingLong(File::lastModified));
+        for (File index : entries) {
+            if (totalSize <= this.maxSizeBytes) {
+                break;
+            }
+            totalSize -= index.length() + this.dataFile(index).length();
+            this.remove(index);
+        }
+    }
+
+    private void remove(File index) {
+        log.debug("Evicting " + this.entryName + " [" + index.getAbsolutePath() + "]");
+        index.delete();
+        this.dataFile(index).delete();
+    }
+
+    private File dataFile(File index) {
+        String name = index.getName();
+        return new File(index.getParentFile(), name.substring(0, name.length() - INDEX_SUFFIX.length()) + this.dataSuffix);
+    }
+
+    private File indexFile(File data) {
+        String name = data.getName();
+        return new File(data.getParentFile(), name.substring(0, name.length() - this.dataSuffix.length()) + INDEX_SUFFIX);
+    }
+
+    private static void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package org.rdlinux.xlsx.sst;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Heap-backed {@link StringList} that keeps its entries compressed. Entries are
+ * grouped in insertion order into blocks of {@value #BLOCK_ENTRIES}. Inside a
+ * block each entry is front coded against the previous one (the length of the
+ * shared UTF-8 prefix, then the remaining bytes), and the block is deflated with
+ * a preset dictionary taken from the first block, so that short blocks still
+ * benefit from text repeated across the whole table.
+ * <p>
+ * A lookup inflates the entry's block. Recently decoded blocks are kept in a
+ * direct-mapped cache that readers access without locking, and the inflaters
+ * are pooled so that a miss does not allocate new zlib state.
+ * <p>
+ * Entries are appended by a single writer; reads are safe from any number of
+ * threads once the writer is done.
+ */
+public class CompressedList implements StringList {
+    static final int BLOCK_ENTRIES = 64;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    static final int DEFAULT_CACHED_BLOCKS = 64;
+    private static final int MAX_POOLED_INFLATERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final AtomicReferenceArray<DecodedBlock> decoded;
+    private final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(MAX_POOLED_INFLATERS);
+    private final ByteArrayOutputStream encoder = new ByteArrayOutputStream();
+    private final byte[] deflateBuffer = new byte[8192];
+
+    private byte[][] blocks = new byte[64][];
+    private int[] blockRawSizes = new int[64];
+    private int blockCount;
+    private byte[] dictionary;
+
+    private String[] pending = new String[BLOCK_ENTRIES];
+    private int pendingCount;
+    private int size;
+    private volatile boolean closed;
+
+    public CompressedList() {
+        this(DEFAULT_CACHED_BLOCKS);
+    }
+
+    /**
+     * @param cachedBlocks the number of decoded blocks of {@value #BLOCK_ENTRIES} entries
+     *                     to keep, at least 1
+     */
+    public CompressedList(int cachedBlocks) {
+        this.decoded = new AtomicReferenceArray<>(Math.max(1, cachedBlocks));
+    }
+
+    @Override
+    public void add(String str) {
+        this.pending[this.pendingCount++] = str;
+        this.size++;
+        if (this.pendingCount == BLOCK_ENTRIES) {
+            this.flushBlock();
+        }
+    }
+
+    @Override
+    public String getAt(int index) {
+        if (index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+        }
+        int block = index / BLOCK_ENTRIES;
+        if (block == this.blockCount) {
+            return this.pending[index % BLOCK_ENTRIES];
+        }
+
+        int slot = block % this.decoded.length();
+        DecodedBlock cached = this.decoded.get(slot);
+        if (cached == null || cached.block != block) {
+            cached = this.decode(block);
+            this.decoded.set(slot, cached);
+        }
+        return cached.get(index % BLOCK_ENTRIES);
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the number of bytes held by compressed blocks
+     */
+    public long compressedSizeBytes() {
+        long total = 0;
+        for (int i = 0; i < this.blockCount; i++) {
+            total += this.blocks[i].length;
+        }
+        return total;
+    }
+
+    private void flushBlock() {
+        this.encoder.reset();
+        byte[] previous = new byte[0];
+        for (int i = 0; i < this.pendingCount; i++) {
+            byte[] bytes = this.pending[i].getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            int max = Math.min(previous.length, bytes.length);
+            while (shared < max && previous[shared] == bytes[shared]) {
+                shared++;
+            }
+            writeVarInt(this.encoder, shared);
+            writeVarInt(this.encoder, bytes.length - shared);
+            this.encoder.write(bytes, shared, bytes.length - shared);
+            previous = bytes;
+        }
+        byte[] raw = this.encoder.toByteArray();
+
+        if (this.dictionary == null) {
+            this.dictionary = Arrays.copyOf(raw, Math.min(raw.length, DICTIONARY_SIZE));
+        }
+        this.deflater.reset();
+        this.deflater.setDictionary(this.dictionary);
+        this.deflater.setInput(raw);
+        this.deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4 + 16);
+        while (!this.deflater.finished()) {
+            int n = this.deflater.deflate(this.deflateBuffer);
+            compressed.write(this.deflateBuffer, 0, n);
+        }
+
+        if (this.blockCount == this.blocks.length) {
+            this.blocks = Arrays.copyOf(this.blocks, this.blockCount * 2);
+            this.blockRawSizes = Arrays.copyOf(this.blockRawSizes, this.blockCount * 2);
+        }
+        this.blocks[this.blockCount] = compressed.toByteArray();
+        this.blockRawSizes[this.blockCount] = raw.length;
+        // start a new pending array, readers may still hold on to the old one
+        this.pending = new String[BLOCK_ENTRIES];
+        this.pendingCount = 0;
+        this.blockCount++;
+    }
+
+    private DecodedBlock decode(int block) {
+        byte[] raw = new byte[this.blockRawSizes[block]];
+        Inflater inflater = this.inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(this.blocks[block]);
+            int n = 0;
+            while (n < raw.length) {
+                int read = inflater.inflate(raw, n, raw.length - n);
+                if (read == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(this.dictionary);
+                } else if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("Truncated SST block " + block);
+                }
+                n += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt SST block " + block, e);
+        } finally {
+            inflater.reset();
+            if (this.closed || !this.inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+
+        // undo the front coding into one array of complete entries
+        int[] offsets = new int[BLOCK_ENTRIES + 1];
+        byte[] entries = new byte[raw.length * 2];
+        int pos = 0;
+        int out = 0;
+        int previousStart = 0;
+        int count = 0;
+        int[] cursor = new int[1];
+        while (pos < raw.length) {
+            cursor[0] = pos;
+            int shared = readVarInt(raw, cursor);
+            int suffix = readVarInt(raw, cursor);
+            pos = cursor[0];
+            if (out + shared + suffix > entries.length) {
+                entries = Arrays.copyOf(entries, Math.max(entries.length * 2, out + shared + suffix));
+            }
+            System.arraycopy(entries, previousStart, entries, out, shared);
+            System.arraycopy(raw, pos, entries, out + shared, suffix);
+            pos += suffix;
+            offsets[count++] = out;
+            previousStart = out;
+            out += shared + suffix;
+        }
+        offsets[count] = out;
+        return new DecodedBlock(block, entries, offsets);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(byte[] in, int[] cursor) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in[cursor[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        this.deflater.end();
+        this.blocks = new byte[0][];
+        this.pending = new String[0];
+        for (int i = 0; i < this.decoded.length(); i++) {
+            this.decoded.set(i, null);
+        }
+        Inflater inflater;
+        while ((inflater = this.inflaters.poll()) != null) {
+            inflater.end();
+        }
+    }
+
+    private static class DecodedBlock {
+        final int block;
+        final byte[] entries;
+        final int[] offsets;
+
+        DecodedBlock(int block, byte[] entries, int[] offsets) {
+            this.block = block;
+            this.entries = entries;
+            this.offsets = offsets;
+        }
+
+        String get(int i) {
+            return new String(this.entries, this.offsets[i], this.offsets[i + 1] - this.offsets[i], StandardCharsets.UTF_8);
+        }
+    }
+}
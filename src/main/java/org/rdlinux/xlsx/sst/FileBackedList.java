@@ -1,13 +1,18 @@
 package org.rdlinux.xlsx.sst;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * File-backed list-like class. Allows addition of arbitrary
@@ -21,26 +26,133 @@ import java.util.List;
  * <li><i>length</i> bytes: JSON string containing the entry data</li>
  * </ul>
  * <p>
- * Pointers to the offset of each entry are kept in a {@code List<Long>}.
+ * Pointers to the offset of each entry are kept in a growable {@code long[]}.
  * The values loaded from the the file are cached up to a maximum of
  * {@code cacheSize}. Items are evicted from the cache with an LRU algorithm.
+ * <p>
+ * Entries are appended by a single writer. Any number of threads may read
+ * concurrently, including while entries are still being appended: reads use
+ * positional channel reads or a mapped buffer, and the caches are striped, so
+ * there is no monitor shared by all readers. A mapped buffer is only unmapped
+ * once no read is using it.
  */
-public class FileBackedList implements AutoCloseable {
+public class FileBackedList implements StringList {
 
-    private final List<Long> pointers = new ArrayList<>();
+    private volatile long[] pointers = new long[1024];
+    private volatile int size;
     private final RandomAccessFile raf;
     private final FileChannel channel;
-    private final LRUCache cache;
+    private final StripedLRUCache cache;
+    private final PageCache pageCache;
+    private volatile MappedByteBuffer mapped;
+    private final ReadGuard guard = new ReadGuard();
 
     private long filesize;
 
+    // reused by add(CharSequence), only touched by the writer
+    private CharsetEncoder encoder;
+    private char[] chars;
+    private ByteBuffer encoded;
+
     public FileBackedList(File file, final int cacheSizeBytes) throws IOException {
-        this.raf = new RandomAccessFile(file, "rw");
+        this(file, "rw", cacheSizeBytes, false, false);
+    }
+
+    /**
+     * Creates a list that caches whole {@value PageCache#PAGE_SIZE} byte pages of the file
+     * rather than individual entries. Entries are decoded from the cached pages on every
+     * lookup, so a page miss costs one read no matter how many entries share the page.
+     *
+     * @param file           the file to write entries to
+     * @param cacheSizeBytes the size of the page pool
+     * @param prefetch       whether to read the next page along with a page that
+     *                       continues a sequential scan
+     * @throws IOException if the file could not be opened
+     */
+    public FileBackedList(File file, final int cacheSizeBytes, boolean prefetch) throws IOException {
+        this(file, "rw", cacheSizeBytes, true, prefetch);
+    }
+
+    private FileBackedList(File file, String mode, final int cacheSizeBytes, boolean paged, boolean prefetch)
+            throws IOException {
+        this.raf = new RandomAccessFile(file, mode);
         this.channel = this.raf.getChannel();
         this.filesize = this.raf.length();
-        this.cache = new LRUCache(cacheSizeBytes);
+        this.cache = paged ? null : new StripedLRUCache(cacheSizeBytes);
+        this.pageCache = paged ? new PageCache(this.channel, cacheSizeBytes, prefetch) : null;
     }
 
+    /**
+     * Opens a read-only list from a data file and the offset index previously
+     * written for it by {@link #writeIndex(File)}. Both files are memory-mapped;
+     * data files larger than 2GB fall back to channel reads.
+     *
+     * @param file           the data file
+     * @param index          the offset index file
+     * @param cacheSizeBytes the size of the decoded entry cache
+     * @return the loaded list
+     * @throws IOException if either file could not be read or the index is corrupt
+     */
+    public static FileBackedList load(File file, File index, final int cacheSizeBytes) throws IOException {
+        FileBackedList list = new FileBackedList(file, "r", cacheSizeBytes, false, false);
+        try (RandomAccessFile indexFile = new RandomAccessFile(index, "r")) {
+            long length = indexFile.length();
+            if (length % Long.BYTES != 0) {
+                throw new IOException("Corrupt SST index [" + index.getAbsolutePath() + "]");
+            }
+            LongBuffer offsets = indexFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length).asLongBuffer();
+            long[] pointers = new long[Math.max(1, offsets.remaining())];
+            int count = 0;
+            while (offsets.hasRemaining()) {
+                long pointer = offsets.get();
+                if (pointer < 0 || pointer >= list.filesize) {
+                    throw new IOException("Corrupt SST index [" + index.getAbsolutePath() + "]");
+                }
+                pointers[count++] = pointer;
+            }
+            list.pointers = pointers;
+            list.size = count;
+            if (list.filesize <= Integer.MAX_VALUE) {
+                list.mapped = list.channel.map(FileChannel.MapMode.READ_ONLY, 0, list.filesize);
+            }
+        } catch (IOException | RuntimeException e) {
+            list.close();
+            throw e;
+        }
+        return list;
+    }
+
+    /**
+     * Writes the offset of every entry to {@code index} so that the data file
+     * can later be reopened with {@link #load(File, File, int)}.
+     *
+     * @param index the file to write the offsets to
+     * @throws IOException if the index could not be written
+     */
+    public void writeIndex(File index) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(index)) {
+            FileChannel out = fos.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES * 1024);
+            long[] pointers = this.pointers;
+            for (int i = 0; i < this.size; i++) {
+                if (!buffer.hasRemaining()) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+                buffer.putLong(pointers[i]);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+        this.channel.force(false);
+    }
+
+    @Override
     public void add(String str) {
         try {
             this.writeToFile(str);
@@ -49,57 +161,143 @@ public class FileBackedList implements AutoCloseable {
         }
     }
 
+    @Override
+    public void add(CharSequence str) {
+        if (this.encoder == null) {
+            // same replacement of unpaired surrogates as String.getBytes
+            this.encoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.chars = new char[256];
+            this.encoded = ByteBuffer.allocate(4 + 3 * 256);
+        }
+        int length = str.length();
+        if (this.chars.length < length) {
+            this.chars = new char[Math.max(length, this.chars.length * 2)];
+            this.encoded = ByteBuffer.allocate(4 + 3 * this.chars.length);
+        }
+        if (str instanceof StringBuilder) {
+            ((StringBuilder) str).getChars(0, length, this.chars, 0);
+        } else {
+            str.toString().getChars(0, length, this.chars, 0);
+        }
+
+        ByteBuffer entry = this.encoded;
+        entry.clear();
+        entry.position(4);
+        this.encoder.reset();
+        this.encoder.encode(CharBuffer.wrap(this.chars, 0, length), entry, true);
+        this.encoder.flush(entry);
+        entry.putInt(0, entry.position() - 4);
+        entry.flip();
+        try {
+            this.writeEntry(entry);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
     public String getAt(int index) {
-        String s = this.cache.getIfPresent(index);
-        if (s != null) {
-            return s;
+        long pointer = this.pointer(index);
+        if (this.pageCache != null) {
+            try {
+                return this.pageCache.readString(pointer);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
 
         try {
-            String val = this.readFromFile(this.pointers.get(index));
-            this.cache.store(index, val);
-            return val;
+            return this.cache.get(index, i -> this.readFromFile(pointer));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    private long pointer(int index) {
+        // read the size first, the array it was published with holds at least that many entries
+        int size = this.size;
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return this.pointers[index];
+    }
+
     private void writeToFile(String str) throws IOException {
-        synchronized (this.channel) {
-            ByteBuffer bytes = ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8));
-            ByteBuffer length = ByteBuffer.allocate(4).putInt(bytes.array().length);
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(4 + bytes.length).putInt(bytes.length).put(bytes);
+        entry.flip();
+        this.writeEntry(entry);
+    }
 
-            this.channel.position(this.filesize);
-            this.pointers.add(this.channel.position());
-            length.flip();
-            this.channel.write(length);
-            this.channel.write(bytes);
+    private void writeEntry(ByteBuffer entry) throws IOException {
+        long pointer = this.filesize;
+        long position = pointer;
+        while (entry.hasRemaining()) {
+            position += this.channel.write(entry, position);
+        }
+        this.filesize = position;
 
-            this.filesize += 4 + bytes.array().length;
+        long[] pointers = this.pointers;
+        if (this.size == pointers.length) {
+            pointers = Arrays.copyOf(pointers, pointers.length * 2);
         }
+        pointers[this.size] = pointer;
+        this.pointers = pointers;
+        this.size++;
     }
 
     private String readFromFile(long pointer) throws IOException {
-        synchronized (this.channel) {
-            FileChannel fc = this.channel.position(pointer);
+        MappedByteBuffer mapped = this.mapped;
+        if (mapped != null) {
+            if (!this.guard.enter()) {
+                throw new IOException("SST cache file has been closed");
+            }
+            try {
+                ByteBuffer buffer = mapped.duplicate();
+                int length = buffer.getInt((int) pointer);
+                byte[] bytes = new byte[length];
+                buffer.position((int) pointer + 4);
+                buffer.get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            } finally {
+                this.guard.leave();
+            }
+        }
+        //get length of entry
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[4]);
+        this.readFully(buffer, pointer);
+        buffer.flip();
+        int length = buffer.getInt();
 
-            //get length of entry
-            ByteBuffer buffer = ByteBuffer.wrap(new byte[4]);
-            fc.read(buffer);
-            buffer.flip();
-            int length = buffer.getInt();
+        //read entry
+        buffer = ByteBuffer.wrap(new byte[length]);
+        this.readFully(buffer, pointer + 4);
 
-            //read entry
-            buffer = ByteBuffer.wrap(new byte[length]);
-            fc.read(buffer);
-            buffer.flip();
+        return new String(buffer.array(), StandardCharsets.UTF_8);
+    }
 
-            return new String(buffer.array(), StandardCharsets.UTF_8);
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = this.channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of SST cache file");
+            }
+            position += read;
         }
     }
 
     @Override
     public void close() {
+        // unmap as soon as no read uses the mapping, it otherwise keeps the file open until it is collected
+        MappedByteBuffer mapped = this.mapped;
+        this.guard.close(() -> DirectBuffers.release(mapped));
         try {
             this.raf.close();
         } catch (IOException e) {
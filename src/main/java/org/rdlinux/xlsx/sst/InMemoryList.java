@@ -0,0 +1,33 @@
+package org.rdlinux.xlsx.sst;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Heap-backed {@link StringList}. Used when the SST should not be spilled to
+ * disk but still needs to be filtered or loaded by {@link BufferedStringsTable}.
+ */
+public class InMemoryList implements StringList {
+
+    private final List<String> entries = new ArrayList<>();
+
+    @Override
+    public void add(String str) {
+        this.entries.add(str);
+    }
+
+    @Override
+    public String getAt(int index) {
+        return this.entries.get(index);
+    }
+
+    @Override
+    public int size() {
+        return this.entries.size();
+    }
+
+    @Override
+    public void close() {
+        this.entries.clear();
+    }
+}
@@ -27,8 +27,12 @@ class LRUCache {
         if (valSize > this.capacityBytes) {
             throw new RuntimeException("Insufficient cache space.");
         }
+        String previous = this.map.remove(key);
+        if (previous != null) {
+            this.sizeBytes -= strSize(previous);
+        }
         Iterator<String> it = this.map.values().iterator();
-        while (valSize + this.sizeBytes > this.capacityBytes) {
+        while (valSize + this.sizeBytes > this.capacityBytes && it.hasNext()) {
             String s = it.next();
             this.sizeBytes -= strSize(s);
             it.remove();
@@ -38,7 +42,7 @@ class LRUCache {
     }
 
     //  just an estimation
-    private static long strSize(String str) {
+    static long strSize(String str) {
         long size = Integer.BYTES; // hashCode
         size += Character.BYTES * str.length(); // characters
         return size;
@@ -0,0 +1,143 @@
+package org.rdlinux.xlsx.sst;
+
+import org.rdlinux.xlsx.exceptions.ReadException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * {@link StringList} that keeps its entries outside of the Java heap. Entries
+ * are stored as a 4 byte length followed by their UTF-8 bytes in a segmented
+ * arena of direct {@link ByteBuffer}s, and the offset of every entry is kept in
+ * direct buffers as well. Segments are allocated as the table grows, up to a
+ * fixed capacity that covers both the entries and their offsets, and their memory
+ * is released when the list is closed rather than when the buffers are garbage
+ * collected.
+ * <p>
+ * Entries are appended by a single writer. Reads only use absolute positions on
+ * duplicates of the segments and are safe from any number of threads. A read that
+ * overlaps with {@link #close()} either completes or fails with an
+ * {@link IllegalStateException}; the memory is released once the last such read
+ * has finished.
+ */
+public class OffHeapList implements StringList {
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    private static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int OFFSETS_PER_SEGMENT = 16 * 1024;
+
+    private final long capacityBytes;
+    private int segmentSize = MIN_SEGMENT_SIZE;
+    private long allocatedBytes;
+
+    private volatile ByteBuffer[] segments = new ByteBuffer[0];
+    private volatile ByteBuffer[] offsetSegments = new ByteBuffer[0];
+    private volatile int size;
+    private final ReadGuard guard = new ReadGuard();
+    private ByteBuffer current;
+
+    /**
+     * @param capacityBytes the maximum amount of native memory to allocate
+     */
+    public OffHeapList(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    @Override
+    public void add(String str) {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        int needed = 4 + bytes.length;
+        if (this.current == null || this.current.remaining() < needed) {
+            this.current = this.allocateSegment(needed);
+        }
+        int segment = this.segments.length - 1;
+        int offset = this.current.position();
+        this.current.putInt(bytes.length).put(bytes);
+
+        int index = this.size;
+        ByteBuffer[] offsetSegments = this.offsetSegments;
+        if (index / OFFSETS_PER_SEGMENT == offsetSegments.length) {
+            ByteBuffer offsets = this.allocate(OFFSETS_PER_SEGMENT * Long.BYTES);
+            offsetSegments = Arrays.copyOf(offsetSegments, offsetSegments.length + 1);
+            offsetSegments[offsetSegments.length - 1] = offsets;
+            this.offsetSegments = offsetSegments;
+        }
+        offsetSegments[index / OFFSETS_PER_SEGMENT].putLong((index % OFFSETS_PER_SEGMENT) * Long.BYTES,
+                ((long) segment << 32) | offset);
+        this.size = index + 1;
+    }
+
+    @Override
+    public String getAt(int index) {
+        int size = this.size;
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        if (!this.guard.enter()) {
+            throw new IllegalStateException("Off-heap SST has been closed");
+        }
+        try {
+            long pointer = this.offsetSegments[index / OFFSETS_PER_SEGMENT].getLong((index % OFFSETS_PER_SEGMENT) * Long.BYTES);
+            ByteBuffer segment = this.segments[(int) (pointer >>> 32)].duplicate();
+            int offset = (int) pointer;
+            int length = segment.getInt(offset);
+            byte[] bytes = new byte[length];
+            segment.position(offset + 4);
+            segment.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        } finally {
+            this.guard.leave();
+        }
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the amount of native memory currently allocated
+     */
+    public long allocatedBytes() {
+        return this.allocatedBytes;
+    }
+
+    private ByteBuffer allocateSegment(int needed) {
+        // segments double in size so that small tables stay small, but never take more than is left
+        long remaining = this.capacityBytes - this.allocatedBytes;
+        int size = (int) Math.max(needed, Math.min(this.segmentSize, remaining));
+        this.segmentSize = Math.min(MAX_SEGMENT_SIZE, this.segmentSize * 2);
+        ByteBuffer segment = this.allocate(size);
+        ByteBuffer[] segments = Arrays.copyOf(this.segments, this.segments.length + 1);
+        segments[segments.length - 1] = segment;
+        this.segments = segments;
+        return segment;
+    }
+
+    private ByteBuffer allocate(int size) {
+        if (this.allocatedBytes + size > this.capacityBytes) {
+            throw new ReadException("Shared strings table does not fit into the off-heap capacity of "
+                    + this.capacityBytes + " bytes");
+        }
+        this.allocatedBytes += size;
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    public void close() {
+        ByteBuffer[] segments = this.segments;
+        ByteBuffer[] offsetSegments = this.offsetSegments;
+        if (!this.guard.close(() -> {
+            for (ByteBuffer segment : segments) {
+                DirectBuffers.release(segment);
+            }
+            for (ByteBuffer offsets : offsetSegments) {
+                DirectBuffers.release(offsets);
+            }
+        })) {
+            return;
+        }
+        this.current = null;
+        this.allocatedBytes = 0;
+    }
+}
@@ -0,0 +1,159 @@
+package org.rdlinux.xlsx.sst;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of fixed-size pages of a {@link FileBackedList} data file. Neighbouring
+ * SST entries tend to be used together, so caching whole pages turns many small
+ * random reads into a few larger ones, and entries are decoded straight out of
+ * the cached page.
+ * <p>
+ * Pages are evicted in LRU order. With prefetching enabled, a miss on the page
+ * directly following the previously read page is treated as a sequential scan
+ * and the next page is read in the same call.
+ * <p>
+ * The pool is safe for concurrent readers: pages are read with positional reads
+ * outside of any lock, and the pool is split into independently locked stripes.
+ */
+class PageCache {
+    static final int PAGE_SIZE = 64 * 1024;
+    private static final int MAX_STRIPES = 16;
+
+    private final FileChannel channel;
+    private final boolean prefetch;
+    private final List<Map<Long, Page>> stripes;
+    private final int mask;
+    private volatile long lastPage = -2;
+
+    PageCache(FileChannel channel, long capacityBytes, boolean prefetch) {
+        this.channel = channel;
+        this.prefetch = prefetch;
+        long maxPages = Math.max(2, capacityBytes / PAGE_SIZE);
+        int count = 1;
+        while (count < MAX_STRIPES && maxPages / (count * 2) >= 2) {
+            count *= 2;
+        }
+        final int pagesPerStripe = (int) Math.min(Integer.MAX_VALUE, maxPages / count);
+        this.stripes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            this.stripes.add(new LinkedHashMap<Long, Page>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Page> eldest) {
+                    return this.size() > pagesPerStripe;
+                }
+            });
+        }
+        this.mask = count - 1;
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 entry.
+     *
+     * @param pointer offset of the entry's length prefix
+     * @return the decoded entry
+     */
+    String readString(long pointer) throws IOException {
+        byte[] prefix = new byte[4];
+        this.read(pointer, prefix, 0, 4);
+        int length = ByteBuffer.wrap(prefix).getInt();
+
+        long start = pointer + 4;
+        int offset = (int) (start % PAGE_SIZE);
+        if (offset + length <= PAGE_SIZE) {
+            Page page = this.page(start / PAGE_SIZE, offset + length);
+            return new String(page.data, page.offset + offset, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        this.read(start, bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void read(long position, byte[] dst, int off, int len) throws IOException {
+        while (len > 0) {
+            int offset = (int) (position % PAGE_SIZE);
+            int n = Math.min(len, PAGE_SIZE - offset);
+            Page page = this.page(position / PAGE_SIZE, offset + n);
+            System.arraycopy(page.data, page.offset + offset, dst, off, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * @param pageNo the page to return
+     * @param needed the number of bytes from the start of the page that must be valid
+     */
+    private Page page(long pageNo, int needed) throws IOException {
+        Page page = this.get(pageNo);
+        if (page == null || page.length < needed) {
+            // a partially filled last page is re-read once the file has grown past it
+            boolean sequential = this.prefetch && pageNo == this.lastPage + 1;
+            page = this.load(pageNo, sequential);
+            if (page.length < needed) {
+                throw new IOException("Unexpected end of SST cache file at page " + pageNo);
+            }
+        }
+        this.lastPage = pageNo;
+        return page;
+    }
+
+    private Page load(long pageNo, boolean readAhead) throws IOException {
+        boolean withNext = readAhead && this.get(pageNo + 1) == null;
+        // both pages share one array and are filled by a single read
+        byte[] data = new byte[withNext ? 2 * PAGE_SIZE : PAGE_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = pageNo * PAGE_SIZE;
+        while (buffer.hasRemaining()) {
+            int read = this.channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            position += read;
+        }
+
+        int filled = buffer.position();
+        Page page = new Page(data, 0, Math.min(filled, PAGE_SIZE));
+        this.put(pageNo, page);
+        if (withNext && filled > PAGE_SIZE) {
+            this.put(pageNo + 1, new Page(data, PAGE_SIZE, filled - PAGE_SIZE));
+        }
+        return page;
+    }
+
+    private Page get(long pageNo) {
+        Map<Long, Page> stripe = this.stripes.get((int) pageNo & this.mask);
+        synchronized (stripe) {
+            return stripe.get(pageNo);
+        }
+    }
+
+    private void put(long pageNo, Page page) {
+        Map<Long, Page> stripe = this.stripes.get((int) pageNo & this.mask);
+        synchronized (stripe) {
+            Page cached = stripe.get(pageNo);
+            if (cached == null || cached.length < page.length) {
+                stripe.put(pageNo, page);
+            }
+        }
+    }
+
+    private static class Page {
+        final byte[] data;
+        final int offset;
+        final int length;
+
+        Page(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
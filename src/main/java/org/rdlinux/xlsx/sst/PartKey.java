@@ -0,0 +1,23 @@
+package org.rdlinux.xlsx.sst;
+
+/**
+ * The key of a package part made from the CRC32 and uncompressed size recorded for
+ * it in the ZIP directory, which identifies the part without reading it. Every
+ * cache keyed by part content uses it, so their keys cannot diverge.
+ */
+public final class PartKey {
+    private PartKey() {
+    }
+
+    /**
+     * @param crc  the CRC32 of the part
+     * @param size the uncompressed size of the part
+     * @return the key of the part, or null if the ZIP directory did not record them
+     */
+    public static String of(long crc, long size) {
+        if (crc < 0 || size < 0) {
+            return null;
+        }
+        return String.format("%08x-%d", crc, size);
+    }
+}
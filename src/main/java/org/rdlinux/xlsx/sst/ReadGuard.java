@@ -0,0 +1,73 @@
+package org.rdlinux.xlsx.sst;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the readers of memory that is released explicitly, so that the memory
+ * is only released once no reader uses it. Readers enter and leave with two
+ * atomic updates and never block each other; closing marks the guard and the
+ * memory is released by whoever leaves last, the closing thread or a reader.
+ */
+final class ReadGuard {
+    private static final int CLOSED = 1;
+    private static final int READER = 2;
+
+    // the number of active readers times two, plus the closed bit
+    private final AtomicInteger state = new AtomicInteger();
+    private Runnable release;
+
+    /**
+     * @return true if the caller may read and must call {@link #leave()} afterwards,
+     * false if the guard is closed
+     */
+    boolean enter() {
+        while (true) {
+            int s = this.state.get();
+            if ((s & CLOSED) != 0) {
+                return false;
+            }
+            if (this.state.compareAndSet(s, s + READER)) {
+                return true;
+            }
+        }
+    }
+
+    void leave() {
+        if (this.state.addAndGet(-READER) == CLOSED) {
+            this.release();
+        }
+    }
+
+    /**
+     * Closes the guard. {@code release} runs now if there is no active reader,
+     * otherwise when the last reader leaves.
+     *
+     * @param release releases the guarded memory
+     * @return false if the guard was already closed
+     */
+    boolean close(Runnable release) {
+        int previous;
+        synchronized (this) {
+            if ((this.state.get() & CLOSED) != 0) {
+                return false;
+            }
+            this.release = release;
+            previous = this.state.getAndUpdate(s -> s | CLOSED);
+        }
+        if (previous == 0) {
+            this.release();
+        }
+        return true;
+    }
+
+    private void release() {
+        Runnable release;
+        synchronized (this) {
+            release = this.release;
+            this.release = null;
+        }
+        if (release != null) {
+            release.run();
+        }
+    }
+}
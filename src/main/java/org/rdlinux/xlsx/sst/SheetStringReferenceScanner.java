@@ -0,0 +1,234 @@
+package org.rdlinux.xlsx.sst;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.BitSet;
+
+/**
+ * Byte-level scanner that collects the SST indices referenced by a worksheet
+ * part. Only the markup needed to find {@code <c t="s"><v>N</v></c>} is
+ * looked at; everything else is skipped without building XML events or
+ * Strings. All of the relevant markup is ASCII, so the scanner does not need
+ * to decode the UTF-8 content of the part.
+ */
+public class SheetStringReferenceScanner {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream is;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+
+    private final byte[] name = new byte[32];
+    private int nameLength;
+
+    private SheetStringReferenceScanner(InputStream is) {
+        this.is = is;
+    }
+
+    /**
+     * Scans a worksheet part and marks every SST index referenced by a shared
+     * string cell in {@code referenced}. The stream is consumed but not closed.
+     *
+     * @param sheet      the worksheet XML
+     * @param referenced bitmap to add the referenced indices to
+     * @throws IOException if the stream could not be read
+     */
+    public static void scan(InputStream sheet, BitSet referenced) throws IOException {
+        new SheetStringReferenceScanner(sheet).scan(referenced);
+    }
+
+    private void scan(BitSet referenced) throws IOException {
+        boolean inSharedStringCell = false;
+        int b;
+        while ((b = this.read()) != -1) {
+            if (b != '<') {
+                continue;
+            }
+            this.readName();
+            if (this.isName("c")) {
+                inSharedStringCell = this.readCellAttributes();
+            } else if (this.isName("/c")) {
+                inSharedStringCell = false;
+            } else if (this.isName("v") && inSharedStringCell) {
+                int idx = this.readIndex();
+                if (idx >= 0) {
+                    referenced.set(idx);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a tag name, dropping any namespace prefix. Leaves the stream on the
+     * first byte after the name.
+     */
+    private void readName() throws IOException {
+        this.nameLength = 0;
+        boolean closing = false;
+        int b;
+        while ((b = this.peek()) != -1) {
+            if (b == '/' && this.nameLength == 0 && !closing) {
+                closing = true;
+            } else if (b == ':') {
+                this.nameLength = 0;
+            } else if (b == '>' || b == '/' || isWhitespace(b)) {
+                break;
+            } else if (this.nameLength < this.name.length) {
+                this.name[this.nameLength++] = (byte) b;
+            }
+            this.pos++;
+        }
+        if (closing && this.nameLength < this.name.length) {
+            System.arraycopy(this.name, 0, this.name, 1, this.nameLength);
+            this.name[0] = '/';
+            this.nameLength++;
+        }
+    }
+
+    private boolean isName(String expected) {
+        if (this.nameLength != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < this.nameLength; i++) {
+            if (this.name[i] != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the attributes of a {@code <c>} start tag up to and including the
+     * closing {@code >}. Every attribute value is read up to its matching quote,
+     * so the markup that follows the tag is never mistaken for a value.
+     *
+     * @return true if the cell is a shared string cell with content
+     */
+    private boolean readCellAttributes() throws IOException {
+        boolean sharedString = false;
+        int b;
+        while ((b = this.read()) != -1) {
+            if (b == '>') {
+                return sharedString;
+            } else if (b == '/') {
+                // self-closing cell, there is no value to read
+                sharedString = false;
+            } else if (b == '"' || b == '\'') {
+                this.skipUntil(b);
+            } else if (!isWhitespace(b) && b != '=') {
+                boolean type = b == 't' && this.isNameEnd(this.peek());
+                while (!this.isNameEnd(this.peek())) {
+                    this.pos++;
+                }
+                this.skipWhitespace();
+                if (this.peek() != '=') {
+                    continue;
+                }
+                this.pos++;
+                this.skipWhitespace();
+                int quote = this.read();
+                if (quote != '"' && quote != '\'') {
+                    // not well-formed, leave it to the parser
+                    if (quote == '>') {
+                        return false;
+                    }
+                    continue;
+                }
+                boolean s = this.readValueIs('s', quote);
+                if (type) {
+                    sharedString = s;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isNameEnd(int b) {
+        return b == -1 || b == '=' || b == '>' || b == '/' || isWhitespace(b);
+    }
+
+    private void skipWhitespace() throws IOException {
+        int b;
+        while ((b = this.peek()) != -1 && isWhitespace(b)) {
+            this.pos++;
+        }
+    }
+
+    /**
+     * Reads a quoted attribute value up to and including its closing quote.
+     *
+     * @return true if the value is the single character {@code expected}
+     */
+    private boolean readValueIs(int expected, int quote) throws IOException {
+        int length = 0;
+        boolean matches = false;
+        int b;
+        while ((b = this.read()) != -1 && b != quote) {
+            matches = length == 0 && b == expected;
+            length++;
+        }
+        return matches && length == 1;
+    }
+
+    private void skipUntil(int end) throws IOException {
+        int b;
+        while ((b = this.read()) != -1 && b != end) {
+            // skip
+        }
+    }
+
+    /**
+     * Reads the decimal content of a {@code <v>} element.
+     *
+     * @return the index, or -1 if the element was empty or not numeric
+     */
+    private int readIndex() throws IOException {
+        this.skipUntil('>');
+        long value = -1;
+        int b;
+        while ((b = this.read()) != -1 && b != '<') {
+            if (b >= '0' && b <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (b - '0');
+                if (value > Integer.MAX_VALUE) {
+                    return -1;
+                }
+            } else if (!isWhitespace(b)) {
+                return -1;
+            }
+        }
+        if (b == '<') {
+            this.pos--;
+        }
+        return (int) value;
+    }
+
+    private int read() throws IOException {
+        if (this.pos == this.limit && !this.fill()) {
+            return -1;
+        }
+        return this.buf[this.pos++] & 0xFF;
+    }
+
+    private int peek() throws IOException {
+        if (this.pos == this.limit && !this.fill()) {
+            return -1;
+        }
+        return this.buf[this.pos] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        int read = this.is.read(this.buf, 0, this.buf.length);
+        if (read <= 0) {
+            return false;
+        }
+        this.pos = 0;
+        this.limit = read;
+        return true;
+    }
+
+    private static boolean isWhitespace(int b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+}
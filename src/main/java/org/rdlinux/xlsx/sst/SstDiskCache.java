@@ -0,0 +1,93 @@
+package org.rdlinux.xlsx.sst;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.openxml4j.opc.ZipPackagePart;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Directory of SST spill files that outlive a single workbook. Each entry is a
+ * {@link FileBackedList} data file ({@code <key>.sst}) and its offset index
+ * ({@code <key>.idx}), where the key is made from the CRC32 and uncompressed
+ * size of the sharedStrings part as recorded in the ZIP central directory.
+ * Reopening a workbook with an unchanged SST then skips parsing it altogether.
+ * Entries are committed and evicted by a {@link CacheDirectory}.
+ */
+public class SstDiskCache {
+    private final CacheDirectory directory;
+
+    public SstDiskCache(File directory, long maxSizeBytes, long maxAgeMillis) {
+        this.directory = new CacheDirectory(directory, ".sst", "sst cache entry", maxSizeBytes, maxAgeMillis);
+    }
+
+    /**
+     * @param part the sharedStrings part
+     * @return the cache key of the part, or null if the package does not expose
+     * the CRC32 and size of its entries
+     */
+    public static String key(PackagePart part) {
+        if (!(part instanceof ZipPackagePart)) {
+            return null;
+        }
+        ZipArchiveEntry entry = ((ZipPackagePart) part).getZipArchive();
+        return entry == null ? null : PartKey.of(entry.getCrc(), entry.getSize());
+    }
+
+    /**
+     * Opens a previously stored SST.
+     *
+     * @param key            the cache key
+     * @param cacheSizeBytes size of the decoded entry cache
+     * @return the stored entries, or null if there is no usable entry for {@code key}
+     */
+    public FileBackedList load(String key, int cacheSizeBytes) {
+        return this.directory.load(key, (data, index) -> FileBackedList.load(data, index, cacheSizeBytes));
+    }
+
+    /**
+     * @param key the cache key the spill file is written for
+     * @return a new, empty file in the cache directory to spill the SST to
+     * @throws IOException if the file could not be created
+     */
+    public File createSpillFile(String key) throws IOException {
+        return this.directory.createSpillFile(key);
+    }
+
+    /**
+     * Stores a fully written spill file under {@code key} and reopens it from
+     * the cache. The {@code list} is closed and {@code spill} is moved into place.
+     *
+     * @param key            the cache key
+     * @param list           the list that was written to {@code spill}
+     * @param spill          the file created by {@link #createSpillFile(String)}
+     * @param cacheSizeBytes size of the decoded entry cache
+     * @return the stored entries
+     * @throws IOException if the entry could not be written
+     */
+    public FileBackedList store(String key, FileBackedList list, File spill, int cacheSizeBytes) throws IOException {
+        try {
+            list.writeIndex(this.directory.spillIndexFile(spill));
+            list.close();
+        } catch (IOException | RuntimeException e) {
+            this.directory.discard(spill);
+            throw e;
+        }
+        File data = this.directory.commit(key, spill);
+        FileBackedList stored = this.load(key, cacheSizeBytes);
+        if (stored == null) {
+            throw new IOException("Unable to reopen sst cache entry [" + data.getAbsolutePath() + "]");
+        }
+        this.directory.evict(key);
+        return stored;
+    }
+
+    /**
+     * Removes entries older than the maximum age, then the least recently used
+     * entries until the directory is within its size budget.
+     */
+    public void evict() {
+        this.directory.evict();
+    }
+}
@@ -0,0 +1,57 @@
+package org.rdlinux.xlsx.sst;
+
+import java.util.BitSet;
+
+/**
+ * Set of SST indices that are actually referenced by the sheets being read,
+ * together with the compact remapping used to store only those entries. The
+ * compact index of a retained entry is its rank in the bitmap, i.e. the
+ * number of retained indices below it.
+ */
+public class SstIndexFilter {
+
+    private final long[] words;
+    private final int[] wordRanks;
+    private final int cardinality;
+
+    public SstIndexFilter(BitSet referenced) {
+        this.words = referenced.toLongArray();
+        this.wordRanks = new int[this.words.length];
+        int rank = 0;
+        for (int i = 0; i < this.words.length; i++) {
+            this.wordRanks[i] = rank;
+            rank += Long.bitCount(this.words[i]);
+        }
+        this.cardinality = rank;
+    }
+
+    /**
+     * @param index original SST index
+     * @return true if the entry at {@code index} should be kept
+     */
+    public boolean contains(int index) {
+        int word = index >>> 6;
+        return index >= 0 && word < this.words.length && (this.words[word] & (1L << index)) != 0;
+    }
+
+    /**
+     * Maps an original SST index to its position in the compacted table.
+     *
+     * @param index original SST index
+     * @return the compact index, or -1 if the entry was not retained
+     */
+    public int compactIndex(int index) {
+        if (!this.contains(index)) {
+            return -1;
+        }
+        int word = index >>> 6;
+        return this.wordRanks[word] + Long.bitCount(this.words[word] & ((1L << index) - 1));
+    }
+
+    /**
+     * @return the number of retained entries
+     */
+    public int size() {
+        return this.cardinality;
+    }
+}
@@ -0,0 +1,28 @@
+package org.rdlinux.xlsx.sst;
+
+/**
+ * Append-only, index-addressable storage for the entries of a shared strings
+ * table. Entries are added once while the SST is parsed and are only read
+ * afterwards.
+ */
+public interface StringList extends AutoCloseable {
+
+    void add(String str);
+
+    /**
+     * Adds an entry from a buffer that the caller reuses afterwards. Storage that
+     * encodes its entries can override this to do so without creating a String.
+     *
+     * @param chars the entry's text
+     */
+    default void add(CharSequence chars) {
+        this.add(chars.toString());
+    }
+
+    String getAt(int index);
+
+    int size();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,59 @@
+package org.rdlinux.xlsx.sst;
+
+import java.io.IOException;
+
+/**
+ * Thread-safe entry cache made of independently locked {@link LRUCache} stripes.
+ * Keys are spread over the stripes by index, so concurrent readers rarely contend
+ * for the same lock. Eviction is LRU within a stripe.
+ */
+class StripedLRUCache {
+    private static final int MAX_STRIPES = 16;
+    private static final long MIN_STRIPE_BYTES = 64 * 1024;
+
+    private final LRUCache[] stripes;
+    private final long stripeCapacityBytes;
+    private final int mask;
+
+    StripedLRUCache(long capacityBytes) {
+        int count = 1;
+        while (count < MAX_STRIPES && capacityBytes / (count * 2) >= MIN_STRIPE_BYTES) {
+            count *= 2;
+        }
+        this.stripes = new LRUCache[count];
+        this.stripeCapacityBytes = capacityBytes / count;
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new LRUCache(this.stripeCapacityBytes);
+        }
+        this.mask = count - 1;
+    }
+
+    /**
+     * Returns a cached entry, loading and caching it on a miss. The lookup and the
+     * load happen under the stripe's lock, so readers that miss the same entry load
+     * it once.
+     *
+     * @param key    the entry index
+     * @param loader reads the entry on a miss
+     * @return the entry
+     * @throws IOException if the entry could not be loaded
+     */
+    String get(int key, Loader loader) throws IOException {
+        LRUCache stripe = this.stripes[key & this.mask];
+        synchronized (stripe) {
+            String val = stripe.getIfPresent(key);
+            if (val == null) {
+                val = loader.load(key);
+                // an entry too large to be cached at all is simply read again next time
+                if (LRUCache.strSize(val) <= this.stripeCapacityBytes) {
+                    stripe.store(key, val);
+                }
+            }
+            return val;
+        }
+    }
+
+    interface Loader {
+        String load(int key) throws IOException;
+    }
+}
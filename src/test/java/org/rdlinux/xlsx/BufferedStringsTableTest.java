@@ -2,13 +2,41 @@ package org.rdlinux.xlsx;
 
 import org.apache.poi.openxml4j.opc.OPCPackage;
 import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.util.IOUtils;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.junit.jupiter.api.Test;
+import org.rdlinux.xlsx.exceptions.ReadException;
 import org.rdlinux.xlsx.sst.BufferedStringsTable;
+import org.rdlinux.xlsx.sst.CompressedList;
+import org.rdlinux.xlsx.sst.FileBackedList;
+import org.rdlinux.xlsx.sst.OffHeapList;
+import org.rdlinux.xlsx.sst.SheetStringReferenceScanner;
+import org.rdlinux.xlsx.sst.SstDiskCache;
+import org.rdlinux.xlsx.sst.SstIndexFilter;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 public class BufferedStringsTableTest {
@@ -42,6 +70,353 @@ public class BufferedStringsTableTest {
              BufferedStringsTable sst = BufferedStringsTable.getSharedStringsTable(sstCache, 1000, pkg)) {
             assertNotNull(sst);
             assertEquals("shared styled string", sst.getItemAt(0).getString());
+            assertEquals("shared styled string", sst.getStringAt(0));
         }
     }
+
+    @Test
+    public void testPhoneticRunsAreSkipped() throws Exception {
+        String xml = "<sst xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\">"
+                + "<si><t>\u6771\u4eac</t><rPh sb=\"0\" eb=\"2\"><t>\u30c8\u30a6\u30ad\u30e7\u30a6</t></rPh>"
+                + "<phoneticPr fontId=\"1\"/></si>"
+                + "<si><r><rPr><b/></rPr><t xml:space=\"preserve\">a &amp; </t></r><r><t><![CDATA[<b>]]></t></r></si>"
+                + "</sst>";
+        File file = new File("src/test/resources/shared_styled_string.xlsx");
+        File sstCache = File.createTempFile("cache", ".sst");
+        sstCache.deleteOnExit();
+        try (OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+             BufferedStringsTable sst = BufferedStringsTable.getSharedStringsTable(
+                     new FileBackedList(sstCache, 1000), pkg, null, false)) {
+            sst.readFrom(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+            assertEquals("shared styled string", sst.getStringAt(0));
+            assertEquals("\u6771\u4eac", sst.getStringAt(1));
+            assertEquals("a & <b>", sst.getStringAt(2));
+        }
+    }
+
+    @Test
+    public void testEscapedCharactersAreDecoded() throws Exception {
+        String xml = "<sst xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\">"
+                + "<si><t>a_x000D_b</t></si><si><t>plain</t></si><si><t>_x005F_x000D_</t></si>"
+                + "<si><r><t>c_x0009_</t></r><r><t>d</t></r></si></sst>";
+        String[] expected = {"a\rb", "plain", "_x000D_", "c\td"};
+        File file = File.createTempFile("escaped", ".xlsx");
+        File sstCache = File.createTempFile("cache", ".sst");
+        File dir = Files.createTempDirectory("sst-cache").toFile();
+        try {
+            Files.write(file.toPath(), withSharedStrings(xml));
+            SstDiskCache diskCache = new SstDiskCache(dir, Long.MAX_VALUE, Long.MAX_VALUE);
+            SstIndexFilter all = new SstIndexFilter(BitSet.valueOf(new long[]{0xF}));
+            for (int backend = 0; backend < 8; backend++) {
+                try (OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+                     BufferedStringsTable sst = table(backend, pkg, sstCache, diskCache, all)) {
+                    for (int i = 0; i < expected.length; i++) {
+                        assertEquals(expected[i], sst.getStringAt(i), "backend " + backend);
+                        assertEquals(expected[i], sst.getItemAt(i).getString(), "backend " + backend);
+                    }
+                }
+            }
+        } finally {
+            file.delete();
+            sstCache.delete();
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testSheetStringReferenceScanner() throws Exception {
+        String xml = "<x:worksheet xmlns:x=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\"><x:sheetData>"
+                + "<x:row r=\"1\"><x:c r=\"A1\" t=\"s\"><x:v>3</x:v></x:c><x:c r=\"B1\"><x:v>7</x:v></x:c>"
+                + "<x:c r=\"C1\" s=\"1\" t='s'><x:v> 70 </x:v></x:c><x:c r=\"D1\" t=\"s\"/><x:c r=\"E1\" t=\"str\"><x:v>9</x:v></x:c>"
+                + "</x:row></x:sheetData></x:worksheet>";
+        BitSet referenced = new BitSet();
+        SheetStringReferenceScanner.scan(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), referenced);
+        assertEquals("{3, 70}", referenced.toString());
+
+        SstIndexFilter filter = new SstIndexFilter(referenced);
+        assertEquals(2, filter.size());
+        assertEquals(0, filter.compactIndex(3));
+        assertEquals(1, filter.compactIndex(70));
+        assertEquals(-1, filter.compactIndex(7));
+        assertFalse(filter.contains(1000));
+    }
+
+    @Test
+    public void testSheetStringReferenceScannerAfterOtherCellTypes() throws Exception {
+        String[] cells = {
+                "<c r=\"A1\" t=\"b\"><v>1</v></c>",
+                "<c r=\"A1\" t=\"n\" s=\"2\"><v>1</v></c>",
+                "<c r=\"A1\" t=\"e\"><v>#N/A</v></c>",
+                "<c r=\"A1\" t=\"str\"><f>A2&amp;\"x\"</f><v>ax</v></c>",
+                "<c r=\"A1\" t='inlineStr'><is><t>s</t></is></c>",
+                "<c r=\"A1\" t=\"s\"/>",
+        };
+        for (String cell : cells) {
+            String xml = "<worksheet><sheetData><row r=\"1\">" + cell
+                    + "<c r=\"B1\" t=\"s\"><v>7</v></c><c r=\"C1\" t = 's' ><v>9</v></c><c r=\"D1\" s=\"1\"><v>5</v></c>"
+                    + "</row></sheetData></worksheet>";
+            BitSet referenced = new BitSet();
+            SheetStringReferenceScanner.scan(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), referenced);
+            assertEquals("{7, 9}", referenced.toString(), cell);
+        }
+    }
+
+    @Test
+    public void testDiskCacheIsReused() throws Exception {
+        File file = new File("src/test/resources/shared_styled_string.xlsx");
+        File dir = Files.createTempDirectory("sst-cache").toFile();
+        try {
+            SstDiskCache diskCache = new SstDiskCache(dir, Long.MAX_VALUE, Long.MAX_VALUE);
+            for (int i = 0; i < 2; i++) {
+                try (OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+                     BufferedStringsTable sst = BufferedStringsTable.getSharedStringsTable(diskCache, 1000, pkg)) {
+                    assertNotNull(sst);
+                    assertEquals("shared styled string", sst.getItemAt(0).getString());
+                }
+                assertEquals(2, dir.listFiles().length);
+            }
+
+            new SstDiskCache(dir, 0, Long.MAX_VALUE).evict();
+            assertEquals(0, dir.listFiles().length);
+
+            // an entry larger than the whole budget is still stored and read back
+            try (OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+                 BufferedStringsTable sst = BufferedStringsTable.getSharedStringsTable(
+                         new SstDiskCache(dir, 0, Long.MAX_VALUE), 1000, pkg)) {
+                assertNotNull(sst);
+                assertEquals("shared styled string", sst.getItemAt(0).getString());
+            }
+            assertEquals(2, dir.listFiles().length);
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testPagedFileBackedList() throws Exception {
+        File file = File.createTempFile("cache", ".sst");
+        file.deleteOnExit();
+        try (FileBackedList list = new FileBackedList(file, 2 * 64 * 1024, true)) {
+            for (int i = 0; i < 20000; i++) {
+                list.add(entry(i));
+            }
+            for (int i = 0; i < 20000; i++) {
+                assertEquals(entry(i), list.getAt(i));
+            }
+            for (int i = 19999; i >= 0; i -= 7) {
+                assertEquals(entry(i), list.getAt(i));
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentFileBackedListReads() throws Exception {
+        File file = File.createTempFile("cache", ".sst");
+        file.deleteOnExit();
+        for (boolean paged : new boolean[]{false, true}) {
+            try (FileBackedList list = paged ? new FileBackedList(file, 4 * 64 * 1024, true) : new FileBackedList(file, 64 * 1024)) {
+                for (int i = 0; i < 20000; i++) {
+                    list.add(entry(i));
+                }
+                ExecutorService executor = Executors.newFixedThreadPool(8);
+                try {
+                    List<Future<?>> futures = new ArrayList<>();
+                    for (int t = 0; t < 8; t++) {
+                        final int seed = t;
+                        futures.add(executor.submit(() -> {
+                            Random random = new Random(seed);
+                            for (int i = 0; i < 20000; i++) {
+                                int idx = random.nextInt(20000);
+                                assertEquals(entry(idx), list.getAt(idx));
+                            }
+                        }));
+                    }
+                    for (Future<?> future : futures) {
+                        future.get();
+                    }
+                } finally {
+                    executor.shutdown();
+                }
+            }
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testConcurrentMissesOfTheSameEntries() throws Exception {
+        File file = File.createTempFile("cache", ".sst");
+        file.deleteOnExit();
+        try (FileBackedList list = new FileBackedList(file, 64 * 1024)) {
+            for (int i = 0; i < 5000; i++) {
+                list.add(entry(i));
+            }
+            int threads = 8;
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    futures.add(executor.submit(() -> {
+                        start.await();
+                        // every thread walks the same indexes, so they miss the same entries at once
+                        for (int round = 0; round < 5; round++) {
+                            for (int i = 0; i < 5000; i++) {
+                                assertEquals(entry(i), list.getAt(i));
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (Future<?> future : futures) {
+                    future.get(60, TimeUnit.SECONDS);
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testCompressedList() {
+        for (int cachedBlocks : new int[]{1, 64}) {
+            try (CompressedList list = new CompressedList(cachedBlocks)) {
+                long rawSize = 0;
+                for (int i = 0; i < 10000; i++) {
+                    String value = "Customer address " + (i / 3) + " Long Street, Springfield " + entry(i % 40);
+                    rawSize += value.length();
+                    list.add(value);
+                }
+                assertEquals(10000, list.size());
+                for (int i = 9999; i >= 0; i -= 3) {
+                    assertEquals("Customer address " + (i / 3) + " Long Street, Springfield " + entry(i % 40), list.getAt(i));
+                }
+                // every lookup misses, inflaters are reused
+                for (int i = 0; i < 10000; i += 64 * 7 + 1) {
+                    assertEquals("Customer address " + (i / 3) + " Long Street, Springfield " + entry(i % 40), list.getAt(i));
+                }
+                assertTrue(list.compressedSizeBytes() * 5 < rawSize);
+            }
+        }
+    }
+
+    @Test
+    public void testOffHeapListClosedWhileRead() throws Exception {
+        OffHeapList list = new OffHeapList(64 * 1024 * 1024);
+        for (int i = 0; i < 10000; i++) {
+            list.add(entry(i));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            CountDownLatch started = new CountDownLatch(4);
+            List<Future<Integer>> readers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                readers.add(executor.submit(() -> {
+                    started.countDown();
+                    int reads = 0;
+                    try {
+                        while (true) {
+                            int i = reads % 10000;
+                            assertEquals(entry(i), list.getAt(i));
+                            reads++;
+                        }
+                    } catch (IllegalStateException e) {
+                        return reads;
+                    }
+                }));
+            }
+            started.await();
+            list.close();
+            for (Future<Integer> reader : readers) {
+                assertTrue(reader.get(10, TimeUnit.SECONDS) >= 0);
+            }
+            assertThrows(IllegalStateException.class, () -> list.getAt(0));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testOffHeapList() {
+        try (OffHeapList list = new OffHeapList(64 * 1024 * 1024)) {
+            for (int i = 0; i < 200000; i++) {
+                list.add(entry(i));
+            }
+            assertEquals(200000, list.size());
+            for (int i = 199999; i >= 0; i -= 7) {
+                assertEquals(entry(i), list.getAt(i));
+            }
+            assertTrue(list.allocatedBytes() > 0);
+        }
+
+        try (OffHeapList list = new OffHeapList(8192)) {
+            assertThrows(ReadException.class, () -> {
+                for (int i = 0; i < 1000; i++) {
+                    list.add(entry(i));
+                }
+            });
+        }
+    }
+
+    private static BufferedStringsTable table(int backend, OPCPackage pkg, File sstCache, SstDiskCache diskCache,
+                                              SstIndexFilter all) throws Exception {
+        switch (backend) {
+            case 0:
+                return BufferedStringsTable.getSharedStringsTable((File) null, 0, pkg);
+            case 1:
+                return BufferedStringsTable.getSharedStringsTable(sstCache, 1000, pkg);
+            case 2:
+                return BufferedStringsTable.getSharedStringsTable(new CompressedList(), pkg, null, false);
+            case 3:
+                return BufferedStringsTable.getSharedStringsTable(new OffHeapList(4 * 1024 * 1024), pkg, null, false);
+            case 4:
+                return BufferedStringsTable.getSharedStringsTable(sstCache, 1000, pkg, all);
+            case 5:
+                return BufferedStringsTable.getSharedStringsTable((File) null, 0, pkg, null, true);
+            default:
+                // stored in the disk cache, then read back from it
+                return BufferedStringsTable.getSharedStringsTable(diskCache, 1000, pkg);
+        }
+    }
+
+    /**
+     * @return a workbook whose shared strings part is replaced by {@code xml}
+     */
+    private static byte[] withSharedStrings(String xml) throws Exception {
+        ByteArrayOutputStream workbook = new ByteArrayOutputStream();
+        try (XSSFWorkbook wb = new XSSFWorkbook()) {
+            wb.createSheet().createRow(0).createCell(0).setCellValue("placeholder");
+            wb.write(workbook);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(workbook.toByteArray()));
+             ZipOutputStream zip = new ZipOutputStream(out)) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                zip.putNextEntry(new ZipEntry(entry.getName()));
+                if (entry.getName().equals("xl/sharedStrings.xml")) {
+                    zip.write(xml.getBytes(StandardCharsets.UTF_8));
+                } else {
+                    IOUtils.copy(in, zip);
+                }
+                zip.closeEntry();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static String entry(int i) {
+        StringBuilder sb = new StringBuilder("entry-").append(i);
+        for (int j = 0; j < i % 50; j++) {
+            sb.append('\u00e9');
+        }
+        return sb.toString();
+    }
 }
@@ -2,14 +2,25 @@ package org.rdlinux.xlsx;
 
 import org.apache.poi.openxml4j.opc.OPCPackage;
 import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.poifs.crypt.EncryptionInfo;
+import org.apache.poi.poifs.crypt.EncryptionMode;
+import org.apache.poi.poifs.crypt.Encryptor;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
 import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.rdlinux.xlsx.exceptions.MissingSheetException;
+import org.rdlinux.xlsx.exceptions.ReadException;
+import org.rdlinux.xlsx.impl.DerivedKeyCache;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
 import java.time.LocalDateTime;
 import java.util.*;
@@ -530,6 +541,105 @@ public class StreamingReaderTest {
         }
     }
 
+    @Test
+    public void testEncryptedFileIsDecryptedToDisk() throws Exception {
+        File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+        FilenameFilter spooled = (dir, name) -> name.startsWith("tmp-") && name.endsWith(".xlsx");
+        Set<String> before = new HashSet<>(Arrays.asList(tmpDir.list(spooled)));
+        try (Workbook wb = StreamingReader.builder().password("test").open(new File("src/test/resources/encrypted.xlsx"))) {
+            Set<String> during = new HashSet<>(Arrays.asList(tmpDir.list(spooled)));
+            during.removeAll(before);
+            assertEquals(1, during.size());
+            assertEquals("Demo", wb.getSheetAt(0).iterator().next().getCell(0).getStringCellValue());
+        }
+        Set<String> after = new HashSet<>(Arrays.asList(tmpDir.list(spooled)));
+        after.removeAll(before);
+        assertTrue(after.isEmpty());
+    }
+
+    @Test
+    public void testWrongPassword() {
+        assertThrows(ReadException.class, () -> StreamingReader.builder().password("wrong")
+                .open(new File("src/test/resources/encrypted.xlsx")));
+    }
+
+    @Test
+    public void testDerivedKeyCache() throws Exception {
+        File file = new File("src/test/resources/encrypted.xlsx");
+        DerivedKeyCache cache = new DerivedKeyCache(4, 60_000);
+
+        assertThrows(ReadException.class, () -> StreamingReader.builder().password("wrong").derivedKeyCache(cache).open(file));
+        assertEquals(0, cache.size());
+
+        for (int i = 0; i < 3; i++) {
+            try (Workbook wb = StreamingReader.builder().password("test").derivedKeyCache(cache).open(file)) {
+                assertEquals("Demo", wb.getSheetAt(0).iterator().next().getCell(0).getStringCellValue());
+            }
+        }
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        assertThrows(ReadException.class, () -> StreamingReader.builder().password("wrong").derivedKeyCache(cache).open(file));
+        assertEquals(2, cache.getHits());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+
+        DerivedKeyCache expiring = new DerivedKeyCache(4, 0);
+        for (int i = 0; i < 2; i++) {
+            try (Workbook wb = StreamingReader.builder().password("test").derivedKeyCache(expiring).open(file)) {
+                assertEquals("Demo", wb.getSheetAt(0).iterator().next().getCell(0).getStringCellValue());
+            }
+        }
+        assertEquals(0, expiring.getHits());
+        expiring.evictExpired();
+        assertEquals(0, expiring.size());
+    }
+
+    @Test
+    public void testParallelAgileDecryption() throws Exception {
+        // large enough for the encrypted package to span several batches of segments
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 4000; i++) {
+            StringBuilder value = new StringBuilder();
+            for (int j = 0; j < 16; j++) {
+                value.append(UUID.randomUUID());
+            }
+            expected.add(value.toString());
+        }
+        File encrypted = Files.createTempFile("agile-", ".xlsx").toFile();
+        try {
+            try (POIFSFileSystem fs = new POIFSFileSystem()) {
+                Encryptor encryptor = new EncryptionInfo(EncryptionMode.agile).getEncryptor();
+                encryptor.confirmPassword("test");
+                try (XSSFWorkbook wb = new XSSFWorkbook(); OutputStream os = encryptor.getDataStream(fs)) {
+                    org.apache.poi.ss.usermodel.Sheet sheet = wb.createSheet();
+                    for (int i = 0; i < expected.size(); i++) {
+                        sheet.createRow(i).createCell(0).setCellValue(expected.get(i));
+                    }
+                    wb.write(os);
+                }
+                try (OutputStream os = new FileOutputStream(encrypted)) {
+                    fs.writeFilesystem(os);
+                }
+            }
+            assertTrue(encrypted.length() > 1024 * 1024);
+
+            for (int threads : new int[]{1, 4}) {
+                List<String> actual = new ArrayList<>();
+                try (Workbook wb = StreamingReader.builder().password("test").decryptionThreads(threads).open(encrypted)) {
+                    for (Row r : wb.getSheetAt(0)) {
+                        actual.add(r.getCell(0).getStringCellValue());
+                    }
+                }
+                assertEquals(expected, actual);
+            }
+        } finally {
+            encrypted.delete();
+        }
+    }
+
     @Test
     public void testStringCellValue() throws Exception {
         try (
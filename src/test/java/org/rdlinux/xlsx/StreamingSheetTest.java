@@ -1,19 +1,44 @@
 package org.rdlinux.xlsx;
 
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.CellType;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.rdlinux.xlsx.exceptions.NotSupportedException;
+import org.rdlinux.xlsx.exceptions.ReadException;
+import org.rdlinux.xlsx.impl.StreamingSheet;
+import org.rdlinux.xlsx.impl.StringInterner;
+import org.rdlinux.xlsx.impl.StylesCache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class StreamingSheetTest {
     @BeforeAll
@@ -56,4 +81,531 @@ public class StreamingSheetTest {
         }
     }
 
+    @Test
+    public void testLightweightStyles() throws Exception {
+        for (String name : new String[]{"data_types.xlsx", "special_types.xlsx", "shared_styled_string.xlsx"}) {
+            File f = new File("src/test/resources/" + name);
+            List<String> expected;
+            try (Workbook workbook = StreamingReader.builder().open(f)) {
+                expected = styles(workbook);
+            }
+
+            byte[] bytes = Files.readAllBytes(f.toPath());
+            try (
+                    Workbook fromFile = StreamingReader.builder().lightweightStyles(true).open(f);
+                    Workbook fromBytes = StreamingReader.builder().lightweightStyles(true).open(bytes);
+                    Workbook singlePass = StreamingReader.builder().lightweightStyles(true).singlePass(true)
+                            .open(new ByteArrayInputStream(bytes))
+            ) {
+                for (Workbook workbook : new Workbook[]{fromFile, fromBytes, singlePass}) {
+                    assertEquals(expected, styles(workbook), name);
+                }
+            }
+        }
+
+        try (Workbook workbook = StreamingReader.builder().lightweightStyles(true).open(new File("src/test/resources/data_types.xlsx"))) {
+            CellStyle style = workbook.getSheetAt(0).iterator().next().getCell(0).getCellStyle();
+            assertFalse(style instanceof XSSFCellStyle);
+            assertThrows(NotSupportedException.class, () -> style.setDataFormat((short) 0));
+        }
+    }
+
+    @Test
+    public void testStylesCache() throws Exception {
+        File f = new File("src/test/resources/data_types.xlsx");
+        List<String> expected;
+        try (Workbook workbook = StreamingReader.builder().open(f)) {
+            expected = styles(workbook);
+        }
+
+        StylesCache cache = new StylesCache(4);
+        StreamingReader.Builder builder = StreamingReader.builder().lightweightStyles(true).stylesCache(cache);
+        byte[] bytes = Files.readAllBytes(f.toPath());
+        try (
+                Workbook fromFile = builder.open(f);
+                Workbook fromBytes = builder.open(bytes);
+                Workbook fromZipFile = StreamingReader.builder().lightweightStyles(true).lightweightZip(true)
+                        .stylesCache(cache).open(f)
+        ) {
+            for (Workbook workbook : new Workbook[]{fromFile, fromBytes, fromZipFile}) {
+                assertEquals(expected, styles(workbook));
+            }
+        }
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        try (Workbook workbook = builder.open(f)) {
+            assertEquals(expected, styles(workbook));
+        }
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testRowIndex() throws Exception {
+        try (Workbook workbook = StreamingReader.builder().rowIndexInterval(64).open(sparseWorkbook())) {
+            StreamingSheet sheet = (StreamingSheet) workbook.getSheetAt(0);
+            assertEquals(5, sheet.getFirstRowNum());
+            assertEquals(1000, sheet.getPhysicalNumberOfRows());
+            for (int rownum : new int[]{5, 6, 197, 200, 2003, 3002}) {
+                Row row = sheet.getRow(rownum);
+                if ((rownum - 5) % 3 != 0) {
+                    assertNull(row, "row " + rownum);
+                } else {
+                    assertEquals(rownum, row.getRowNum());
+                    assertEquals("row " + rownum, row.getCell(0).getStringCellValue());
+                }
+            }
+            assertNull(sheet.getRow(4));
+            assertNull(sheet.getRow(5000));
+
+            Iterator<Row> from = sheet.iterator(1000);
+            assertEquals(1001, from.next().getRowNum());
+            assertEquals(1004, from.next().getRowNum());
+
+            int count = 0;
+            for (Row row : sheet) {
+                assertEquals(5 + count * 3, row.getRowNum());
+                count++;
+            }
+            assertEquals(1000, count);
+            assertEquals(1007, from.next().getRowNum());
+        }
+
+        try (Workbook workbook = StreamingReader.builder().open(new File("src/test/resources/missing-r-attrs.xlsx"))) {
+            List<Integer> expected = new ArrayList<>();
+            for (Row row : workbook.getSheetAt(0)) {
+                expected.add(row.getRowNum());
+            }
+            assertThrows(UnsupportedOperationException.class, () -> workbook.getSheetAt(0).getRow(0));
+
+            try (Workbook indexed = StreamingReader.builder().rowIndexInterval(1)
+                    .open(new File("src/test/resources/missing-r-attrs.xlsx"))) {
+                Sheet sheet = indexed.getSheetAt(0);
+                assertEquals(expected.size(), sheet.getPhysicalNumberOfRows());
+                for (int rownum : expected) {
+                    assertEquals(rownum, sheet.getRow(rownum).getRowNum());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSheetIndexDirectory() throws Exception {
+        File f = Files.createTempFile("sparse-", ".xlsx").toFile();
+        File directory = Files.createTempDirectory("sheet-index").toFile();
+        try {
+            Files.write(f.toPath(), sparseWorkbook());
+            StreamingReader.Builder builder = StreamingReader.builder().rowIndexInterval(100).sheetIndexDirectory(directory)
+                    .zoneMapColumns(1);
+            try (Workbook workbook = builder.open(f)) {
+                assertEquals("row 1502", workbook.getSheetAt(0).getRow(1502).getCell(0).getStringCellValue());
+            }
+            File[] entries = directory.listFiles();
+            assertNotNull(entries);
+            assertEquals(2, entries.length);
+            for (File entry : entries) {
+                assertTrue(entry.setLastModified(0));
+            }
+
+            // a later open reads the stored entry, from the file or from memory
+            for (boolean lightweightZip : new boolean[]{false, true}) {
+                try (Workbook workbook = StreamingReader.builder().rowIndexInterval(100).sheetIndexDirectory(directory)
+                        .zoneMapColumns(1).lightweightZip(lightweightZip).open(f)) {
+                    StreamingSheet sheet = (StreamingSheet) workbook.getSheetAt(0);
+                    assertEquals(1000, sheet.getPhysicalNumberOfRows());
+                    assertEquals(Arrays.asList(1502, 1505), rowNums(sheet.iterator(1, 499, 500)));
+                    assertEquals("row 2999", sheet.getRow(2999).getCell(0).getStringCellValue());
+                    assertEquals(1, (int) sheet.getRow(8).getCell(1).getNumericCellValue());
+                }
+            }
+            for (File entry : directory.listFiles()) {
+                assertTrue(entry.lastModified() > 0, entry.getName());
+            }
+            assertEquals(2, directory.listFiles().length);
+        } finally {
+            f.delete();
+            for (File entry : directory.listFiles()) {
+                entry.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testSheetIndexLargerThanDirectoryBudget() throws Exception {
+        File f = Files.createTempFile("sparse-", ".xlsx").toFile();
+        File directory = Files.createTempDirectory("sheet-index").toFile();
+        try {
+            Files.write(f.toPath(), sparseWorkbook());
+            StreamingReader.Builder builder = StreamingReader.builder().rowIndexInterval(100).sheetIndexDirectory(directory)
+                    .sheetIndexDirectoryMaxSizeBytes(1);
+            for (int i = 0; i < 2; i++) {
+                try (Workbook workbook = builder.open(f)) {
+                    Sheet sheet = workbook.getSheetAt(0);
+                    assertEquals("row 1502", sheet.getRow(1502).getCell(0).getStringCellValue());
+                    assertEquals("row 2999", sheet.getRow(2999).getCell(0).getStringCellValue());
+                }
+                assertEquals(2, directory.listFiles().length);
+            }
+        } finally {
+            f.delete();
+            for (File entry : directory.listFiles()) {
+                entry.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testSheetIndexOutlivesItsEntry() throws Exception {
+        File f = Files.createTempFile("sparse-", ".xlsx").toFile();
+        File directory = Files.createTempDirectory("sheet-index").toFile();
+        try {
+            Files.write(f.toPath(), sparseWorkbook());
+            StreamingReader.Builder builder = StreamingReader.builder().rowIndexInterval(100).sheetIndexDirectory(directory)
+                    .zoneMapColumns(1);
+            try (Workbook workbook = builder.open(f)) {
+                assertEquals("row 1502", workbook.getSheetAt(0).getRow(1502).getCell(0).getStringCellValue());
+            }
+
+            // the first open reads the stored entry, the second commits a new one
+            for (int i = 0; i < 2; i++) {
+                try (Workbook workbook = builder.open(f)) {
+                    StreamingSheet sheet = (StreamingSheet) workbook.getSheetAt(0);
+                    assertEquals("row 1502", sheet.getRow(1502).getCell(0).getStringCellValue());
+
+                    // another process evicts the entry while the index is in use
+                    for (File entry : directory.listFiles()) {
+                        assertTrue(entry.delete());
+                    }
+                    assertEquals("row 2999", sheet.getRow(2999).getCell(0).getStringCellValue());
+                    assertEquals(Arrays.asList(1502, 1505), rowNums(sheet.iterator(1, 499, 500)));
+                    assertEquals(1000, rowNums(sheet.iterator()).size());
+                }
+                assertEquals(0, directory.listFiles().length);
+            }
+        } finally {
+            f.delete();
+            for (File entry : directory.listFiles()) {
+                entry.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testSheetIndexRecordedWhileIterating() throws Exception {
+        File f = Files.createTempFile("sparse-", ".xlsx").toFile();
+        File directory = Files.createTempDirectory("sheet-index").toFile();
+        try {
+            Files.write(f.toPath(), sparseWorkbook());
+            StreamingReader.Builder builder = StreamingReader.builder().rowIndexInterval(100).sheetIndexDirectory(directory);
+
+            // a cursor closed before the end leaves nothing behind
+            try (Workbook workbook = builder.open(f)) {
+                Iterator<Row> rows = workbook.getSheetAt(0).iterator();
+                assertEquals(5, rows.next().getRowNum());
+            }
+            assertEquals(0, directory.listFiles().length);
+
+            // reading the sheet to the end records its index
+            try (Workbook workbook = builder.open(f)) {
+                StreamingSheet sheet = (StreamingSheet) workbook.getSheetAt(0);
+                int count = 0;
+                for (Row ignored : sheet) {
+                    count++;
+                }
+                assertEquals(1000, count);
+                assertEquals(2, directory.listFiles().length);
+                assertEquals("row 1502", sheet.getRow(1502).getCell(0).getStringCellValue());
+                assertNull(sheet.getRow(1503));
+            }
+            assertEquals(2, directory.listFiles().length);
+
+            // a random access while the first cursor is still reading builds the index itself
+            try (Workbook workbook = StreamingReader.builder().rowIndexInterval(100).open(f)) {
+                StreamingSheet sheet = (StreamingSheet) workbook.getSheetAt(0);
+                Iterator<Row> rows = sheet.iterator();
+                assertEquals(5, rows.next().getRowNum());
+                assertEquals("row 2999", sheet.getRow(2999).getCell(0).getStringCellValue());
+                int count = 1;
+                while (rows.hasNext()) {
+                    rows.next();
+                    count++;
+                }
+                assertEquals(1000, count);
+                assertEquals(1000, sheet.getPhysicalNumberOfRows());
+            }
+
+            // a part streamed once is copied to the end and read on from the copy
+            try (Workbook workbook = StreamingReader.builder().singlePass(true).rowIndexInterval(100).zoneMapColumns(1)
+                    .open(Files.newInputStream(f.toPath()))) {
+                StreamingSheet sheet = (StreamingSheet) workbook.getSheetAt(0);
+                Iterator<Row> rows = sheet.iterator();
+                List<Integer> rowNums = new ArrayList<>();
+                for (int i = 0; i < 250; i++) {
+                    rowNums.add(rows.next().getRowNum());
+                }
+                assertEquals("row 2999", sheet.getRow(2999).getCell(0).getStringCellValue());
+                assertEquals(Arrays.asList(1502, 1505), rowNums(sheet.iterator(1, 499, 500)));
+                assertEquals(Arrays.asList(17, 20), rowNums(sheet.iterator(1, 4, 5)));
+                while (rows.hasNext()) {
+                    rowNums.add(rows.next().getRowNum());
+                }
+                assertEquals(1000, rowNums.size());
+                for (int i = 0; i < rowNums.size(); i++) {
+                    assertEquals(5 + i * 3, (int) rowNums.get(i));
+                }
+                assertEquals(rowNums, rowNums(sheet.iterator()));
+            }
+        } finally {
+            f.delete();
+            for (File entry : directory.listFiles()) {
+                entry.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testReiterate() throws Exception {
+        byte[] bytes = sparseWorkbook();
+        File f = Files.createTempFile("reiterate", ".xlsx").toFile();
+        try {
+            Files.write(f.toPath(), bytes);
+            for (boolean lightweightZip : new boolean[]{false, true}) {
+                try (Workbook workbook = StreamingReader.builder().rowCacheSize(10).lightweightZip(lightweightZip).open(f)) {
+                    Sheet sheet = workbook.getSheetAt(0);
+                    assertEquals(3002, sheet.getLastRowNum());
+                    List<Integer> first = rowNums(sheet.iterator());
+                    assertEquals(1000, first.size());
+                    assertEquals(first, rowNums(sheet.iterator()));
+
+                    // iterators side by side keep their own position
+                    Iterator<Row> a = sheet.iterator();
+                    Iterator<Row> b = sheet.iterator();
+                    assertEquals("row 5", a.next().getCell(0).getStringCellValue());
+                    assertEquals("row 8", a.next().getCell(0).getStringCellValue());
+                    assertEquals("row 5", b.next().getCell(0).getStringCellValue());
+                    assertEquals("row 11", a.next().getCell(0).getStringCellValue());
+                }
+            }
+
+            // iterators dropped after their first row are released when the workbook is closed
+            File directory = Files.createTempDirectory("sheet-index").toFile();
+            try {
+                try (Workbook workbook = StreamingReader.builder().rowCacheSize(10).rowIndexInterval(100)
+                        .sheetIndexDirectory(directory).open(f)) {
+                    Sheet sheet = workbook.getSheetAt(0);
+                    for (int i = 0; i < 100; i++) {
+                        assertEquals(5, sheet.rowIterator().next().getRowNum());
+                    }
+                    // the first of them is still copying the sheet
+                    assertEquals(1, directory.listFiles().length);
+                }
+                assertEquals(0, directory.listFiles().length);
+            } finally {
+                for (File entry : directory.listFiles()) {
+                    entry.delete();
+                }
+                directory.delete();
+            }
+        } finally {
+            f.delete();
+        }
+
+        try (Workbook workbook = StreamingReader.builder().singlePass(true).open(new ByteArrayInputStream(bytes))) {
+            Sheet sheet = workbook.getSheetAt(0);
+            assertEquals(1000, rowNums(sheet.iterator()).size());
+            // streamed from the input, the sheet is gone, which shows once the iterator is used
+            Iterator<Row> gone = sheet.iterator();
+            assertThrows(ReadException.class, gone::hasNext);
+        }
+        try (Workbook workbook = StreamingReader.builder().singlePass(true).rowIndexInterval(100)
+                .open(new ByteArrayInputStream(bytes))) {
+            Sheet sheet = workbook.getSheetAt(0);
+            assertEquals(rowNums(sheet.iterator()), rowNums(sheet.iterator()));
+        }
+    }
+
+    @Test
+    public void testZoneMap() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2020, Calendar.JANUARY, 1);
+        try (XSSFWorkbook wb = new XSSFWorkbook()) {
+            CellStyle dateStyle = wb.createCellStyle();
+            dateStyle.setDataFormat(wb.createDataFormat().getFormat("yyyy-mm-dd"));
+            Sheet sheet = wb.createSheet("ledger");
+            sheet.createRow(0).createCell(0).setCellValue("date");
+            for (int i = 1; i <= 2000; i++) {
+                Row row = sheet.createRow(i);
+                Cell date = row.createCell(0);
+                date.setCellValue(calendar.getTime());
+                date.setCellStyle(dateStyle);
+                row.createCell(1).setCellValue(i % 97);
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+            }
+            wb.write(out);
+        }
+
+        calendar.clear();
+        calendar.set(2024, Calendar.JANUARY, 1);
+        Date from = calendar.getTime();
+        calendar.set(2024, Calendar.JANUARY, 31);
+        Date to = calendar.getTime();
+
+        List<Integer> expectedDates = new ArrayList<>();
+        List<Integer> expectedAmounts = new ArrayList<>();
+        try (Workbook workbook = StreamingReader.builder().open(out.toByteArray())) {
+            for (Row row : workbook.getSheetAt(0)) {
+                if (row.getRowNum() == 0) {
+                    continue;
+                }
+                Date date = row.getCell(0).getDateCellValue();
+                if (!date.before(from) && !date.after(to)) {
+                    expectedDates.add(row.getRowNum());
+                }
+                double amount = row.getCell(1).getNumericCellValue();
+                if (amount >= 10 && amount <= 12) {
+                    expectedAmounts.add(row.getRowNum());
+                }
+            }
+        }
+        assertEquals(31, expectedDates.size());
+
+        try (Workbook workbook = StreamingReader.builder().rowIndexInterval(50).zoneMapColumns(0)
+                .open(out.toByteArray())) {
+            StreamingSheet sheet = (StreamingSheet) workbook.getSheetAt(0);
+            assertEquals(expectedDates, rowNums(sheet.iterator(0, from, to)));
+            // not summarized, every block is filtered
+            assertEquals(expectedAmounts, rowNums(sheet.iterator(1, 10, 12)));
+            assertFalse(sheet.iterator(0, 0, 1).hasNext());
+            assertEquals(2001, sheet.getPhysicalNumberOfRows());
+        }
+
+        // collected while the sheet is iterated the first time
+        try (Workbook workbook = StreamingReader.builder().rowIndexInterval(50).zoneMapColumns(0, 1)
+                .open(out.toByteArray())) {
+            StreamingSheet sheet = (StreamingSheet) workbook.getSheetAt(0);
+            assertEquals(2001, rowNums(sheet.iterator()).size());
+            assertEquals(expectedDates, rowNums(sheet.iterator(0, from, to)));
+            assertEquals(expectedAmounts, rowNums(sheet.iterator(1, 10, 12)));
+            assertFalse(sheet.iterator(1, 97, 100).hasNext());
+        }
+    }
+
+    @Test
+    public void testStringInterning() throws Exception {
+        try (
+                InputStream is = new FileInputStream(new File("src/test/resources/inline.xlsx"));
+                Workbook workbook = StreamingReader.builder().stringInternCacheSize(100).open(is);
+        ) {
+            StreamingSheet sheet = (StreamingSheet) workbook.getSheetAt(0);
+            Row row = sheet.iterator().next();
+            assertEquals("First inline cell", row.getCell(0).getStringCellValue());
+            assertEquals("Second inline cell", row.getCell(1).getStringCellValue());
+
+            StringInterner interner = sheet.getStringInterner();
+            assertEquals(128, interner.getCapacity());
+            assertEquals(0, interner.getHits());
+            assertEquals(2, interner.getMisses());
+            assertEquals(0, interner.getHitRate(), 0);
+        }
+
+        StringBuilder longValue = new StringBuilder();
+        while (longValue.length() <= 1024) {
+            longValue.append("long inline value ");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // streaming workbooks write inline strings instead of a shared strings table
+        try (SXSSFWorkbook wb = new SXSSFWorkbook(null, 100, false, false)) {
+            Sheet sheet = wb.createSheet("inline");
+            for (int i = 0; i < 50; i++) {
+                Row row = sheet.createRow(i);
+                row.createCell(0).setCellValue("repeated value");
+                Cell formula = row.createCell(1);
+                formula.setCellFormula("\"formula value\"");
+                formula.setCellValue("formula value");
+                row.createCell(2).setCellValue(longValue.toString());
+            }
+            wb.write(out);
+            wb.dispose();
+        }
+        try (Workbook workbook = StreamingReader.builder().stringInternCacheSize(100).open(out.toByteArray())) {
+            StreamingSheet sheet = (StreamingSheet) workbook.getSheetAt(0);
+            Iterator<Row> rows = sheet.iterator();
+            Row first = rows.next();
+            assertEquals(CellType.FORMULA, first.getCell(1).getCellType());
+            String inline = first.getCell(0).getStringCellValue();
+            String formula = first.getCell(1).getStringCellValue();
+            String longInline = first.getCell(2).getStringCellValue();
+            assertEquals("repeated value", inline);
+            assertEquals("formula value", formula);
+            assertEquals(longValue.toString(), longInline);
+            while (rows.hasNext()) {
+                Row row = rows.next();
+                assertSame(inline, row.getCell(0).getStringCellValue());
+                assertSame(formula, row.getCell(1).getStringCellValue());
+                // too long to be cached
+                assertEquals(longInline, row.getCell(2).getStringCellValue());
+                assertNotSame(longInline, row.getCell(2).getStringCellValue());
+            }
+
+            StringInterner interner = sheet.getStringInterner();
+            assertEquals(2 * 49, interner.getHits());
+            assertEquals(2 + 50, interner.getMisses());
+            assertTrue(interner.getHitRate() > 0);
+        }
+
+        try (
+                InputStream is = new FileInputStream(new File("src/test/resources/inline.xlsx"));
+                Workbook workbook = StreamingReader.builder().open(is);
+        ) {
+            assertNull(((StreamingSheet) workbook.getSheetAt(0)).getStringInterner());
+        }
+    }
+
+    private static List<Integer> rowNums(Iterator<Row> rows) {
+        List<Integer> rowNums = new ArrayList<>();
+        while (rows.hasNext()) {
+            rowNums.add(rows.next().getRowNum());
+        }
+        return rowNums;
+    }
+
+    /**
+     * @return a workbook with 1000 rows on every third row from row 5, holding their own number
+     */
+    private static byte[] sparseWorkbook() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (XSSFWorkbook wb = new XSSFWorkbook()) {
+            Sheet sheet = wb.createSheet("indexed");
+            for (int i = 0; i < 1000; i++) {
+                Row row = sheet.createRow(5 + i * 3);
+                row.createCell(0).setCellValue("row " + row.getRowNum());
+                row.createCell(1).setCellValue(i);
+            }
+            wb.write(out);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<String> styles(Workbook workbook) {
+        List<String> styles = new ArrayList<>();
+        for (Sheet sheet : workbook) {
+            for (Row row : sheet) {
+                for (Cell cell : row) {
+                    CellStyle style = cell.getCellStyle();
+                    styles.add(style == null ? "null" : style.getIndex() + ":" + style.getDataFormat() + ":"
+                            + style.getDataFormatString() + ":" + style.getFontIndex() + ":" + style.getAlignment());
+                }
+            }
+        }
+        return styles;
+    }
 }
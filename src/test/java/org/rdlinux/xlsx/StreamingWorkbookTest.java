@@ -5,14 +5,31 @@ import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.util.IOUtils;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.rdlinux.xlsx.exceptions.MissingSheetException;
+import org.rdlinux.xlsx.exceptions.OpenException;
 import org.rdlinux.xlsx.exceptions.ParseException;
+import org.rdlinux.xlsx.exceptions.ReadException;
+import org.rdlinux.xlsx.impl.WorkbookMetadata;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import static org.apache.poi.ss.usermodel.CellType.FORMULA;
 import static org.apache.poi.ss.usermodel.CellType.NUMERIC;
@@ -47,6 +64,245 @@ public class StreamingWorkbookTest {
         }
     }
 
+    @Test
+    public void testSelectiveSst() throws Exception {
+        for (int sstCacheSizeBytes : new int[]{-1, 1000}) {
+            try (
+                    InputStream is = new FileInputStream(new File("src/test/resources/sheets.xlsx"));
+                    Workbook workbook = StreamingReader.builder()
+                            .sstCacheSizeBytes(sstCacheSizeBytes)
+                            .sstSheets("SheetZulu")
+                            .open(is);
+            ) {
+                Row rowZ = workbook.getSheet("SheetZulu").rowIterator().next();
+                assertEquals("yeah", rowZ.getCell(0).getStringCellValue());
+
+                assertThrows(ReadException.class, () -> workbook.getSheet("SheetAlpha").rowIterator().next());
+            }
+        }
+    
+        // read from memory or a mapping, the options still apply
+        File file = new File("src/test/resources/sheets.xlsx");
+        try (
+                Workbook fromBytes = StreamingReader.builder().sstSheets("SheetZulu").open(Files.readAllBytes(file.toPath()));
+                Workbook fromPath = StreamingReader.builder().sstSheets("SheetZulu").open(file.toPath())
+        ) {
+            for (Workbook workbook : new Workbook[]{fromBytes, fromPath}) {
+                assertEquals("yeah", workbook.getSheet("SheetZulu").rowIterator().next().getCell(0).getStringCellValue());
+                assertThrows(ReadException.class, () -> workbook.getSheet("SheetAlpha").rowIterator().next());
+            }
+        }
+    }
+
+    @Test
+    public void testAsyncSstLoading() throws Exception {
+        for (int sstCacheSizeBytes : new int[]{-1, 1000}) {
+            try (
+                    InputStream is = new FileInputStream(new File("src/test/resources/sheets.xlsx"));
+                    Workbook workbook = StreamingReader.builder()
+                            .sstCacheSizeBytes(sstCacheSizeBytes)
+                            .asyncSstLoading(true)
+                            .open(is);
+            ) {
+                assertEquals("stuff", workbook.getSheetAt(0).rowIterator().next().getCell(0).getStringCellValue());
+                assertEquals("yeah", workbook.getSheetAt(1).rowIterator().next().getCell(0).getStringCellValue());
+            }
+        }
+    }
+
+    @Test
+    public void testCompressedSst() throws Exception {
+        try (
+                InputStream is = new FileInputStream(new File("src/test/resources/sheets.xlsx"));
+                Workbook workbook = StreamingReader.builder().sstCompression(true).open(is);
+        ) {
+            assertEquals("stuff", workbook.getSheetAt(0).rowIterator().next().getCell(0).getStringCellValue());
+            assertEquals("yeah", workbook.getSheetAt(1).rowIterator().next().getCell(0).getStringCellValue());
+        }
+    }
+
+    @Test
+    public void testOffHeapSst() throws Exception {
+        try (
+                InputStream is = new FileInputStream(new File("src/test/resources/sheets.xlsx"));
+                Workbook workbook = StreamingReader.builder().sstOffHeapCapacityBytes(1024 * 1024).open(is);
+        ) {
+            assertEquals("stuff", workbook.getSheetAt(0).rowIterator().next().getCell(0).getStringCellValue());
+            assertEquals("yeah", workbook.getSheetAt(1).rowIterator().next().getCell(0).getStringCellValue());
+        }
+    }
+
+    @Test
+    public void testSinglePass() throws Exception {
+        for (String file : new String[]{"sheets.xlsx", "hidden.xlsx", "data_types.xlsx", "formula_test.xlsx",
+                "1904Dates.xlsx", "inline.xlsx", "null_celltype.xlsx", "formula_outside_cell.xlsx"}) {
+            try (
+                    Workbook expected = openWorkbook(file);
+                    InputStream is = new FileInputStream(new File("src/test/resources/" + file));
+                    Workbook actual = StreamingReader.builder().singlePass(true).open(is);
+            ) {
+                assertEquals(expected.getNumberOfSheets(), actual.getNumberOfSheets(), file);
+                // read the last sheet first, so that earlier sheets are spilled on the way
+                for (int i = actual.getNumberOfSheets() - 1; i >= 0; i--) {
+                    assertEquals(expected.getSheetName(i), actual.getSheetName(i), file);
+                    assertEquals(dump(expected.getSheetAt(i)), dump(actual.getSheetAt(i)), file);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSinglePassSwitchesSheets() throws Exception {
+        try (
+                Workbook expected = openWorkbook("hidden.xlsx");
+                InputStream is = new FileInputStream(new File("src/test/resources/hidden.xlsx"));
+                Workbook actual = StreamingReader.builder().singlePass(true).rowCacheSize(1).open(is);
+        ) {
+            // the first sheet is only partially read when the archive moves on to the second
+            Iterator<Row> rows = actual.getSheetAt(0).rowIterator();
+            Row first = rows.next();
+            assertEquals(dump(expected.getSheetAt(1)), dump(actual.getSheetAt(1)));
+
+            StringBuilder rest = new StringBuilder();
+            dumpRow(first, rest);
+            rows.forEachRemaining(row -> dumpRow(row, rest));
+            assertEquals(dump(expected.getSheetAt(0)), rest.toString());
+        }
+    }
+
+    @Test
+    public void testOpenFromBuffer() throws Exception {
+        for (String file : new String[]{"sheets.xlsx", "hidden.xlsx", "data_types.xlsx", "1904Dates.xlsx",
+                "formula_outside_cell.xlsx"}) {
+            File f = new File("src/test/resources/" + file);
+            byte[] bytes = Files.readAllBytes(f.toPath());
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+            direct.put(bytes).flip();
+            List<String> expected = new ArrayList<>();
+            try (Workbook workbook = openWorkbook(file)) {
+                for (Sheet sheet : workbook) {
+                    expected.add(sheet.getSheetName() + workbook.isSheetHidden(workbook.getSheetIndex(sheet)));
+                    expected.add(dump(sheet));
+                }
+            }
+            try (
+                    Workbook fromBytes = StreamingReader.builder().open(bytes);
+                    Workbook fromDirect = StreamingReader.builder().open(direct);
+                    Workbook fromPath = StreamingReader.builder().open(f.toPath());
+                    Workbook fromZipFile = StreamingReader.builder().lightweightZip(true).open(f);
+            ) {
+                for (Workbook workbook : new Workbook[]{fromBytes, fromDirect, fromPath, fromZipFile}) {
+                    List<String> actual = new ArrayList<>();
+                    for (Sheet sheet : workbook) {
+                        actual.add(sheet.getSheetName() + workbook.isSheetHidden(workbook.getSheetIndex(sheet)));
+                        actual.add(dump(sheet));
+                    }
+                    assertEquals(expected, actual, file);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOpenFromBufferNotAWorkbook() {
+        assertThrows(OpenException.class, () -> StreamingReader.builder().open(new byte[100]));
+    }
+
+    @Test
+    public void testPipelinedSpooling() throws Exception {
+        File file = new File("src/test/resources/data_types.xlsx");
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        // everything up to the parts stored after the sheet
+        int sheetEnd = indexOf(bytes, "docProps/core.xml".getBytes(StandardCharsets.UTF_8)) - 30;
+
+        try (
+                Workbook expected = openWorkbook("data_types.xlsx");
+                PipedOutputStream upload = new PipedOutputStream();
+                InputStream is = new PipedInputStream(upload, bytes.length)
+        ) {
+            upload.write(bytes, 0, sheetEnd);
+            upload.flush();
+            Workbook actual = assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+                Workbook workbook = StreamingReader.builder().pipelinedSpooling(true).open(is);
+                // the sheet is fully readable before the rest of the upload has arrived
+                assertEquals(dump(expected.getSheetAt(0)), dump(workbook.getSheetAt(0)));
+                return workbook;
+            });
+            upload.write(bytes, sheetEnd, bytes.length - sheetEnd);
+            upload.close();
+            // read again from the spooled file
+            assertEquals(dump(expected.getSheetAt(0)), dump(actual.getSheetAt(0)));
+            actual.close();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (XSSFWorkbook wb = new XSSFWorkbook()) {
+            for (String name : new String[]{"first", "second"}) {
+                Sheet sheet = wb.createSheet(name);
+                for (int i = 0; i < 500; i++) {
+                    sheet.createRow(i).createCell(0).setCellValue(name + " " + i);
+                }
+            }
+            wb.write(out);
+        }
+        try (Workbook workbook = StreamingReader.builder().pipelinedSpooling(true).rowCacheSize(10)
+                .open(new ByteArrayInputStream(out.toByteArray()))) {
+            Iterator<Row> first = workbook.getSheet("first").rowIterator();
+            assertEquals("first 0", first.next().getCell(0).getStringCellValue());
+            // moves the archive past the rest of the first sheet
+            Iterator<Row> second = workbook.getSheet("second").rowIterator();
+            assertEquals("second 0", second.next().getCell(0).getStringCellValue());
+            for (int i = 1; i < 500; i++) {
+                assertEquals("first " + i, first.next().getCell(0).getStringCellValue());
+            }
+            assertFalse(first.hasNext());
+            assertEquals("first 0", workbook.getSheet("first").rowIterator().next().getCell(0).getStringCellValue());
+            assertEquals("second 1", second.next().getCell(0).getStringCellValue());
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte[] needle) {
+        outer:
+        for (int i = 0; i <= bytes.length - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (bytes[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static String dump(Sheet sheet) {
+        StringBuilder sb = new StringBuilder();
+        for (Row row : sheet) {
+            dumpRow(row, sb);
+        }
+        return sb.toString();
+    }
+
+    private static void dumpRow(Row row, StringBuilder sb) {
+        for (Cell cell : row) {
+            sb.append(cell.getRowIndex()).append(',').append(cell.getColumnIndex()).append('=').append(cell.getCellType()).append(':');
+            if (cell.getCellType() == NUMERIC) {
+                sb.append(cell.getNumericCellValue());
+            } else if (cell.getCellType() == FORMULA) {
+                sb.append(cell.getCellFormula());
+            } else {
+                sb.append(cell.getStringCellValue());
+            }
+            sb.append('\n');
+        }
+    }
+
+    @Test
+    public void testSelectiveSstMissingSheet() throws Exception {
+        try (InputStream is = new FileInputStream(new File("src/test/resources/sheets.xlsx"))) {
+            assertThrows(MissingSheetException.class, () -> StreamingReader.builder().sstSheets("Nope").open(is));
+        }
+    }
+
     @Test
     public void testHiddenCells() throws Exception {
         try (
@@ -60,9 +316,10 @@ public class StreamingWorkbookTest {
             assertTrue(sheet.isColumnHidden(1), "Column 1 should be hidden");
             assertFalse(sheet.isColumnHidden(2), "Column 2 should not be hidden");
 
-            assertFalse(sheet.rowIterator().next().getZeroHeight(), "Row 0 should not be hidden");
-            assertTrue(sheet.rowIterator().next().getZeroHeight(), "Row 1 should be hidden");
-            assertFalse(sheet.rowIterator().next().getZeroHeight(), "Row 2 should not be hidden");
+            Iterator<Row> rows = sheet.rowIterator();
+            assertFalse(rows.next().getZeroHeight(), "Row 0 should not be hidden");
+            assertTrue(rows.next().getZeroHeight(), "Row 1 should be hidden");
+            assertFalse(rows.next().getZeroHeight(), "Row 2 should not be hidden");
         }
     }
 
@@ -158,6 +415,98 @@ public class StreamingWorkbookTest {
         }
     }
 
+    @Test
+    public void testSheetsAreOpenedWhenRead() throws Exception {
+        try (Workbook workbook = StreamingReader.builder().open(new File("src/test/resources/sheets.xlsx"))) {
+            Iterator<Row> zulu = workbook.getSheet("SheetZulu").rowIterator();
+            assertEquals("yeah", zulu.next().getCell(0).getStringCellValue());
+            while (zulu.hasNext()) {
+                zulu.next();
+            }
+            // the sheet's stream has been released, reading past the end stays at the end
+            assertFalse(zulu.hasNext());
+            // a new iterator reads the sheet again
+            assertEquals("yeah", workbook.getSheet("SheetZulu").rowIterator().next().getCell(0).getStringCellValue());
+
+            Row alpha = workbook.getSheet("SheetAlpha").rowIterator().next();
+            assertEquals("stuff", alpha.getCell(0).getStringCellValue());
+        }
+    }
+
+    @Test
+    public void testWorkbookMetadata() {
+        String xml = "<workbook xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\""
+                + " xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\">"
+                + "<workbookPr date1904=\"true\"/>"
+                + "<sheets><sheet name=\"First\" sheetId=\"1\" r:id=\"rId1\"/>"
+                + "<sheet name=\"Second\" sheetId=\"2\" state=\"veryHidden\" r:id=\"rId2\"/></sheets>"
+                + "<definedNames><definedName name=\"Total\">First!$A$1</definedName>"
+                + "<definedName name=\"_xlnm.Print_Area\" localSheetId=\"1\" hidden=\"1\">Second!$A$1:$B$2</definedName>"
+                + "</definedNames></workbook>";
+        WorkbookMetadata metadata = WorkbookMetadata.read(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+
+        assertTrue(metadata.isDate1904());
+        assertEquals(2, metadata.getSheets().size());
+        assertEquals("First", metadata.getSheets().get(0).getName());
+        assertEquals("visible", metadata.getSheets().get(0).getState());
+        assertEquals("rId1", metadata.getSheets().get(0).getRelationshipId());
+        assertEquals("Second", metadata.getSheets().get(1).getName());
+        assertEquals("veryHidden", metadata.getSheets().get(1).getState());
+        assertEquals("rId2", metadata.getSheets().get(1).getRelationshipId());
+
+        assertEquals(2, metadata.getDefinedNames().size());
+        assertEquals("Total", metadata.getDefinedNames().get(0).getName());
+        assertEquals(-1, metadata.getDefinedNames().get(0).getLocalSheetId());
+        assertFalse(metadata.getDefinedNames().get(0).isHidden());
+        assertEquals("First!$A$1", metadata.getDefinedNames().get(0).getFormula());
+        assertEquals(1, metadata.getDefinedNames().get(1).getLocalSheetId());
+        assertTrue(metadata.getDefinedNames().get(1).isHidden());
+        assertEquals("Second!$A$1:$B$2", metadata.getDefinedNames().get(1).getFormula());
+
+        assertThrows(ParseException.class, () -> WorkbookMetadata.read(new ByteArrayInputStream("<workbook>".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void testFailedOpenStopsSstLoader() throws Exception {
+        File source = Files.createTempFile("source", ".xlsx").toFile();
+        try (SXSSFWorkbook wb = new SXSSFWorkbook(null, 1000, false, true);
+             OutputStream out = new FileOutputStream(source)) {
+            Sheet sheet = wb.createSheet();
+            for (int i = 0; i < 200000; i++) {
+                sheet.createRow(i).createCell(0).setCellValue("value " + i);
+            }
+            wb.write(out);
+            wb.dispose();
+        }
+        // a broken workbook part fails the open after the SST loader has started
+        File f = Files.createTempFile("broken", ".xlsx").toFile();
+        try (ZipFile in = new ZipFile(source);
+             ZipOutputStream out = new ZipOutputStream(new FileOutputStream(f))) {
+            for (ZipEntry entry : Collections.list(in.entries())) {
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                if (entry.getName().equals("xl/workbook.xml")) {
+                    out.write("<workbook>".getBytes(StandardCharsets.UTF_8));
+                } else {
+                    try (InputStream is = in.getInputStream(entry)) {
+                        IOUtils.copy(is, out);
+                    }
+                }
+                out.closeEntry();
+            }
+        } finally {
+            source.delete();
+        }
+        try {
+            assertThrows(ParseException.class, () -> StreamingReader.builder().asyncSstLoading(true)
+                    .sstCacheSizeBytes(1024 * 1024).lightweightZip(false).open(f));
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                assertFalse(thread.getName().equals("xlsx-sst-loader") && thread.isAlive(), "SST loader still running");
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
     @Test
     public void testEntityExpansion() {
         assertThrows(ParseException.class, () -> ExploitServer.withServer(s -> fail("Should not have made request"), () -> {